@@ -0,0 +1,84 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava.benchmarks;
+
+import io.whalebone.iprangerjava.Configuration;
+import io.whalebone.iprangerjava.IpRanger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Temporary environments of the benchmarks.
+ *
+ * @author Tomas Kozel
+ */
+public final class BenchmarkEnvironments {
+    // generous estimate of the size of a range in both the ranges and identities databases
+    private static final long BYTES_PER_RANGE = 256;
+
+    private BenchmarkEnvironments() {
+    }
+
+    /**
+     * @param ranges number of ranges the environment is going to store
+     */
+    public static Configuration.ConfigurationBuilder configuration(final long ranges) {
+        return Configuration.builder()
+                .maxEnvSize(64L * 1024 * 1024 + ranges * BYTES_PER_RANGE)
+                .ip4RangesToIdentityDbName("IPv4")
+                .identitiesToIp4RangesDbName("ID2IPv4")
+                .ip4MasksDbName("IPv4_masks")
+                .ip6RangesToIdentityDbName("IPv6")
+                .identitiesToIp6RangesDbName("ID2IPv6")
+                .ip6MasksDbName("IPv6_masks")
+                .maxMaskKeySize(4)
+                .maxIdentityKeySize(64);
+    }
+
+    public static IpRanger create(final Configuration conf) {
+        try {
+            return IpRanger.create(Files.createTempDirectory("ipranger_benchmark_"), conf);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create environment directory", e);
+        }
+    }
+
+    /**
+     * Closes the environment and deletes its directory.
+     */
+    public static void delete(final IpRanger ipRanger) {
+        if (ipRanger == null) {
+            return;
+        }
+        ipRanger.close();
+        try (Stream<Path> paths = Files.walk(ipRanger.getDir())) {
+            final List<Path> toDelete = new ArrayList<>();
+            paths.sorted(Comparator.reverseOrder()).forEach(toDelete::add);
+            for (final Path path : toDelete) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot delete " + ipRanger.getDir(), e);
+        }
+    }
+}
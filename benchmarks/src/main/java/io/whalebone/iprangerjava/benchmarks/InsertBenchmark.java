@@ -0,0 +1,154 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava.benchmarks;
+
+import io.whalebone.iprangerjava.BulkLoader;
+import io.whalebone.iprangerjava.EnvProfile;
+import io.whalebone.iprangerjava.InsertReport;
+import io.whalebone.iprangerjava.IpRanger;
+import io.whalebone.iprangerjava.RangeEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing of synthetic data sets. Single inserts are measured per range, batched inserts and bulk loads per data set.
+ * Each of them with the durable and the bulk load {@link EnvProfile}.
+ *
+ * @author Tomas Kozel
+ */
+@Fork(1)
+public class InsertBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class DataSet {
+        @Param({"10000", "1000000", "10000000"})
+        private int size;
+
+        @Param({"IPV4", "IPV6"})
+        private SyntheticRanges.Family family;
+
+        private SyntheticRanges ranges;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            ranges = new SyntheticRanges(family, SyntheticRanges.PrefixDistribution.REALISTIC, size, 1000, 1);
+        }
+    }
+
+    /**
+     * Environment created empty for each invocation.
+     */
+    @State(Scope.Thread)
+    public static class EmptyEnvironment {
+        @Param({"DURABLE", "BULK_LOAD"})
+        private EnvProfile envProfile;
+
+        private IpRanger ipRanger;
+
+        @Setup(Level.Invocation)
+        public void setUp(final DataSet dataSet) {
+            ipRanger = BenchmarkEnvironments.create(BenchmarkEnvironments.configuration(dataSet.size)
+                    .batchCommitSize(100_000)
+                    .envProfile(envProfile)
+                    .build());
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            BenchmarkEnvironments.delete(ipRanger);
+        }
+    }
+
+    /**
+     * Environment inserted to range by range, the data set starts again when all its ranges are inserted.
+     */
+    @State(Scope.Thread)
+    public static class SingleInserts {
+        @Param({"DURABLE", "BULK_LOAD"})
+        private EnvProfile envProfile;
+
+        private IpRanger ipRanger;
+        private DataSet dataSet;
+        private Iterator<RangeEntry> ranges;
+
+        @Setup(Level.Trial)
+        public void setUp(final DataSet dataSet) {
+            this.dataSet = dataSet;
+            ipRanger = BenchmarkEnvironments.create(BenchmarkEnvironments.configuration(dataSet.size)
+                    .envProfile(envProfile)
+                    .build());
+            ranges = dataSet.ranges.iterator();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchmarkEnvironments.delete(ipRanger);
+        }
+
+        private RangeEntry next() {
+            if (!ranges.hasNext()) {
+                ranges = dataSet.ranges.iterator();
+            }
+            return ranges.next();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 2, time = 5)
+    @Measurement(iterations = 5, time = 5)
+    public IpRanger insertIpRange(final SingleInserts inserts) {
+        final RangeEntry range = inserts.next();
+        inserts.ipRanger.insertIpRange(range.getIpRange(), range.getIdentity());
+        return inserts.ipRanger;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public InsertReport insertIpRanges(final DataSet dataSet, final EmptyEnvironment environment) {
+        return environment.ipRanger.insertIpRanges(dataSet.ranges.stream());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public InsertReport bulkLoad(final DataSet dataSet, final EmptyEnvironment environment) {
+        try (BulkLoader loader = environment.ipRanger.newBulkLoader()) {
+            dataSet.ranges.iterator().forEachRemaining(loader::add);
+            return loader.load();
+        }
+    }
+}
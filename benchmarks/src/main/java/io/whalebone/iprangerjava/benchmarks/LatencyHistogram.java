@@ -0,0 +1,104 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava.benchmarks;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with logarithmic buckets, each power of two split to
+ * {@value #SUB_BUCKETS} linear sub-buckets, so the percentiles are accurate within about 3 %. One thread
+ * records the values, others can read {@link #snapshot()}s meanwhile.
+ *
+ * @author Tomas Kozel
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+    void record(final long nanos) {
+        final int index = index(Math.max(nanos, 0));
+        // a single writer, lazySet is enough and doesn't cost a locked instruction
+        counts.lazySet(index, counts.get(index) + 1);
+    }
+
+    /**
+     * @return counts of the buckets
+     */
+    long[] snapshot() {
+        final long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Adds the counts of the snapshot to the target ones, minus the counts of the previous snapshot if not null.
+     */
+    static void add(final long[] target, final long[] snapshot, final long[] previous) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += snapshot[i] - (previous == null ? 0 : previous[i]);
+        }
+    }
+
+    static long count(final long[] counts) {
+        long count = 0;
+        for (final long bucketCount : counts) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return upper bound of the bucket the percentile falls to, 0 if there are no values
+     */
+    static long percentile(final long[] counts, final double percentile) {
+        final long total = count(counts);
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    private static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // the highest SUB_BUCKET_BITS + 1 bits of the value
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long upperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava.benchmarks;
+
+import io.whalebone.iprangerjava.BulkLoader;
+import io.whalebone.iprangerjava.Ip4LookupIndex;
+import io.whalebone.iprangerjava.Ip6LookupTrie;
+import io.whalebone.iprangerjava.IpRanger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups of addresses covered by the ranges of synthetic data sets, from LMDB one by one and all at once
+ * and from the in-memory structures ({@link Ip4LookupIndex}, {@link Ip6LookupTrie}). All the times are per address.
+ *
+ * @author Tomas Kozel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+    private static final int ADDRESS_COUNT = 1 << 16;
+
+    @Param({"10000", "1000000", "10000000"})
+    private int size;
+
+    @Param({"IPV4", "IPV6"})
+    private SyntheticRanges.Family family;
+
+    @Param({"UNIFORM", "REALISTIC"})
+    private SyntheticRanges.PrefixDistribution distribution;
+
+    private IpRanger ipRanger;
+    private Ip4LookupIndex ip4LookupIndex;
+    private Ip6LookupTrie ip6LookupTrie;
+    private long[] addresses;
+    private int[] ip4Addresses;
+    private long[][] ip6Addresses;
+    private String[] identities;
+
+    @Setup
+    public void setUp() {
+        final SyntheticRanges ranges = new SyntheticRanges(family, distribution, size, 1000, 1);
+        ipRanger = BenchmarkEnvironments.create(BenchmarkEnvironments.configuration(size).build());
+        try (BulkLoader loader = ipRanger.newBulkLoader()) {
+            ranges.iterator().forEachRemaining(loader::add);
+            loader.load();
+        }
+        if (family == SyntheticRanges.Family.IPV4) {
+            ip4LookupIndex = ipRanger.refreshIp4LookupIndex();
+        } else {
+            ip6LookupTrie = ipRanger.refreshIp6LookupTrie();
+        }
+        addresses = ranges.addresses(ADDRESS_COUNT, 2);
+        ip4Addresses = new int[ADDRESS_COUNT];
+        ip6Addresses = new long[ADDRESS_COUNT][];
+        for (int i = 0; i < ADDRESS_COUNT; i++) {
+            if (family == SyntheticRanges.Family.IPV4) {
+                ip4Addresses[i] = (int) addresses[i];
+            } else {
+                ip6Addresses[i] = new long[]{addresses[2 * i], addresses[2 * i + 1]};
+            }
+        }
+        identities = new String[ADDRESS_COUNT];
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkEnvironments.delete(ipRanger);
+    }
+
+    @Benchmark
+    public String lmdb(final Cursor cursor) {
+        final int i = cursor.next();
+        if (family == SyntheticRanges.Family.IPV4) {
+            return ipRanger.lookup((int) addresses[i]);
+        }
+        return ipRanger.lookup(addresses[2 * i], addresses[2 * i + 1]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESS_COUNT)
+    public String[] lmdbAll() {
+        if (family == SyntheticRanges.Family.IPV4) {
+            ipRanger.lookupAll(ip4Addresses, identities);
+        } else {
+            ipRanger.lookupAll(ip6Addresses, identities);
+        }
+        return identities;
+    }
+
+    @Benchmark
+    public String inMemory(final Cursor cursor) {
+        final int i = cursor.next();
+        if (family == SyntheticRanges.Family.IPV4) {
+            return ip4LookupIndex.lookup((int) addresses[i]);
+        }
+        return ip6LookupTrie.lookup(addresses[2 * i], addresses[2 * i + 1]);
+    }
+
+    /**
+     * Per thread position in the looked up addresses.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next() {
+            next = (next + 1) & (ADDRESS_COUNT - 1);
+            return next;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava.benchmarks;
+
+import io.whalebone.iprangerjava.RangeEntry;
+import io.whalebone.iprangerjava.utils.CIDRUtils;
+import io.whalebone.iprangerjava.utils.Cidr;
+import io.whalebone.iprangerjava.utils.CidrParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of CIDR literals by {@link CIDRUtils} and {@link CidrParser}.
+ *
+ * @author Tomas Kozel
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    private static final int CIDR_COUNT = 1 << 12;
+
+    @Param({"IPV4", "IPV6"})
+    private SyntheticRanges.Family family;
+
+    private final CidrParser cidrParser = new CidrParser();
+    private final Cidr cidr = new Cidr();
+    private String[] cidrs;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        cidrs = new SyntheticRanges(family, SyntheticRanges.PrefixDistribution.REALISTIC, CIDR_COUNT, 100, 1)
+                .stream()
+                .map(RangeEntry::getIpRange)
+                .toArray(String[]::new);
+    }
+
+    @Benchmark
+    public InetAddress cidrUtils() throws UnknownHostException {
+        return new CIDRUtils(nextCidr()).getEndAddress();
+    }
+
+    @Benchmark
+    public long cidrParser() {
+        cidrParser.parse(nextCidr(), cidr);
+        return cidr.getEndLow();
+    }
+
+    private String nextCidr() {
+        next = (next + 1) & (CIDR_COUNT - 1);
+        return cidrs[next];
+    }
+}
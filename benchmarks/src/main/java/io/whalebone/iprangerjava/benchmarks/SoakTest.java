@@ -0,0 +1,334 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava.benchmarks;
+
+import io.whalebone.iprangerjava.BulkLoader;
+import io.whalebone.iprangerjava.EnvProfile;
+import io.whalebone.iprangerjava.InsertReport;
+import io.whalebone.iprangerjava.IpRanger;
+import io.whalebone.iprangerjava.RangeEntry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Soak test of an environment: bulk loads a synthetic data set, then for the given time inserts further batches
+ * of ranges while other threads look up a skewed stream of addresses of the data set. Every report interval
+ * and at the end it prints the ingest rate, the size of {@code data.mdb}, the lookup latency percentiles, the GC
+ * time and the direct memory use, so that regressions of the write or the read path show before production does.
+ * <p>
+ * Run it with {@code java -cp target/benchmarks.jar io.whalebone.iprangerjava.benchmarks.SoakTest [name=value ...]},
+ * e.g. {@code ranges=10000000 duration=600 lookupThreads=4}. The options and their defaults are in {@link Options}.
+ *
+ * @author Tomas Kozel
+ */
+public final class SoakTest {
+    private static final int ADDRESS_COUNT = 1 << 20;
+    private static final long MIB = 1024 * 1024;
+
+    private final Options options;
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final BufferPoolMXBean directPool = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+            .filter(pool -> pool.getName().equals("direct"))
+            .findFirst()
+            .orElseThrow(IllegalStateException::new);
+
+    private SoakTest(final Options options) {
+        this.options = options;
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        new SoakTest(Options.parse(args)).run();
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println("soak test " + options);
+        final IpRanger ipRanger = BenchmarkEnvironments.create(BenchmarkEnvironments.configuration(options.ranges)
+                .envProfile(options.profile)
+                .envSizeGrowthFactor(2)
+                .batchCommitSize(100_000)
+                .lookupCacheSize(options.lookupCacheSize)
+                .build());
+        try {
+            bulkLoad(ipRanger);
+            soak(ipRanger);
+        } finally {
+            BenchmarkEnvironments.delete(ipRanger);
+        }
+    }
+
+    private void bulkLoad(final IpRanger ipRanger) {
+        final SyntheticRanges ranges = dataSet(options.ranges, options.seed);
+        final long start = System.nanoTime();
+        final InsertReport report;
+        try (BulkLoader loader = ipRanger.newBulkLoader()) {
+            ranges.iterator().forEachRemaining(loader::add);
+            report = loader.load();
+        }
+        final long nanos = System.nanoTime() - start;
+        System.out.printf("bulk load: %d ranges in %d ms, %.0f records/s, %s, data.mdb %d MiB%n",
+                ranges.size(), TimeUnit.NANOSECONDS.toMillis(nanos), perSecond(ranges.size(), nanos), report,
+                dataFileSize(ipRanger) / MIB);
+    }
+
+    private void soak(final IpRanger ipRanger) throws InterruptedException {
+        final long[] addresses = dataSet(options.ranges, options.seed)
+                .skewedAddresses(ADDRESS_COUNT, options.distinctAddresses, options.skew, options.seed);
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final List<LatencyHistogram> histograms = new ArrayList<>();
+        final List<Thread> lookupThreads = new ArrayList<>();
+        for (int i = 0; i < options.lookupThreads; i++) {
+            final LatencyHistogram histogram = new LatencyHistogram();
+            final int offset = i * (ADDRESS_COUNT / options.lookupThreads);
+            final Thread thread = new Thread(() -> lookUp(ipRanger, addresses, offset, histogram, stopped),
+                    "soak-lookup-" + i);
+            histograms.add(histogram);
+            lookupThreads.add(thread);
+            thread.start();
+        }
+
+        final Sample first = sample(ipRanger, histograms, 0);
+        Sample previous = first;
+        final long end = first.nanos + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        long nextReport = first.nanos + TimeUnit.SECONDS.toNanos(options.reportIntervalSeconds);
+        long inserted = 0;
+        long seed = options.seed;
+        try {
+            while (System.nanoTime() < end) {
+                // new ranges in every batch, the same seed gives the same sequence of batches
+                final List<RangeEntry> batch = dataSet(options.batchSize, ++seed).stream()
+                        .collect(Collectors.toList());
+                inserted += ipRanger.insertIpRanges(batch).getInserted();
+                if (System.nanoTime() >= nextReport) {
+                    final Sample sample = sample(ipRanger, histograms, inserted);
+                    report("interval", first, previous, sample);
+                    previous = sample;
+                    nextReport += TimeUnit.SECONDS.toNanos(options.reportIntervalSeconds);
+                }
+            }
+        } finally {
+            stopped.set(true);
+            for (final Thread thread : lookupThreads) {
+                thread.join();
+            }
+        }
+        report("total", first, first, sample(ipRanger, histograms, inserted));
+    }
+
+    private static void lookUp(final IpRanger ipRanger, final long[] addresses, final int offset,
+                               final LatencyHistogram histogram, final AtomicBoolean stopped) {
+        final boolean ipv4 = addresses.length == ADDRESS_COUNT;
+        int i = offset;
+        while (!stopped.get()) {
+            i = (i + 1) & (ADDRESS_COUNT - 1);
+            final long start = System.nanoTime();
+            if (ipv4) {
+                ipRanger.lookup((int) addresses[i]);
+            } else {
+                ipRanger.lookup(addresses[2 * i], addresses[2 * i + 1]);
+            }
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    private SyntheticRanges dataSet(final int count, final long seed) {
+        return new SyntheticRanges(options.family, options.distribution, count, options.identities,
+                options.overlapPercent, seed);
+    }
+
+    private Sample sample(final IpRanger ipRanger, final List<LatencyHistogram> histograms, final long inserted) {
+        final List<long[]> snapshots = histograms.stream()
+                .map(LatencyHistogram::snapshot)
+                .collect(Collectors.toList());
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (final GarbageCollectorMXBean collector : collectors) {
+            gcCount += Math.max(collector.getCollectionCount(), 0);
+            gcMillis += Math.max(collector.getCollectionTime(), 0);
+        }
+        return new Sample(System.nanoTime(), inserted, snapshots, gcCount, gcMillis, dataFileSize(ipRanger),
+                ipRanger.stats().getUsedBytes());
+    }
+
+    /**
+     * Prints the differences between the samples.
+     *
+     * @param start sample taken when the soak started
+     */
+    private void report(final String label, final Sample start, final Sample from, final Sample to) {
+        final long nanos = to.nanos - from.nanos;
+        final long[] latencies = new long[from.latencies.get(0).length];
+        for (int i = 0; i < to.latencies.size(); i++) {
+            LatencyHistogram.add(latencies, to.latencies.get(i), from.latencies.get(i));
+        }
+        final long directMemory = directPool.getMemoryUsed();
+        System.out.printf("%4ds %s: ingest %.0f records/s, data.mdb %d MiB (%d MiB used), lookups %.0f/s "
+                        + "p50 %.1f us p99 %.1f us p999 %.1f us, GC %d ms (%d collections), "
+                        + "direct memory %d KiB (%d buffers)%n",
+                TimeUnit.NANOSECONDS.toSeconds(to.nanos - start.nanos), label,
+                perSecond(to.inserted - from.inserted, nanos), to.dataFileSize / MIB, to.usedBytes / MIB,
+                perSecond(LatencyHistogram.count(latencies), nanos),
+                micros(LatencyHistogram.percentile(latencies, 50)),
+                micros(LatencyHistogram.percentile(latencies, 99)),
+                micros(LatencyHistogram.percentile(latencies, 99.9)),
+                to.gcMillis - from.gcMillis, to.gcCount - from.gcCount,
+                directMemory / 1024, directPool.getCount());
+    }
+
+    private static long dataFileSize(final IpRanger ipRanger) {
+        try {
+            return Files.size(ipRanger.getDataFile());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read size of " + ipRanger.getDataFile(), e);
+        }
+    }
+
+    private static double perSecond(final long count, final long nanos) {
+        return nanos == 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    private static double micros(final long nanos) {
+        return nanos / 1000.0;
+    }
+
+    /**
+     * State of the test at a point in time, reports are differences of two samples.
+     */
+    private static final class Sample {
+        private final long nanos;
+        private final long inserted;
+        private final List<long[]> latencies;
+        private final long gcCount;
+        private final long gcMillis;
+        private final long dataFileSize;
+        private final long usedBytes;
+
+        private Sample(final long nanos, final long inserted, final List<long[]> latencies, final long gcCount,
+                       final long gcMillis, final long dataFileSize, final long usedBytes) {
+            this.nanos = nanos;
+            this.inserted = inserted;
+            this.latencies = latencies;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+            this.dataFileSize = dataFileSize;
+            this.usedBytes = usedBytes;
+        }
+    }
+
+    /**
+     * Options of the test given as {@code name=value} arguments.
+     */
+    static final class Options {
+        private SyntheticRanges.Family family = SyntheticRanges.Family.IPV4;
+        private SyntheticRanges.PrefixDistribution distribution = SyntheticRanges.PrefixDistribution.REALISTIC;
+        // ranges bulk loaded before the soak
+        private int ranges = 1_000_000;
+        private int identities = 1000;
+        // percentage of the ranges nested in other ones
+        private int overlapPercent = 10;
+        private long seed = 1;
+        private int durationSeconds = 60;
+        private int reportIntervalSeconds = 10;
+        // ranges inserted by one transaction during the soak
+        private int batchSize = 10_000;
+        private int lookupThreads = 2;
+        // number of distinct looked up addresses and the Zipf exponent of their popularity
+        private int distinctAddresses = 1 << 16;
+        private double skew = 1;
+        private int lookupCacheSize;
+        private EnvProfile profile = EnvProfile.DURABLE;
+
+        static Options parse(final String[] args) {
+            final Options options = new Options();
+            for (final String arg : args) {
+                final int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    throw new IllegalArgumentException("Option must be name=value: " + arg);
+                }
+                final String value = arg.substring(equals + 1);
+                switch (arg.substring(0, equals)) {
+                    case "family":
+                        options.family = SyntheticRanges.Family.valueOf(value);
+                        break;
+                    case "distribution":
+                        options.distribution = SyntheticRanges.PrefixDistribution.valueOf(value);
+                        break;
+                    case "ranges":
+                        options.ranges = Integer.parseInt(value);
+                        break;
+                    case "identities":
+                        options.identities = Integer.parseInt(value);
+                        break;
+                    case "overlapPercent":
+                        options.overlapPercent = Integer.parseInt(value);
+                        break;
+                    case "seed":
+                        options.seed = Long.parseLong(value);
+                        break;
+                    case "duration":
+                        options.durationSeconds = Integer.parseInt(value);
+                        break;
+                    case "reportInterval":
+                        options.reportIntervalSeconds = Integer.parseInt(value);
+                        break;
+                    case "batchSize":
+                        options.batchSize = Integer.parseInt(value);
+                        break;
+                    case "lookupThreads":
+                        options.lookupThreads = Integer.parseInt(value);
+                        break;
+                    case "distinctAddresses":
+                        options.distinctAddresses = Integer.parseInt(value);
+                        break;
+                    case "skew":
+                        options.skew = Double.parseDouble(value);
+                        break;
+                    case "lookupCacheSize":
+                        options.lookupCacheSize = Integer.parseInt(value);
+                        break;
+                    case "profile":
+                        options.profile = EnvProfile.valueOf(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (options.lookupThreads < 1 || options.reportIntervalSeconds < 1) {
+                throw new IllegalArgumentException("At least one lookup thread and one second report interval needed");
+            }
+            return options;
+        }
+
+        @Override
+        public String toString() {
+            return "family=" + family + " distribution=" + distribution + " ranges=" + ranges
+                    + " identities=" + identities + " overlapPercent=" + overlapPercent + " seed=" + seed
+                    + " duration=" + durationSeconds + " reportInterval=" + reportIntervalSeconds
+                    + " batchSize=" + batchSize + " lookupThreads=" + lookupThreads
+                    + " distinctAddresses=" + distinctAddresses + " skew=" + skew
+                    + " lookupCacheSize=" + lookupCacheSize + " profile=" + profile;
+        }
+    }
+}
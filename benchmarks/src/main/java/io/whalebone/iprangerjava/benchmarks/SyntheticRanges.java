@@ -0,0 +1,263 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava.benchmarks;
+
+import io.whalebone.iprangerjava.RangeEntry;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Deterministic synthetic data set of ranges. The same seed gives the same ranges so the data set doesn't need
+ * to be kept in memory, it can be generated again (e.g. to pick addresses to look up).
+ * <p>
+ * The ranges are random networks, so a few of them can share the end address (the later one wins when inserted).
+ * A given percentage of them can be nested in the range generated before them instead, as more specific
+ * assignments of an allocation, with an identity of their own.
+ *
+ * @author Tomas Kozel
+ */
+public class SyntheticRanges {
+    private final Family family;
+    private final PrefixDistribution distribution;
+    private final int count;
+    private final int identities;
+    private final int overlapPercent;
+    private final long seed;
+
+    public enum Family {
+        IPV4, IPV6
+    }
+
+    public enum PrefixDistribution {
+        // every prefix length (/8 - /32, /16 - /128) is equally likely
+        UNIFORM,
+        // mostly /24 (IPv4) and /48 (IPv6) networks, as in real allocation data
+        REALISTIC
+    }
+
+    public SyntheticRanges(final Family family, final PrefixDistribution distribution, final int count,
+                           final int identities, final long seed) {
+        this(family, distribution, count, identities, 0, seed);
+    }
+
+    /**
+     * @param identities     number of distinct identities
+     * @param overlapPercent percentage of the ranges nested in the range generated before them
+     */
+    public SyntheticRanges(final Family family, final PrefixDistribution distribution, final int count,
+                           final int identities, final int overlapPercent, final long seed) {
+        if (overlapPercent < 0 || overlapPercent > 100) {
+            throw new IllegalArgumentException("Overlap percentage must be between 0 and 100: " + overlapPercent);
+        }
+        this.family = family;
+        this.distribution = distribution;
+        this.count = count;
+        this.identities = identities;
+        this.overlapPercent = overlapPercent;
+        this.seed = seed;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Stream<RangeEntry> stream() {
+        return StreamSupport.stream(Spliterators.spliterator(iterator(), count,
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED), false);
+    }
+
+    public Iterator<RangeEntry> iterator() {
+        final Generator generator = new Generator();
+        return new Iterator<RangeEntry>() {
+            private int generated;
+
+            @Override
+            public boolean hasNext() {
+                return generated < count;
+            }
+
+            @Override
+            public RangeEntry next() {
+                if (generated == count) {
+                    throw new NoSuchElementException();
+                }
+                generated++;
+                generator.next();
+                final String identity = "identity-" + generator.identity;
+                if (family == Family.IPV4) {
+                    return RangeEntry.of(toIp4String((int) generator.low) + "/" + generator.prefix, identity);
+                }
+                return RangeEntry.of(toIp6String(generator.high, generator.low) + "/" + generator.prefix, identity);
+            }
+        };
+    }
+
+    /**
+     * Picks addresses from the ranges of the data set, one random address of every range until the count is reached.
+     *
+     * @return IPv4 addresses as ints in the low 32 bits or IPv6 addresses as (high, low) pairs
+     */
+    public long[] addresses(final int addressCount, final long addressSeed) {
+        Generator generator = null;
+        final SplittableRandom hosts = new SplittableRandom(addressSeed);
+        final int stride = family == Family.IPV4 ? 1 : 2;
+        final long[] addresses = new long[addressCount * stride];
+        for (int i = 0; i < addressCount; i++) {
+            if (i % count == 0) {
+                // the data set can be smaller than the number of addresses, start again then
+                generator = new Generator();
+            }
+            generator.next();
+            final int prefix = generator.prefix;
+            if (family == Family.IPV4) {
+                addresses[i] = ((int) generator.low | (hosts.nextInt() & ~netMask(prefix))) & 0xFFFFFFFFL;
+            } else {
+                addresses[2 * i] = generator.high | (hosts.nextLong() & ~netMaskHigh(prefix));
+                addresses[2 * i + 1] = generator.low | (hosts.nextLong() & ~netMaskLow(prefix));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Picks a stream of addresses with skewed popularity, as the queries of a resolver: {@code distinct} addresses
+     * are picked by {@link #addresses(int, long)} and the one of rank k (starting from 1) is repeated with
+     * probability proportional to {@code 1 / k^exponent} (Zipf distribution).
+     *
+     * @param exponent 0 gives every address the same probability, about 1 is typical for DNS queries
+     * @return the addresses in the layout of {@link #addresses(int, long)}
+     */
+    public long[] skewedAddresses(final int addressCount, final int distinct, final double exponent,
+                                  final long addressSeed) {
+        final long[] pool = addresses(distinct, addressSeed);
+        final double[] cumulative = new double[distinct];
+        double sum = 0;
+        for (int rank = 0; rank < distinct; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        final SplittableRandom random = new SplittableRandom(addressSeed + 1);
+        final int stride = family == Family.IPV4 ? 1 : 2;
+        final long[] addresses = new long[addressCount * stride];
+        for (int i = 0; i < addressCount; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            rank = Math.min(rank < 0 ? -rank - 1 : rank, distinct - 1);
+            System.arraycopy(pool, rank * stride, addresses, i * stride, stride);
+        }
+        return addresses;
+    }
+
+    private int prefix(final SplittableRandom random) {
+        final boolean ipv4 = family == Family.IPV4;
+        if (distribution == PrefixDistribution.UNIFORM) {
+            return ipv4 ? 8 + random.nextInt(25) : 16 + random.nextInt(113);
+        }
+        final int percentile = random.nextInt(100);
+        if (ipv4) {
+            if (percentile < 60) {
+                return 24;
+            }
+            return percentile < 85 ? 16 + random.nextInt(8) : 25 + random.nextInt(8);
+        }
+        if (percentile < 50) {
+            return 48;
+        }
+        if (percentile < 70) {
+            return 32 + random.nextInt(16);
+        }
+        return percentile < 85 ? 56 : 64;
+    }
+
+    private static int netMask(final int prefix) {
+        return prefix == 0 ? 0 : -1 << (32 - prefix);
+    }
+
+    private static long netMaskHigh(final int prefix) {
+        return prefix == 0 ? 0 : prefix >= 64 ? -1L : -1L << (64 - prefix);
+    }
+
+    private static long netMaskLow(final int prefix) {
+        return prefix <= 64 ? 0 : -1L << (128 - prefix);
+    }
+
+    static String toIp4String(final int address) {
+        return (address >>> 24) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+
+    static String toIp6String(final long high, final long low) {
+        final StringBuilder sb = new StringBuilder(39);
+        for (int group = 0; group < 8; group++) {
+            if (group > 0) {
+                sb.append(':');
+            }
+            final long half = group < 4 ? high : low;
+            sb.append(Integer.toHexString((int) (half >>> (48 - 16 * (group % 4))) & 0xFFFF));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Networks of the data set one after another. The iterator and the address picking share it so that
+     * they consume the same random numbers.
+     */
+    private final class Generator {
+        private final SplittableRandom random = new SplittableRandom(seed);
+        private final int maxPrefix = family == Family.IPV4 ? 32 : 128;
+        private int prefix = -1;
+        // IPv4 network is in the low 32 bits of low
+        private long high;
+        private long low;
+        private int identity;
+
+        void next() {
+            // the random numbers are drawn in the same order as before the overlaps were added
+            if (overlapPercent > 0 && prefix >= 0 && prefix < maxPrefix && random.nextInt(100) < overlapPercent) {
+                nest();
+                return;
+            }
+            prefix = prefix(random);
+            identity = random.nextInt(identities);
+            if (family == Family.IPV4) {
+                low = random.nextInt() & netMask(prefix);
+            } else {
+                high = random.nextLong() & netMaskHigh(prefix);
+                low = random.nextLong() & netMaskLow(prefix);
+            }
+        }
+
+        /**
+         * Replaces the network by a more specific one nested in it.
+         */
+        private void nest() {
+            final int parent = prefix;
+            prefix = parent + 1 + random.nextInt(Math.min(maxPrefix - parent, 8));
+            identity = random.nextInt(identities);
+            if (family == Family.IPV4) {
+                low = (int) low | (random.nextInt() & ~netMask(parent) & netMask(prefix));
+            } else {
+                high |= random.nextLong() & ~netMaskHigh(parent) & netMaskHigh(prefix);
+                low |= random.nextLong() & ~netMaskLow(parent) & netMaskLow(prefix);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Lookup of many addresses of one family in one read transaction. The addresses are sorted and for every
+ * stored mask, from the longest one, the addresses not resolved yet are probed in ascending order by a single
+ * cursor. The probes only move the cursor forward and a probe lower than the cursor's key misses without
+ * touching the database, so a probe costs a search only when it's past the cursor. Stepping the cursor by
+ * {@code next} instead doesn't pay off as every step is a native call as expensive as the search. The results
+ * are the same as of {@link IpRanger#lookup(byte[])} of the addresses one by one.
+ *
+ * @author Tomas Kozel
+ * @see IpRanger#lookupAll(int[], String[])
+ */
+class BatchLookup {
+    private final boolean ipv6;
+    private final Dbi<ByteBuffer> rangesToIdentity;
+    private final Dbi<ByteBuffer> masks;
+    private final ByteBuffer key;
+    // the addresses, IPv4 ones in the low part only
+    private final long[] high;
+    private final long[] low;
+
+    BatchLookup(final IpRanger ipRanger, final boolean ipv6, final long[] high, final long[] low) {
+        this.ipv6 = ipv6;
+        this.rangesToIdentity = ipRanger.getRangesToIdentity(ipv6);
+        this.masks = ipRanger.getMasks(ipv6);
+        this.key = ByteBuffer.allocateDirect(ipv6 ? 16 : 4);
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * @param results receives the identities in the order of the addresses, null if there is no range
+     */
+    void lookup(final Txn<ByteBuffer> txn, final IdentityCodec identityCodec, final String[] results) {
+        final int size = low.length;
+        Arrays.fill(results, 0, size, null);
+        final boolean[] prefixes = new boolean[ipv6 ? 129 : 33];
+        final int maxPrefix = IpRanger.readMasks(txn, masks, prefixes);
+        final IdentityTable identities = new IdentityTable(txn, identityCodec);
+        // indices of the unresolved addresses in ascending order of the addresses
+        final int[] order = sort();
+        int unresolved = size;
+        try (Cursor<ByteBuffer> cursor = rangesToIdentity.openCursor(txn)) {
+            for (int prefix = maxPrefix; prefix >= 0 && unresolved > 0; prefix--) {
+                if (prefixes[prefix]) {
+                    unresolved = new Walk(cursor, identities, prefix).resolve(order, unresolved, results);
+                }
+            }
+        }
+    }
+
+    private int[] sort() {
+        final int size = low.length;
+        final int[] order = new int[size];
+        if (!ipv6) {
+            // the address in the upper half and the index in the lower half sort as signed longs
+            final long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = (low[i] ^ 0x80000000L) << 32 | i;
+            }
+            Arrays.sort(keys);
+            for (int i = 0; i < size; i++) {
+                order[i] = (int) keys[i];
+            }
+            return order;
+        }
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[size], 0, size);
+        return order;
+    }
+
+    private void mergeSort(final int[] indices, final int[] buffer, final int from, final int to) {
+        if (to - from < 2) {
+            return;
+        }
+        final int middle = (from + to) >>> 1;
+        mergeSort(indices, buffer, from, middle);
+        mergeSort(indices, buffer, middle, to);
+        if (compare(indices[middle - 1], indices[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(indices, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || left < middle && compare(buffer[left], buffer[right]) <= 0) {
+                indices[i] = buffer[left++];
+            } else {
+                indices[i] = buffer[right++];
+            }
+        }
+    }
+
+    private int compare(final int a, final int b) {
+        final int order = Long.compareUnsigned(high[a], high[b]);
+        return order != 0 ? order : Long.compareUnsigned(low[a], low[b]);
+    }
+
+    /**
+     * One pass of the cursor over the unresolved addresses probing them with one mask.
+     */
+    private final class Walk {
+        private final Cursor<ByteBuffer> cursor;
+        private final IdentityTable identities;
+        private final int prefix;
+        private boolean positioned;
+        private boolean exhausted;
+        // the key of the cursor
+        private long keyHigh;
+        private long keyLow;
+
+        private Walk(final Cursor<ByteBuffer> cursor, final IdentityTable identities, final int prefix) {
+            this.cursor = cursor;
+            this.identities = identities;
+            this.prefix = prefix;
+        }
+
+        /**
+         * @return number of addresses left unresolved, their indices are moved to the start of the order
+         */
+        private int resolve(final int[] order, final int size, final String[] results) {
+            int unresolved = 0;
+            boolean probed = false;
+            long lastHigh = 0;
+            long lastLow = 0;
+            int lastOrdinal = -1;
+            for (int i = 0; i < size; i++) {
+                final int index = order[i];
+                final long probeHigh;
+                final long probeLow;
+                if (ipv6) {
+                    probeHigh = prefix >= 64 ? high[index] : high[index] | hostBits(prefix);
+                    probeLow = prefix >= 64 ? low[index] | hostBits(prefix - 64) : -1L;
+                } else {
+                    probeHigh = 0;
+                    probeLow = low[index] | hostBits(prefix + 32) & 0xFFFFFFFFL;
+                }
+                // addresses of the same block share the probe
+                if (!probed || probeHigh != lastHigh || probeLow != lastLow) {
+                    lastOrdinal = probe(probeHigh, probeLow);
+                    lastHigh = probeHigh;
+                    lastLow = probeLow;
+                    probed = true;
+                }
+                if (lastOrdinal >= 0) {
+                    results[index] = identities.get(lastOrdinal);
+                } else {
+                    order[unresolved++] = index;
+                }
+            }
+            return unresolved;
+        }
+
+        /**
+         * @return ordinal of the identity of the range ending with the probe or -1 if there is none
+         */
+        private int probe(final long probeHigh, final long probeLow) {
+            if (exhausted) {
+                return -1;
+            }
+            if (!positioned || compareKey(probeHigh, probeLow) < 0) {
+                key.clear();
+                if (ipv6) {
+                    key.putLong(probeHigh).putLong(probeLow);
+                } else {
+                    key.putInt((int) probeLow);
+                }
+                key.flip();
+                positioned = true;
+                if (!cursor.get(key, GetOp.MDB_SET_RANGE)) {
+                    exhausted = true;
+                    return -1;
+                }
+                readKey();
+            }
+            return compareKey(probeHigh, probeLow) == 0 ? identities.intern(cursor.val()) : -1;
+        }
+
+        /**
+         * @return the order of the cursor's key to the probe
+         */
+        private int compareKey(final long probeHigh, final long probeLow) {
+            final int order = Long.compareUnsigned(keyHigh, probeHigh);
+            return order != 0 ? order : Long.compareUnsigned(keyLow, probeLow);
+        }
+
+        private void readKey() {
+            final ByteBuffer cursorKey = cursor.key();
+            if (ipv6) {
+                keyHigh = IpRanger.getLong(cursorKey, cursorKey.position());
+                keyLow = IpRanger.getLong(cursorKey, cursorKey.position() + 8);
+            } else {
+                keyLow = IpRanger.getIp4(cursorKey) & 0xFFFFFFFFL;
+            }
+        }
+    }
+
+    /**
+     * @return the lowest {@code 64 - prefix} bits set
+     */
+    private static long hostBits(final int prefix) {
+        return prefix >= 64 ? 0 : -1L >>> prefix;
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.utils.Cidr;
+import io.whalebone.iprangerjava.utils.CidrParser;
+import io.whalebone.iprangerjava.utils.ExternalSorter;
+import org.lmdbjava.Dbi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.lmdbjava.PutFlags.MDB_APPEND;
+import static org.lmdbjava.PutFlags.MDB_APPENDDUP;
+
+/**
+ * Rebuilds the ranges from scratch. The added ranges are sorted (spilling sorted runs to disk when they
+ * exceed {@link Configuration#getBulkLoadMemoryBudget()}) and {@link #load()} writes them in key order
+ * with {@code MDB_APPEND} / {@code MDB_APPENDDUP} to the emptied ranges, identities and masks databases
+ * which avoids random page splits and leaves densely packed pages.
+ * <p>
+ * All the ranges stored before the load are removed. When a range (end address) is added more than once,
+ * the last identity wins and the masks of all of them are stored as with
+ * {@link IpRanger#insertIpRange(String, String)}.
+ * <p>
+ * With the identity dictionary the identities keep their stored ids and the new ones are appended to the
+ * dictionary before the ranges are written, so the stored ranges resolve to their identities until they are
+ * replaced, even when the load fails.
+ * <p>
+ * With {@link Configuration#getOverlapPolicy()} set, the added ranges are kept in memory and normalized
+ * (see {@link NormalizationReport}) before they are sorted.
+ * <p>
+ * With {@link Configuration#getEnvSizeGrowthFactor()} set, the records written since the last commit are kept
+ * in memory to be written again after the map grows, so large loads should set
+ * {@link Configuration#getBatchCommitSize()}. The load is not atomic then: each address family is emptied and
+ * its masks are written by the first commit, the ranges are visible to lookups as they are committed and a failed
+ * load leaves the family partially loaded. IPv4 ranges are loaded before IPv6 ones in any case.
+ * <p>
+ * The loader is not thread safe.
+ *
+ * @author Tomas Kozel
+ */
+public class BulkLoader implements Closeable {
+    private static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    private static final int SEQUENCE_SIZE = Long.BYTES;
+
+    private final IpRanger ipRanger;
+    private final CidrParser cidrParser = new CidrParser();
+    private final Cidr cidr = new Cidr();
+    private final InsertReport report = new InsertReport();
+    private final long memoryBudget;
+    private final Path tempDir;
+    // records: end address, sequence, mask, identity
+    private final ExternalSorter ip4Ranges;
+    private final ExternalSorter ip6Ranges;
+    private final boolean[] ip4Masks = new boolean[Cidr.IPV4_SIZE * 8 + 1];
+    private final boolean[] ip6Masks = new boolean[Cidr.IPV6_SIZE * 8 + 1];
+    // with the dictionary the records have ordinals of the identities, translated to their ids by load
+    private final Map<ByteBuffer, Integer> identityOrdinals = new HashMap<>();
+    private final List<byte[]> identitiesByOrdinal = new ArrayList<>();
+    private int[] identityIds;
+    private final boolean dictionary;
+    private final RangeNormalizer normalizer;
+    private long sequence;
+    private boolean loaded;
+
+    BulkLoader(final IpRanger ipRanger) {
+        this.ipRanger = ipRanger;
+        this.dictionary = ipRanger.getIdentityCodec().isDictionary();
+        final Configuration conf = ipRanger.getConfiguration();
+        this.normalizer = conf.getOverlapPolicy() != null ? new RangeNormalizer(conf.getOverlapPolicy()) : null;
+        this.memoryBudget = conf.getBulkLoadMemoryBudget() > 0 ? conf.getBulkLoadMemoryBudget() : DEFAULT_MEMORY_BUDGET;
+        try {
+            this.tempDir = conf.getBulkLoadTempDir() != null
+                    ? conf.getBulkLoadTempDir()
+                    : Files.createTempDirectory("ipranger_bulk_");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create temporary directory", e);
+        }
+        // ranges of both families are collected at the same time
+        this.ip4Ranges = new ExternalSorter(memoryBudget / 2, tempDir);
+        this.ip6Ranges = new ExternalSorter(memoryBudget / 2, tempDir);
+    }
+
+    public boolean add(final RangeEntry entry) {
+        if (entry == null) {
+            checkNotLoaded();
+            report.skipped();
+            return false;
+        }
+        return add(entry.getIpRange(), entry.getIdentity());
+    }
+
+    /**
+     * Adds the range to the load.
+     *
+     * @return false if the range was skipped because it's empty, true otherwise
+     * @throws IllegalArgumentException if the range or identity is invalid, the range is counted as failed
+     */
+    public boolean add(final String ipRange, final String identity) {
+        checkNotLoaded();
+        if (ipRange == null || identity == null || ipRange.trim().isEmpty() || identity.trim().isEmpty()) {
+            report.skipped();
+            return false;
+        }
+        final byte[] identityBytes;
+        try {
+            cidrParser.parse(ipRange, cidr);
+            // validates the mask the same way as the insert does, masks are written by load
+            ipRanger.toMaskBytes(cidr.getPrefixLength());
+            identityBytes = toStoredIdentity(ipRanger.toIdentityBytes(identity));
+        } catch (Exception e) {
+            report.failed();
+            ipRanger.getMetrics().rangeRejected();
+            throw new IllegalArgumentException("Unparsable ip range " + ipRange +
+                    " of identity " + identity, e);
+        }
+        if (normalizer != null) {
+            normalizer.add(cidr, identityBytes);
+        } else {
+            (cidr.isIpv6() ? ip6Ranges : ip4Ranges).add(toRecord(cidr, identityBytes));
+        }
+        return true;
+    }
+
+    /**
+     * @return record of the range: end address, sequence, mask, identity
+     */
+    private byte[] toRecord(final Cidr range, final byte[] identityBytes) {
+        final int addressSize = range.getAddressSize();
+        final byte[] record = new byte[addressSize + SEQUENCE_SIZE + 1 + identityBytes.length];
+        range.writeEndAddress(record, 0);
+        final long seq = sequence++;
+        for (int i = 0; i < SEQUENCE_SIZE; i++) {
+            record[addressSize + i] = (byte) (seq >>> (56 - 8 * i));
+        }
+        record[addressSize + SEQUENCE_SIZE] = (byte) range.getPrefixLength();
+        System.arraycopy(identityBytes, 0, record, addressSize + SEQUENCE_SIZE + 1, identityBytes.length);
+        // the mask is stored even if the range gets overwritten by a later one
+        (range.isIpv6() ? ip6Masks : ip4Masks)[range.getPrefixLength()] = true;
+        return record;
+    }
+
+    /**
+     * Replaces the stored ranges by the added ones.
+     *
+     * @return counts of inserted ranges, skipped entries (empty ones and ranges overwritten by a later one)
+     * and failed entries
+     */
+    public InsertReport load() {
+        checkNotLoaded();
+        loaded = true;
+        if (dictionary) {
+            loadDictionary();
+        }
+        load(false, ip4Ranges);
+        load(true, ip6Ranges);
+        if (normalizer != null) {
+            for (long i = 0; i < normalizer.getReport().getRejected(); i++) {
+                report.failed();
+                ipRanger.getMetrics().rangeRejected();
+            }
+        }
+        ipRanger.syncDeferred();
+        ipRanger.rangesWritten(true);
+        return report;
+    }
+
+    public InsertReport getReport() {
+        return report;
+    }
+
+    /**
+     * @return changes done by the normalization or null if the ranges are not normalized
+     */
+    public NormalizationReport getNormalizationReport() {
+        return normalizer != null ? normalizer.getReport() : null;
+    }
+
+    /**
+     * Removes the temporary files.
+     */
+    @Override
+    public void close() {
+        ip4Ranges.close();
+        ip6Ranges.close();
+        if (ipRanger.getConfiguration().getBulkLoadTempDir() == null) {
+            try {
+                Files.deleteIfExists(tempDir);
+            } catch (IOException e) {
+                tempDir.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    private void load(final boolean ipv6, final ExternalSorter ranges) {
+        final int addressSize = ipv6 ? Cidr.IPV6_SIZE : Cidr.IPV4_SIZE;
+        final Configuration conf = ipRanger.getConfiguration();
+        final Dbi<ByteBuffer> rangesToIdentity = ipRanger.getRangesToIdentity(ipv6);
+        final Dbi<ByteBuffer> identitiesToRanges = ipRanger.getIdentitiesToRanges(ipv6);
+        final Dbi<ByteBuffer> masks = ipRanger.getMasks(ipv6);
+        final ByteBuffer key = ByteBuffer.allocateDirect(Math.max(addressSize, conf.getMaxIdentityKeySize()));
+        final ByteBuffer value = ByteBuffer.allocateDirect(Math.max(addressSize, conf.getMaxIdentityKeySize()));
+        final boolean[] usedMasks = ipv6 ? ip6Masks : ip4Masks;
+        if (normalizer != null) {
+            normalizer.normalize(ipv6, (block, identity) -> ranges.add(toRecord(block, identity)));
+        }
+
+        try (ExternalSorter identities = new ExternalSorter(memoryBudget / 2, tempDir)) {
+            try (Writer writer = new Writer(ipRanger)) {
+                writer.write(txn -> {
+                    rangesToIdentity.drop(txn);
+                    identitiesToRanges.drop(txn);
+                    masks.drop(txn);
+                    // masks go first so that the ranges resolve as soon as they are committed
+                    for (int mask = 0; mask < usedMasks.length; mask++) {
+                        if (usedMasks[mask]) {
+                            final byte[] maskBytes = ipRanger.toMaskBytes(mask);
+                            key.clear();
+                            key.put(maskBytes).flip();
+                            value.clear();
+                            value.put(maskBytes).flip();
+                            masks.put(txn, key, value);
+                        }
+                    }
+                    return true;
+                });
+
+                // ranges are sorted by end address and sequence, the last of the same end address wins
+                final Iterator<byte[]> sortedRanges = ranges.sorted();
+                byte[] pending = null;
+                while (sortedRanges.hasNext()) {
+                    final byte[] record = sortedRanges.next();
+                    if (pending != null && !samePrefix(pending, record, addressSize)) {
+                        writeRange(writer, rangesToIdentity, identities, pending, addressSize, key, value);
+                    } else if (pending != null) {
+                        report.skipped();
+                    }
+                    pending = record;
+                }
+                if (pending != null) {
+                    writeRange(writer, rangesToIdentity, identities, pending, addressSize, key, value);
+                }
+
+                // identity (C string or big endian id) followed by end address
+                final Iterator<byte[]> sortedIdentities = identities.sorted();
+                byte[] previous = null;
+                while (sortedIdentities.hasNext()) {
+                    final byte[] record = sortedIdentities.next();
+                    final int identityLength = record.length - addressSize;
+                    final boolean sameIdentity = previous != null && previous.length == record.length
+                            && samePrefix(previous, record, identityLength);
+                    writer.write(txn -> {
+                        key.clear();
+                        if (dictionary) {
+                            key.put(DictionaryIdentityCodec.toBytes(getInt(record))).flip();
+                        } else {
+                            key.put(record, 0, identityLength).flip();
+                        }
+                        value.clear();
+                        value.put(record, identityLength, addressSize).flip();
+                        identitiesToRanges.put(txn, key, value, sameIdentity ? MDB_APPENDDUP : MDB_APPEND);
+                        return true;
+                    });
+                    previous = record;
+                    writer.written();
+                }
+
+                writer.commit();
+            }
+        }
+    }
+
+    private void writeRange(final Writer writer, final Dbi<ByteBuffer> rangesToIdentity,
+                            final ExternalSorter identities, final byte[] record, final int addressSize,
+                            final ByteBuffer key, final ByteBuffer value) {
+        final int identityOffset = addressSize + SEQUENCE_SIZE + 1;
+        final int identityLength = record.length - identityOffset;
+        writer.write(txn -> {
+            key.clear();
+            key.put(record, 0, addressSize).flip();
+            value.clear();
+            if (dictionary) {
+                value.put(DictionaryIdentityCodec.toBytes(toStoredId(record, identityOffset))).flip();
+            } else {
+                value.put(record, identityOffset, identityLength).flip();
+            }
+            ipRanger.rangeStored(key);
+            rangesToIdentity.put(txn, key, value, MDB_APPEND);
+            return true;
+        });
+
+        final byte[] identityRecord = new byte[identityLength + addressSize];
+        if (dictionary) {
+            // native byte order ids don't sort as the integer keys do
+            putInt(identityRecord, toStoredId(record, identityOffset));
+        } else {
+            System.arraycopy(record, identityOffset, identityRecord, 0, identityLength);
+        }
+        System.arraycopy(record, 0, identityRecord, identityLength, addressSize);
+        identities.add(identityRecord);
+        report.inserted();
+        writer.written();
+    }
+
+    /**
+     * @param identity identity as a C string
+     * @return identity as it's going to be sorted, its ordinal with the dictionary
+     */
+    private byte[] toStoredIdentity(final byte[] identity) {
+        if (!dictionary) {
+            return identity;
+        }
+        Integer ordinal = identityOrdinals.get(ByteBuffer.wrap(identity));
+        if (ordinal == null) {
+            ordinal = identitiesByOrdinal.size();
+            identityOrdinals.put(ByteBuffer.wrap(identity), ordinal);
+            identitiesByOrdinal.add(identity);
+        }
+        return DictionaryIdentityCodec.toBytes(ordinal);
+    }
+
+    /**
+     * @return dictionary id of the identity whose ordinal is in the record at the offset
+     */
+    private int toStoredId(final byte[] record, final int offset) {
+        return identityIds[DictionaryIdentityCodec.toId(ByteBuffer.wrap(record, offset, DictionaryIdentityCodec.ID_SIZE))];
+    }
+
+    /**
+     * Registers the identities of the load in the dictionary, the stored ones keep their ids.
+     */
+    private void loadDictionary() {
+        final DictionaryIdentityCodec codec = (DictionaryIdentityCodec) ipRanger.getIdentityCodec();
+        identityIds = new int[identitiesByOrdinal.size()];
+        try (Writer writer = new Writer(ipRanger)) {
+            for (int i = 0; i < identitiesByOrdinal.size(); i++) {
+                final int ordinal = i;
+                writer.write(txn -> {
+                    identityIds[ordinal] = DictionaryIdentityCodec.toId(
+                            ByteBuffer.wrap(codec.encode(txn, identitiesByOrdinal.get(ordinal))));
+                    return true;
+                });
+                writer.written();
+            }
+            writer.commit();
+        }
+    }
+
+    private static int getInt(final byte[] bytes) {
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+    }
+
+    private static void putInt(final byte[] bytes, final int value) {
+        bytes[0] = (byte) (value >>> 24);
+        bytes[1] = (byte) (value >>> 16);
+        bytes[2] = (byte) (value >>> 8);
+        bytes[3] = (byte) value;
+    }
+
+    private static boolean samePrefix(final byte[] a, final byte[] b, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkNotLoaded() {
+        if (loaded) {
+            throw new IllegalStateException("Bulk load has been already done");
+        }
+    }
+
+    /**
+     * Write transaction committed every {@link Configuration#getBatchCommitSize()} writes if set.
+     */
+    static final class Writer implements Closeable {
+        private final IpRanger ipRanger;
+        private WriteTxn txn;
+        private int uncommitted;
+
+        Writer(final IpRanger ipRanger) {
+            this.ipRanger = ipRanger;
+            this.txn = new WriteTxn(ipRanger);
+        }
+
+        void write(final WriteTxn.Write write) {
+            txn.write(write);
+        }
+
+        /**
+         * Counts a written range or record, commits if there are enough of them.
+         */
+        void written() {
+            uncommitted++;
+            final int commitSize = ipRanger.getConfiguration().getBatchCommitSize();
+            if (commitSize > 0 && uncommitted >= commitSize) {
+                txn.commit(uncommitted);
+                txn = new WriteTxn(ipRanger);
+                uncommitted = 0;
+            }
+        }
+
+        void commit() {
+            txn.commit(uncommitted);
+        }
+
+        @Override
+        public void close() {
+            txn.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.utils.CUtils;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Identities stored as C strings, the format the C resolver reads.
+ *
+ * @author Tomas Kozel
+ */
+class CStringIdentityCodec implements IdentityCodec {
+    static final CStringIdentityCodec INSTANCE = new CStringIdentityCodec();
+
+    private CStringIdentityCodec() {
+    }
+
+    @Override
+    public byte[] encode(final Txn<ByteBuffer> txn, final byte[] identity) {
+        return identity;
+    }
+
+    @Override
+    public byte[] find(final Txn<ByteBuffer> txn, final byte[] identity) {
+        return identity;
+    }
+
+    @Override
+    public String decode(final Txn<ByteBuffer> txn, final ByteBuffer stored) {
+        return CUtils.fromCString(stored);
+    }
+
+    @Override
+    public boolean isDictionary() {
+        return false;
+    }
+}
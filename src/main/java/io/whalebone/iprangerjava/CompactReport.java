@@ -0,0 +1,45 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Sizes of the environment before and after {@link IpRanger#compact(java.nio.file.Path)}.
+ *
+ * @author Tomas Kozel
+ */
+@Getter
+@ToString
+public class CompactReport {
+    // bytes of the pages used by the source, not the size of its data file which can include unused map space
+    private final long sourceSize;
+    private final long compactedSize;
+
+    CompactReport(final long sourceSize, final long compactedSize) {
+        this.sourceSize = sourceSize;
+        this.compactedSize = compactedSize;
+    }
+
+    /**
+     * @return bytes of the free pages left out by the compacted copy
+     */
+    public long getReclaimed() {
+        return sourceSize - compactedSize;
+    }
+}
@@ -19,6 +19,8 @@ package io.whalebone.iprangerjava;
 import lombok.Builder;
 import lombok.Getter;
 
+import java.nio.file.Path;
+
 /**
  * @author Tomas Kozel
  */
@@ -26,7 +28,17 @@ import lombok.Getter;
 @Getter
 @Builder
 public class Configuration {
+    // flags the environment is opened with, null means EnvProfile.DURABLE
+    private EnvProfile envProfile;
+    // size of the map, with growth enabled only the initial one
     private long maxEnvSize;
+    // factor the map size is multiplied by when a write finds the map full, the map doesn't grow if not over 1
+    private double envSizeGrowthFactor;
+    // the map doesn't grow over this size, 0 means no limit
+    private long envSizeLimit;
+    // how long the growth waits for the open transactions to finish (new lookups wait meanwhile), the write
+    // fails when they don't, 0 means 1 second
+    private long envSizeGrowthTimeoutMillis;
     private String ip4RangesToIdentityDbName;
     private String identitiesToIp4RangesDbName;
     private String ip4MasksDbName;
@@ -35,4 +47,40 @@ public class Configuration {
     private String ip6MasksDbName;
     private int maxMaskKeySize;
     private int maxIdentityKeySize;
+    // number of ranges written by a batch before its transaction is committed, 0 means commit only at the end
+    private int batchCommitSize;
+    // heap size of sorted records kept in memory by bulk load before they are spilled to disk, 0 means 64 MiB
+    private long bulkLoadMemoryBudget;
+    // directory for the sorted runs spilled by bulk load, null means the default temporary directory
+    private Path bulkLoadTempDir;
+    // how batches (including ingest) and bulk loads resolve overlapping ranges when they normalize them before
+    // writing, null means the ranges are written as they are added, IpRangerWriter can't be used when it's set
+    private OverlapPolicy overlapPolicy;
+    // whether lookups keep Bloom filters of the stored ranges to skip the probes which can't match
+    private boolean probeFilters;
+    // target false positive rate of the probe filters, 0 means 0.01
+    private double probeFilterFalsePositiveRate;
+    // number of lookup results cached in memory, 0 means no cache, writes of other processes are not seen by it
+    private int lookupCacheSize;
+    // number of threads parsing the ingested lines, 0 means the number of available processors
+    private int ingestParallelism;
+    // number of lines parsed by one ingest task, 0 means 1024
+    private int ingestChunkSize;
+    // number of parsed chunks waiting for the writer before reading blocks, 0 means twice the parallelism
+    private int ingestQueueCapacity;
+    // how long the writer waits for more changes to commit them together, 0 means commit what is queued
+    private long groupCommitLatencyMillis;
+    // maximum number of changes committed together by the writer, 0 means no limit
+    private int groupCommitMaxSize;
+    // whether a published snapshot is compacted (copied without free pages)
+    private boolean snapshotCompact;
+    // number of previous snapshot generations kept next to the published one
+    private int snapshotRetention;
+    // whether identities are stored as 4 byte ids of a dictionary instead of C strings, the C resolver can't read it
+    private boolean identityDictionary;
+    // names of the dictionary databases, null means "identities_to_ids" and "ids_to_identities"
+    private String identitiesToIdsDbName;
+    private String idsToIdentitiesDbName;
+    // receiver of timings and counters, null means no metrics
+    private IpRangerMetrics metrics;
 }
@@ -0,0 +1,139 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.utils.CUtils;
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Identities stored as 4 byte ids (unsigned ints in the native byte order as required by {@code MDB_INTEGERKEY})
+ * assigned by a dictionary. The dictionary consists of identity (C string) to id and id to identity databases.
+ * Ids are never reused, ids of identities which don't own any range anymore stay in the dictionary.
+ *
+ * @author Tomas Kozel
+ */
+class DictionaryIdentityCodec implements IdentityCodec {
+    static final int ID_SIZE = Integer.BYTES;
+
+    private final Dbi<ByteBuffer> identitiesToIds;
+    private final Dbi<ByteBuffer> idsToIdentities;
+    // used by the single writer only
+    private final ByteBuffer identityKey;
+    private final ByteBuffer idKey = ByteBuffer.allocateDirect(ID_SIZE).order(ByteOrder.nativeOrder());
+    // find is called by readers too
+    private final ThreadLocal<ByteBuffer> findKey;
+    private final ThreadLocal<ByteBuffer> decodeKey =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(ID_SIZE).order(ByteOrder.nativeOrder()));
+
+    DictionaryIdentityCodec(final Dbi<ByteBuffer> identitiesToIds, final Dbi<ByteBuffer> idsToIdentities,
+                            final int maxIdentitySize) {
+        this.identitiesToIds = identitiesToIds;
+        this.idsToIdentities = idsToIdentities;
+        this.identityKey = ByteBuffer.allocateDirect(maxIdentitySize);
+        this.findKey = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(maxIdentitySize));
+    }
+
+    Dbi<ByteBuffer> getIdentitiesToIds() {
+        return identitiesToIds;
+    }
+
+    Dbi<ByteBuffer> getIdsToIdentities() {
+        return idsToIdentities;
+    }
+
+    @Override
+    public byte[] encode(final Txn<ByteBuffer> txn, final byte[] identity) {
+        identityKey.clear();
+        identityKey.put(identity).flip();
+        final byte[] storedId = find(txn, identityKey);
+        if (storedId != null) {
+            return storedId;
+        }
+        final byte[] id = toBytes(nextId(txn));
+        idKey.clear();
+        idKey.put(id).flip();
+        identitiesToIds.put(txn, identityKey, idKey);
+        idsToIdentities.put(txn, idKey, identityKey);
+        return id;
+    }
+
+    @Override
+    public byte[] find(final Txn<ByteBuffer> txn, final byte[] identity) {
+        final ByteBuffer key = findKey.get();
+        key.clear();
+        key.put(identity).flip();
+        return find(txn, key);
+    }
+
+    private byte[] find(final Txn<ByteBuffer> txn, final ByteBuffer key) {
+        final ByteBuffer storedId = identitiesToIds.get(txn, key);
+        if (storedId == null) {
+            return null;
+        }
+        final byte[] id = new byte[ID_SIZE];
+        storedId.duplicate().get(id);
+        return id;
+    }
+
+    @Override
+    public String decode(final Txn<ByteBuffer> txn, final ByteBuffer stored) {
+        final ByteBuffer key = decodeKey.get();
+        key.clear();
+        key.put(stored.duplicate()).flip();
+        final ByteBuffer identity = idsToIdentities.get(txn, key);
+        if (identity == null) {
+            throw new IllegalStateException("Unknown identity id " + toId(stored));
+        }
+        return CUtils.fromCString(identity);
+    }
+
+    @Override
+    public boolean isDictionary() {
+        return true;
+    }
+
+    /**
+     * @return id in the stored format
+     */
+    static byte[] toBytes(final int id) {
+        return ByteBuffer.allocate(ID_SIZE).order(ByteOrder.nativeOrder()).putInt(id).array();
+    }
+
+    /**
+     * @return id stored at the buffer's position
+     */
+    static int toId(final ByteBuffer stored) {
+        return stored.duplicate().order(ByteOrder.nativeOrder()).getInt(stored.position());
+    }
+
+    private int nextId(final Txn<ByteBuffer> txn) {
+        try (Cursor<ByteBuffer> cursor = idsToIdentities.openCursor(txn)) {
+            if (!cursor.last()) {
+                return 0;
+            }
+            final int last = toId(cursor.key());
+            if (last == -1) {
+                throw new IllegalStateException("No identity id left");
+            }
+            return last + 1;
+        }
+    }
+}
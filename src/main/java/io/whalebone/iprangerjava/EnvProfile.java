@@ -0,0 +1,58 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.EnvFlags;
+
+/**
+ * Durability profiles the environment can be opened with.
+ *
+ * @author Tomas Kozel
+ * @see Configuration#getEnvProfile()
+ */
+public enum EnvProfile {
+    /**
+     * Every commit is synced to disk. For incremental online updates.
+     */
+    DURABLE(false),
+    /**
+     * Commits are not synced ({@code MDB_NOSYNC}, {@code MDB_NOMETASYNC}) and pages are written directly to
+     * the memory map ({@code MDB_WRITEMAP}). The environment is synced once when a batch, bulk load or sync
+     * finishes and when it's closed. For full rebuilds: a system crash during the load can lose or corrupt
+     * the data, so it should be rebuilt then.
+     */
+    BULK_LOAD(true, EnvFlags.MDB_NOSYNC, EnvFlags.MDB_NOMETASYNC, EnvFlags.MDB_WRITEMAP);
+
+    private final boolean syncDeferred;
+    private final EnvFlags[] flags;
+
+    EnvProfile(final boolean syncDeferred, final EnvFlags... flags) {
+        this.syncDeferred = syncDeferred;
+        this.flags = flags;
+    }
+
+    /**
+     * @return whether the commits are synced explicitly when the write finishes instead of on every commit
+     */
+    public boolean isSyncDeferred() {
+        return syncDeferred;
+    }
+
+    EnvFlags[] getFlags() {
+        return flags.clone();
+    }
+}
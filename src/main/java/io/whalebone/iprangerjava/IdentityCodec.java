@@ -0,0 +1,55 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Translates identities to the values stored in the ranges databases (and used as keys of the identities
+ * to ranges databases) and back.
+ *
+ * @author Tomas Kozel
+ */
+interface IdentityCodec {
+
+    /**
+     * @param txn      write transaction the identity can be registered in
+     * @param identity identity as a C string
+     * @return identity as stored in the databases
+     */
+    byte[] encode(Txn<ByteBuffer> txn, byte[] identity);
+
+    /**
+     * Same as {@link #encode(Txn, byte[])} without registering the identity.
+     *
+     * @param identity identity as a C string
+     * @return identity as stored in the databases or null if it is not registered
+     */
+    byte[] find(Txn<ByteBuffer> txn, byte[] identity);
+
+    /**
+     * @param stored identity as stored in the databases, neither its position nor its limit is changed
+     * @return the identity
+     */
+    String decode(Txn<ByteBuffer> txn, ByteBuffer stored);
+
+    /**
+     * @return true if the identities are stored as ids of {@link DictionaryIdentityCodec}
+     */
+    boolean isDictionary();
+}
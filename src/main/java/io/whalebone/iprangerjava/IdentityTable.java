@@ -0,0 +1,105 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns identities read while building in-memory lookup structures and assigns them ordinals.
+ * Each stored identity is decoded only once, interning an identity seen before doesn't allocate.
+ *
+ * @author Tomas Kozel
+ */
+class IdentityTable {
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    // ordinals of the stored C strings, looked up by a copy in the reused scratch buffer
+    private final Map<ByteBuffer, Integer> storedOrdinals = new HashMap<>();
+    private ByteBuffer scratch = ByteBuffer.allocate(64);
+    // ordinals + 1 by the dictionary ids, the ids are assigned sequentially so the array stays dense
+    private int[] idOrdinals = new int[0];
+    private final List<String> identities = new ArrayList<>();
+    private final Txn<ByteBuffer> txn;
+    private final IdentityCodec identityCodec;
+
+    IdentityTable(final Txn<ByteBuffer> txn, final IdentityCodec identityCodec) {
+        this.txn = txn;
+        this.identityCodec = identityCodec;
+    }
+
+    /**
+     * @param identity identity value as stored in the ranges DB
+     * @return ordinal of the identity
+     */
+    int intern(final ByteBuffer identity) {
+        if (identityCodec.isDictionary()) {
+            final int id = DictionaryIdentityCodec.toId(identity);
+            if (id < 0) {
+                return internString(identity);
+            }
+            if (id >= idOrdinals.length) {
+                idOrdinals = Arrays.copyOf(idOrdinals, Math.max(id + 1, idOrdinals.length * 2));
+            }
+            if (idOrdinals[id] == 0) {
+                idOrdinals[id] = internString(identity) + 1;
+            }
+            return idOrdinals[id] - 1;
+        }
+        final int length = identity.remaining();
+        if (scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        for (int i = identity.position(); i < identity.limit(); i++) {
+            scratch.put(identity.get(i));
+        }
+        scratch.flip();
+        Integer ordinal = storedOrdinals.get(scratch);
+        if (ordinal == null) {
+            ordinal = internString(identity);
+            final byte[] stored = new byte[length];
+            scratch.get(stored);
+            storedOrdinals.put(ByteBuffer.wrap(stored), ordinal);
+        }
+        return ordinal;
+    }
+
+    String get(final int ordinal) {
+        return identities.get(ordinal);
+    }
+
+    private int internString(final ByteBuffer identity) {
+        final String value = identityCodec.decode(txn, identity);
+        Integer ordinal = ordinals.get(value);
+        if (ordinal == null) {
+            ordinal = identities.size();
+            ordinals.put(value, ordinal);
+            identities.add(value);
+        }
+        return ordinal;
+    }
+
+    String[] toArray() {
+        return identities.toArray(new String[0]);
+    }
+}
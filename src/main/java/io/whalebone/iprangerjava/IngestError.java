@@ -0,0 +1,31 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import lombok.Value;
+
+/**
+ * Line which could not be ingested.
+ *
+ * @author Tomas Kozel
+ */
+@Value(staticConstructor = "of")
+public class IngestError {
+    // 1-based number of the line in the input
+    private long lineNumber;
+    private String line;
+    private Exception cause;
+}
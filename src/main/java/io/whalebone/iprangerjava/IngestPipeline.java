@@ -0,0 +1,258 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.utils.Cidr;
+import io.whalebone.iprangerjava.utils.CidrParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Ingestion of text lines where the expensive part (parsing the lines and CIDRs and encoding the C strings)
+ * is done in parallel while LMDB is written by a single writer thread.
+ * <p>
+ * The calling thread reads the lines in chunks of {@link Configuration#getIngestChunkSize()} and submits
+ * them to a pool of {@link Configuration#getIngestParallelism()} threads. Futures of the encoded chunks are
+ * queued in the input order to a queue of {@link Configuration#getIngestQueueCapacity()} chunks, so reading
+ * blocks when the writer falls behind. The writer inserts the chunks through one {@link IpRanger.Batch}
+ * which commits every {@link Configuration#getBatchCommitSize()} ranges.
+ * <p>
+ * Lines which cannot be parsed are counted as failed and passed to the error handler (from the writer thread
+ * and in the input order), the run continues with the next line.
+ *
+ * @author Tomas Kozel
+ */
+public class IngestPipeline {
+    private static final int DEFAULT_CHUNK_SIZE = 1024;
+    private static final Chunk END = new Chunk(0, 0);
+
+    private final IpRanger ipRanger;
+    private final Function<String, RangeEntry> lineParser;
+    private final Consumer<IngestError> errorHandler;
+    private final int parallelism;
+    private final int chunkSize;
+    private final int queueCapacity;
+
+    /**
+     * @param lineParser   parses a line to a range, null means the line should be skipped (e.g. a header)
+     * @param errorHandler consumer of the lines which could not be ingested
+     */
+    IngestPipeline(final IpRanger ipRanger, final Function<String, RangeEntry> lineParser,
+                   final Consumer<IngestError> errorHandler) {
+        this.ipRanger = ipRanger;
+        this.lineParser = Objects.requireNonNull(lineParser, "Line parser can't be null");
+        this.errorHandler = Objects.requireNonNull(errorHandler, "Error handler can't be null");
+        final Configuration conf = ipRanger.getConfiguration();
+        this.parallelism = conf.getIngestParallelism() > 0
+                ? conf.getIngestParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        this.chunkSize = conf.getIngestChunkSize() > 0 ? conf.getIngestChunkSize() : DEFAULT_CHUNK_SIZE;
+        this.queueCapacity = conf.getIngestQueueCapacity() > 0 ? conf.getIngestQueueCapacity() : 2 * parallelism;
+    }
+
+    /**
+     * Creates a line parser of delimited lines, e.g. CSV. Lines starting with {@code #} are skipped.
+     *
+     * @param delimiter      literal delimiter of the columns
+     * @param rangeColumn    0-based index of the column with the ip range
+     * @param identityColumn 0-based index of the column with the identity
+     */
+    public static Function<String, RangeEntry> delimitedLineParser(final String delimiter, final int rangeColumn,
+                                                                   final int identityColumn) {
+        final Pattern pattern = Pattern.compile(Pattern.quote(delimiter));
+        final int columns = Math.max(rangeColumn, identityColumn) + 1;
+        return line -> {
+            if (line.startsWith("#")) {
+                return null;
+            }
+            final String[] values = pattern.split(line, -1);
+            if (values.length < columns) {
+                throw new IllegalArgumentException("Expected at least " + columns + " columns");
+            }
+            return RangeEntry.of(values[rangeColumn], values[identityColumn]);
+        };
+    }
+
+    /**
+     * Ingests all the lines. Blank lines and lines for which the line parser returns null are counted as skipped.
+     *
+     * @return counts of inserted, skipped and failed lines
+     */
+    public InsertReport run(final Stream<String> lines) {
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        final BlockingQueue<Future<Chunk>> queue = new ArrayBlockingQueue<>(queueCapacity);
+        final Writer writer = new Writer(queue);
+        final Thread writerThread = new Thread(writer, "ipranger-ingest-writer");
+        writerThread.start();
+        boolean read = false;
+        try {
+            final Iterator<String> iterator = lines.iterator();
+            long lineNumber = 0;
+            while (iterator.hasNext() && writer.failure == null) {
+                final long firstLine = lineNumber + 1;
+                final List<String> chunkLines = new ArrayList<>(chunkSize);
+                while (chunkLines.size() < chunkSize && iterator.hasNext()) {
+                    chunkLines.add(iterator.next());
+                    lineNumber++;
+                }
+                enqueue(queue, CompletableFuture.supplyAsync(() -> encode(firstLine, chunkLines), pool), writer);
+            }
+            enqueue(queue, CompletableFuture.completedFuture(END), writer);
+            read = true;
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Ingestion has been interrupted", e);
+        } finally {
+            if (!read || writerThread.isAlive()) {
+                // the writer aborts the uncommitted writes
+                writerThread.interrupt();
+                awaitTermination(writerThread);
+            }
+            pool.shutdownNow();
+        }
+        if (writer.failure != null) {
+            throw new IllegalStateException("Ingestion has failed", writer.failure);
+        }
+        return writer.report;
+    }
+
+    private static void awaitTermination(final Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for a free slot in the queue unless the writer has failed.
+     */
+    private static void enqueue(final BlockingQueue<Future<Chunk>> queue, final Future<Chunk> chunk,
+                                final Writer writer) throws InterruptedException {
+        while (writer.failure == null) {
+            if (queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    private Chunk encode(final long firstLine, final List<String> lines) {
+        final CidrParser cidrParser = new CidrParser();
+        final Cidr cidr = new Cidr();
+        final Chunk chunk = new Chunk(firstLine, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            final String line = lines.get(i);
+            if (line == null || line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                final RangeEntry entry = lineParser.apply(line);
+                if (entry != null && entry.getIpRange() != null && entry.getIdentity() != null
+                        && !entry.getIpRange().trim().isEmpty() && !entry.getIdentity().trim().isEmpty()) {
+                    chunk.ranges[i] = ipRanger.encode(cidrParser, cidr, entry.getIpRange(), entry.getIdentity());
+                }
+            } catch (Exception e) {
+                chunk.addError(IngestError.of(firstLine + i, line, e));
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Encoded lines of one chunk, null range means the line is skipped or failed.
+     */
+    private static final class Chunk {
+        private final long firstLine;
+        private final EncodedRange[] ranges;
+        private List<IngestError> errors = Collections.emptyList();
+
+        private Chunk(final long firstLine, final int size) {
+            this.firstLine = firstLine;
+            this.ranges = new EncodedRange[size];
+        }
+
+        private void addError(final IngestError error) {
+            if (errors.isEmpty()) {
+                errors = new ArrayList<>();
+            }
+            errors.add(error);
+        }
+    }
+
+    private final class Writer implements Runnable {
+        private final BlockingQueue<Future<Chunk>> queue;
+        private volatile InsertReport report;
+        private volatile Throwable failure;
+
+        private Writer(final BlockingQueue<Future<Chunk>> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try (IpRanger.Batch batch = ipRanger.newBatch()) {
+                Chunk chunk = queue.take().get();
+                while (chunk != END) {
+                    write(batch, chunk);
+                    chunk = queue.take().get();
+                }
+                report = batch.commit();
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+
+        private void write(final IpRanger.Batch batch, final Chunk chunk) {
+            final Iterator<IngestError> errors = chunk.errors.iterator();
+            IngestError error = errors.hasNext() ? errors.next() : null;
+            for (int i = 0; i < chunk.ranges.length; i++) {
+                if (chunk.ranges[i] != null) {
+                    batch.insert(chunk.ranges[i]);
+                } else if (error != null && error.getLineNumber() == chunk.firstLine + i) {
+                    batch.fail();
+                    errorHandler.accept(error);
+                    error = errors.hasNext() ? errors.next() : null;
+                } else {
+                    batch.skip();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Counts of ranges processed by a batch insert.
+ * <ul>
+ *     <li>inserted - ranges written (new or with changed identity)</li>
+ *     <li>deleted - ranges deleted</li>
+ *     <li>skipped - empty entries, ranges already stored with the same identity and deleted ranges
+ *     which are not stored</li>
+ *     <li>failed - ranges rejected because they could not be parsed or are too long</li>
+ * </ul>
+ *
+ * @author Tomas Kozel
+ */
+@Getter
+@ToString
+public class InsertReport {
+    private long inserted;
+    private long deleted;
+    private long skipped;
+    private long failed;
+
+    void inserted() {
+        inserted++;
+    }
+
+    void inserted(final long count) {
+        inserted += count;
+    }
+
+    void deleted() {
+        deleted++;
+    }
+
+    void skipped() {
+        skipped++;
+    }
+
+    void failed() {
+        failed++;
+    }
+
+    /**
+     * Adds the counts of the other report.
+     */
+    void add(final InsertReport other) {
+        inserted += other.inserted;
+        deleted += other.deleted;
+        skipped += other.skipped;
+        failed += other.failed;
+    }
+}
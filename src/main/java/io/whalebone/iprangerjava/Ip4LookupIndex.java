@@ -0,0 +1,255 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Immutable in-memory snapshot of IPv4 ranges for fast lookups. The ranges are flattened to disjoint
+ * intervals kept in sorted primitive arrays so a lookup is a single binary search which doesn't allocate.
+ * It gives the same results as {@link IpRanger#lookup(int)} for the data the index was built from.
+ * The index is safe to be used by any number of threads.
+ *
+ * @author Tomas Kozel
+ * @see IpRanger#refreshIp4LookupIndex()
+ */
+public final class Ip4LookupIndex {
+    public static final int NOT_FOUND = -1;
+    // the block index is packed to the lowest 26 bits of the sort key
+    private static final int MAX_BLOCKS = 1 << 26;
+
+    // starts and ends of the intervals are stored with flipped sign bit so they can be compared as signed ints
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] identityOrdinals;
+    private final String[] identities;
+
+    private Ip4LookupIndex(final int[] starts, final int[] ends, final int[] identityOrdinals,
+                           final String[] identities) {
+        this.starts = starts;
+        this.ends = ends;
+        this.identityOrdinals = identityOrdinals;
+        this.identities = identities;
+    }
+
+    /**
+     * @param address IPv4 address as int, e.g. 0x0A000001 for 10.0.0.1
+     * @return identity or null if there is no range containing the address
+     */
+    public String lookup(final int address) {
+        final int ordinal = lookupOrdinal(address);
+        return ordinal == NOT_FOUND ? null : identities[ordinal];
+    }
+
+    /**
+     * @return ordinal of the identity (see {@link #getIdentity(int)}) or {@link #NOT_FOUND}
+     */
+    public int lookupOrdinal(final int address) {
+        final int key = address ^ Integer.MIN_VALUE;
+        int low = 0;
+        int high = starts.length - 1;
+        // find the last interval starting at or before the address
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (starts[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (high < 0 || ends[high] < key) {
+            return NOT_FOUND;
+        }
+        return identityOrdinals[high];
+    }
+
+    public String getIdentity(final int ordinal) {
+        return identities[ordinal];
+    }
+
+    public int getIdentityCount() {
+        return identities.length;
+    }
+
+    /**
+     * @return number of disjoint intervals
+     */
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * Builds the index by one pass over the ranges.
+     */
+    static Ip4LookupIndex build(final Txn<ByteBuffer> txn, final Dbi<ByteBuffer> ip4RangesToIdentity,
+                                final Dbi<ByteBuffer> ip4Masks, final IdentityCodec identityCodec) {
+        final boolean[] prefixes = new boolean[33];
+        IpRanger.readMasks(txn, ip4Masks, prefixes);
+
+        final IdentityTable identities = new IdentityTable(txn, identityCodec);
+        IntList blockOrdinals = new IntList();
+        LongList sortKeys = new LongList();
+        try (Cursor<ByteBuffer> cursor = ip4RangesToIdentity.openCursor(txn)) {
+            boolean found = cursor.first();
+            while (found) {
+                final int end = IpRanger.getIp4(cursor.key());
+                final int prefix = widestPrefix(end, prefixes);
+                if (prefix >= 0) {
+                    if (blockOrdinals.size() == MAX_BLOCKS) {
+                        throw new IllegalStateException("Too many IPv4 ranges, at most " + MAX_BLOCKS + " are supported");
+                    }
+                    final int ordinal = identities.intern(cursor.val());
+                    final int start = prefix == 0 ? 0 : end & (-1 << (32 - prefix));
+                    // start, then the wider block first, then the block index
+                    sortKeys.add((long) (start ^ Integer.MIN_VALUE) << 32
+                            | (long) prefix << 26 | blockOrdinals.size());
+                    blockOrdinals.add(ordinal);
+                }
+                found = cursor.next();
+            }
+        }
+        final long[] blocks = sortKeys.toArray();
+        Arrays.sort(blocks);
+        return flatten(blocks, blockOrdinals.toArray(), identities.toArray());
+    }
+
+    /**
+     * The range ending with {@code end} is reachable by every mask whose host bits of {@code end} are all ones.
+     * The widest of such blocks is what the range covers because the narrower ones are nested in it.
+     *
+     * @return the shortest stored mask which can reach the end address or -1 if there is none
+     */
+    static int widestPrefix(final int end, final boolean[] prefixes) {
+        final int trailingOnes = Integer.numberOfTrailingZeros(~end);
+        for (int prefix = 32 - trailingOnes; prefix <= 32; prefix++) {
+            if (prefixes[prefix]) {
+                return prefix;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Flattens the nested blocks to disjoint intervals. The most specific block wins.
+     *
+     * @param blocks sort keys of the blocks sorted by start and wider block first
+     */
+    private static Ip4LookupIndex flatten(final long[] blocks, final int[] blockOrdinals, final String[] identities) {
+        final IntList starts = new IntList();
+        final IntList ends = new IntList();
+        final IntList ordinals = new IntList();
+        // open blocks, the innermost on the top
+        final long[] stackEnds = new long[33];
+        final int[] stackOrdinals = new int[33];
+        int depth = 0;
+        // the first address not covered by the output yet
+        long next = 0;
+        for (final long block : blocks) {
+            final long start = ((int) (block >> 32) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+            final int prefix = (int) (block >>> 26) & 0x3F;
+            final int ordinal = blockOrdinals[(int) block & (MAX_BLOCKS - 1)];
+            final long end = start + (1L << (32 - prefix)) - 1;
+            while (depth > 0 && stackEnds[depth - 1] < start) {
+                depth--;
+                next = emit(next, stackEnds[depth], stackOrdinals[depth], starts, ends, ordinals);
+            }
+            if (depth > 0) {
+                next = emit(next, start - 1, stackOrdinals[depth - 1], starts, ends, ordinals);
+            }
+            next = Math.max(next, start);
+            stackEnds[depth] = end;
+            stackOrdinals[depth] = ordinal;
+            depth++;
+        }
+        while (depth > 0) {
+            depth--;
+            next = emit(next, stackEnds[depth], stackOrdinals[depth], starts, ends, ordinals);
+        }
+        return new Ip4LookupIndex(starts.toArray(), ends.toArray(), ordinals.toArray(), identities);
+    }
+
+    /**
+     * Emits interval {@code [from, to]} merging it with the previous one if they are adjacent and of the same identity.
+     *
+     * @return the first address after the interval
+     */
+    private static long emit(final long from, final long to, final int ordinal,
+                             final IntList starts, final IntList ends, final IntList ordinals) {
+        if (from > to) {
+            return from;
+        }
+        final int last = starts.size() - 1;
+        if (last >= 0 && ordinals.get(last) == ordinal
+                && ((ends.get(last) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL) + 1 == from) {
+            ends.set(last, (int) to ^ Integer.MIN_VALUE);
+        } else {
+            starts.add((int) from ^ Integer.MIN_VALUE);
+            ends.add((int) to ^ Integer.MIN_VALUE);
+            ordinals.add(ordinal);
+        }
+        return to + 1;
+    }
+
+    private static final class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(final int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(final int index) {
+            return values[index];
+        }
+
+        void set(final int index, final int value) {
+            values[index] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static final class LongList {
+        private long[] values = new long[16];
+        private int size;
+
+        void add(final long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
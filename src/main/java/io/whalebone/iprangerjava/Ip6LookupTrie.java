@@ -0,0 +1,336 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Immutable in-memory snapshot of IPv6 ranges for fast longest prefix lookups. Addresses are handled
+ * as (high, low) pairs of longs so a lookup doesn't allocate.
+ * <p>
+ * The prefixes are kept in a path compressed binary trie. Every node takes 4 longs (32 bytes, half of
+ * a cache line) of one array: the prefix (2 longs), prefix length with identity ordinal and the two children.
+ * The top k bits of the address (k = log2 of the number of prefixes, 8 - 20) index a direct table which points
+ * to the first node of at least /k and holds the best match of the shorter prefixes, so a lookup skips the top
+ * of the trie and then reads one node per branching point on the path to the most specific prefix.
+ * <p>
+ * Memory: the trie has at most 2 nodes per prefix (one per prefix and one per branching), i.e. at most
+ * 64 MiB per million prefixes, plus at most 8 MiB of the direct table. One million random /32 - /64 prefixes
+ * take 69 MiB. See {@link #getMemoryFootprint()} for the actual size.
+ * <p>
+ * It gives the same results as {@link IpRanger#lookup(long, long)} for the data the trie was built from.
+ * The trie is safe to be used by any number of threads.
+ *
+ * @author Tomas Kozel
+ * @see IpRanger#refreshIp6LookupTrie()
+ */
+public final class Ip6LookupTrie {
+    public static final int NOT_FOUND = -1;
+    private static final int NONE = -1;
+    private static final int NODE_SIZE = 4;
+    private static final int MIN_DIRECT_BITS = 8;
+    private static final int MAX_DIRECT_BITS = 20;
+    private static final long[] NET_MASKS_HIGH = new long[129];
+    private static final long[] NET_MASKS_LOW = new long[129];
+
+    static {
+        for (int prefix = 0; prefix <= 128; prefix++) {
+            NET_MASKS_HIGH[prefix] = prefix == 0 ? 0 : prefix >= 64 ? -1L : -1L << (64 - prefix);
+            NET_MASKS_LOW[prefix] = prefix <= 64 ? 0 : prefix == 128 ? -1L : -1L << (128 - prefix);
+        }
+    }
+
+    // node i: [4i] prefix high, [4i + 1] prefix low, [4i + 2] length << 32 | ordinal, [4i + 3] child 0 << 32 | child 1
+    private final long[] nodes;
+    private final int nodeCount;
+    private final int prefixCount;
+    // indexed by the top directBits bits of the address
+    private final int directBits;
+    private final int[] directNodes;
+    private final int[] directOrdinals;
+    private final String[] identities;
+
+    private Ip6LookupTrie(final long[] nodes, final int nodeCount, final int prefixCount, final int directBits,
+                          final int[] directNodes, final int[] directOrdinals, final String[] identities) {
+        this.nodes = nodes;
+        this.nodeCount = nodeCount;
+        this.prefixCount = prefixCount;
+        this.directBits = directBits;
+        this.directNodes = directNodes;
+        this.directOrdinals = directOrdinals;
+        this.identities = identities;
+    }
+
+    /**
+     * @param high the first (most significant) 8 bytes of the address
+     * @param low  the last 8 bytes of the address
+     * @return identity or null if there is no range containing the address
+     */
+    public String lookup(final long high, final long low) {
+        final int ordinal = lookupOrdinal(high, low);
+        return ordinal == NOT_FOUND ? null : identities[ordinal];
+    }
+
+    /**
+     * @return ordinal of the identity (see {@link #getIdentity(int)}) or {@link #NOT_FOUND}
+     */
+    public int lookupOrdinal(final long high, final long low) {
+        final int slot = (int) (high >>> (64 - directBits));
+        int best = directOrdinals[slot];
+        int node = directNodes[slot];
+        while (node != NONE) {
+            final int base = node * NODE_SIZE;
+            final long lengthAndOrdinal = nodes[base + 2];
+            final int length = (int) (lengthAndOrdinal >>> 32);
+            if (((high ^ nodes[base]) & NET_MASKS_HIGH[length]) != 0
+                    || ((low ^ nodes[base + 1]) & NET_MASKS_LOW[length]) != 0) {
+                break;
+            }
+            final int ordinal = (int) lengthAndOrdinal;
+            if (ordinal != NOT_FOUND) {
+                best = ordinal;
+            }
+            if (length == 128) {
+                break;
+            }
+            node = child(base, bit(high, low, length));
+        }
+        return best;
+    }
+
+    public String getIdentity(final int ordinal) {
+        return identities[ordinal];
+    }
+
+    public int getIdentityCount() {
+        return identities.length;
+    }
+
+    /**
+     * @return number of prefixes (ranges reachable by the stored masks) in the trie
+     */
+    public int size() {
+        return prefixCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return approximate heap size of the trie arrays in bytes, identities not included
+     */
+    public long getMemoryFootprint() {
+        return (long) nodes.length * Long.BYTES + (long) (directNodes.length + directOrdinals.length) * Integer.BYTES;
+    }
+
+    private int child(final int base, final int bit) {
+        final long children = nodes[base + 3];
+        return bit == 0 ? (int) (children >>> 32) : (int) children;
+    }
+
+    private static int bit(final long high, final long low, final int index) {
+        return index < 64 ? (int) (high >>> (63 - index)) & 1 : (int) (low >>> (127 - index)) & 1;
+    }
+
+    /**
+     * Builds the trie by one pass over the ranges.
+     */
+    static Ip6LookupTrie build(final Txn<ByteBuffer> txn, final Dbi<ByteBuffer> ip6RangesToIdentity,
+                               final Dbi<ByteBuffer> ip6Masks, final IdentityCodec identityCodec) {
+        final boolean[] prefixes = new boolean[129];
+        IpRanger.readMasks(txn, ip6Masks, prefixes);
+
+        final IdentityTable identities = new IdentityTable(txn, identityCodec);
+        final Builder builder = new Builder();
+        try (Cursor<ByteBuffer> cursor = ip6RangesToIdentity.openCursor(txn)) {
+            boolean found = cursor.first();
+            while (found) {
+                final ByteBuffer key = cursor.key();
+                final long high = IpRanger.getLong(key, key.position());
+                final long low = IpRanger.getLong(key, key.position() + 8);
+                final int prefix = widestPrefix(high, low, prefixes);
+                if (prefix >= 0) {
+                    builder.insert(high & NET_MASKS_HIGH[prefix], low & NET_MASKS_LOW[prefix], prefix,
+                            identities.intern(cursor.val()));
+                }
+                found = cursor.next();
+            }
+        }
+        return builder.build(identities.toArray());
+    }
+
+    /**
+     * The range ending with the address is reachable by every mask whose host bits of the address are all ones.
+     * The widest of such blocks is what the range covers because the narrower ones are nested in it.
+     *
+     * @return the shortest stored mask which can reach the end address or -1 if there is none
+     */
+    static int widestPrefix(final long high, final long low, final boolean[] prefixes) {
+        final int trailingOnes = low == -1L
+                ? 64 + Long.numberOfTrailingZeros(~high)
+                : Long.numberOfTrailingZeros(~low);
+        for (int prefix = 128 - trailingOnes; prefix <= 128; prefix++) {
+            if (prefixes[prefix]) {
+                return prefix;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Builder {
+        private long[] nodes = new long[NODE_SIZE * 16];
+        private int nodeCount;
+        private int prefixCount;
+        private int root = NONE;
+
+        void insert(final long high, final long low, final int length, final int ordinal) {
+            int parent = NONE;
+            int parentBit = 0;
+            int node = root;
+            while (node != NONE) {
+                final int base = node * NODE_SIZE;
+                final int nodeLength = length(node);
+                final int common = commonPrefixLength(high, low, nodes[base], nodes[base + 1],
+                        Math.min(length, nodeLength));
+                if (common < nodeLength) {
+                    // the new prefix diverges from the node or is its parent, split the edge
+                    final int split;
+                    if (common == length) {
+                        split = newNode(high, low, length, ordinal);
+                        prefixCount++;
+                    } else {
+                        split = newNode(high & NET_MASKS_HIGH[common], low & NET_MASKS_LOW[common], common, NOT_FOUND);
+                        setChild(split, bit(high, low, common), newNode(high, low, length, ordinal));
+                        prefixCount++;
+                    }
+                    setChild(split, bit(nodes[base], nodes[base + 1], common), node);
+                    link(parent, parentBit, split);
+                    return;
+                }
+                if (nodeLength == length) {
+                    if (ordinal(node) == NOT_FOUND) {
+                        prefixCount++;
+                    }
+                    setOrdinal(node, ordinal);
+                    return;
+                }
+                parent = node;
+                parentBit = bit(high, low, nodeLength);
+                node = child(node, parentBit);
+            }
+            link(parent, parentBit, newNode(high, low, length, ordinal));
+            prefixCount++;
+        }
+
+        Ip6LookupTrie build(final String[] identities) {
+            final int directBits = Math.max(MIN_DIRECT_BITS,
+                    Math.min(MAX_DIRECT_BITS, 32 - Integer.numberOfLeadingZeros(prefixCount)));
+            final int[] directNodes = new int[1 << directBits];
+            final int[] directOrdinals = new int[1 << directBits];
+            Arrays.fill(directNodes, NONE);
+            Arrays.fill(directOrdinals, NOT_FOUND);
+            fillDirect(root, NOT_FOUND, directBits, directNodes, directOrdinals);
+            return new Ip6LookupTrie(Arrays.copyOf(nodes, nodeCount * NODE_SIZE), nodeCount, prefixCount,
+                    directBits, directNodes, directOrdinals, identities);
+        }
+
+        /**
+         * Paints the direct table. Nodes shorter than /directBits are resolved to the best ordinal of all the slots
+         * they cover (parents are painted first so the more specific prefixes win), the first node of at least
+         * /directBits becomes the node where the lookup of its slot starts.
+         */
+        private void fillDirect(final int node, final int inheritedOrdinal, final int directBits,
+                                final int[] directNodes, final int[] directOrdinals) {
+            if (node == NONE) {
+                return;
+            }
+            final int base = node * NODE_SIZE;
+            final int length = length(node);
+            final int firstSlot = (int) (nodes[base] >>> (64 - directBits));
+            if (length >= directBits) {
+                directNodes[firstSlot] = node;
+                return;
+            }
+            final int ordinal = ordinal(node) == NOT_FOUND ? inheritedOrdinal : ordinal(node);
+            final int slots = 1 << (directBits - length);
+            Arrays.fill(directOrdinals, firstSlot, firstSlot + slots, ordinal);
+            fillDirect(child(node, 0), ordinal, directBits, directNodes, directOrdinals);
+            fillDirect(child(node, 1), ordinal, directBits, directNodes, directOrdinals);
+        }
+
+        private int newNode(final long high, final long low, final int length, final int ordinal) {
+            if ((nodeCount + 1) * NODE_SIZE > nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+            }
+            final int base = nodeCount * NODE_SIZE;
+            nodes[base] = high;
+            nodes[base + 1] = low;
+            nodes[base + 2] = (long) length << 32 | (ordinal & 0xFFFFFFFFL);
+            nodes[base + 3] = (long) NONE << 32 | (NONE & 0xFFFFFFFFL);
+            return nodeCount++;
+        }
+
+        private void link(final int parent, final int bit, final int node) {
+            if (parent == NONE) {
+                root = node;
+            } else {
+                setChild(parent, bit, node);
+            }
+        }
+
+        private int length(final int node) {
+            return (int) (nodes[node * NODE_SIZE + 2] >>> 32);
+        }
+
+        private int ordinal(final int node) {
+            return (int) nodes[node * NODE_SIZE + 2];
+        }
+
+        private void setOrdinal(final int node, final int ordinal) {
+            final int index = node * NODE_SIZE + 2;
+            nodes[index] = nodes[index] & 0xFFFFFFFF00000000L | (ordinal & 0xFFFFFFFFL);
+        }
+
+        private int child(final int node, final int bit) {
+            final long children = nodes[node * NODE_SIZE + 3];
+            return bit == 0 ? (int) (children >>> 32) : (int) children;
+        }
+
+        private void setChild(final int node, final int bit, final int child) {
+            final int index = node * NODE_SIZE + 3;
+            if (bit == 0) {
+                nodes[index] = (long) child << 32 | (nodes[index] & 0xFFFFFFFFL);
+            } else {
+                nodes[index] = nodes[index] & 0xFFFFFFFF00000000L | (child & 0xFFFFFFFFL);
+            }
+        }
+
+        private static int commonPrefixLength(final long high1, final long low1, final long high2, final long low2,
+                                              final int max) {
+            final int common = high1 != high2
+                    ? Long.numberOfLeadingZeros(high1 ^ high2)
+                    : 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+            return Math.min(common, max);
+        }
+    }
+}
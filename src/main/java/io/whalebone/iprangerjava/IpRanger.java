@@ -16,29 +16,69 @@
 
 package io.whalebone.iprangerjava;
 
-import io.whalebone.iprangerjava.utils.CIDRUtils;
 import io.whalebone.iprangerjava.utils.CUtils;
+import io.whalebone.iprangerjava.utils.Cidr;
+import io.whalebone.iprangerjava.utils.CidrBlocks;
+import io.whalebone.iprangerjava.utils.CidrParser;
+import org.lmdbjava.CopyFlags;
+import org.lmdbjava.Cursor;
 import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
 import org.lmdbjava.Env;
+import org.lmdbjava.EnvFlags;
+import org.lmdbjava.EnvInfo;
 import org.lmdbjava.PutFlags;
+import org.lmdbjava.Stat;
 import org.lmdbjava.Txn;
 
+import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static org.lmdbjava.DbiFlags.MDB_CREATE;
+import static org.lmdbjava.DbiFlags.MDB_DUPFIXED;
 import static org.lmdbjava.DbiFlags.MDB_DUPSORT;
+import static org.lmdbjava.DbiFlags.MDB_INTEGERKEY;
 
 /**
  * @author Tomas Kozel
  */
 public class IpRanger implements Closeable {
     private static final String DATA_FILE = "data.mdb";
+    private static final String DEFAULT_IDENTITIES_TO_IDS_DB_NAME = "identities_to_ids";
+    private static final String DEFAULT_IDS_TO_IDENTITIES_DB_NAME = "ids_to_identities";
     private static final int IPV4_SIZE = 4;
     private static final int IPV6_SIZE = 16;
+    private static final double DEFAULT_PROBE_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    // masks 0 - 128 as C strings
+    private static final byte[][] MASK_C_STRINGS = new byte[IPV6_SIZE * 8 + 1][];
+
+    static {
+        for (int mask = 0; mask < MASK_C_STRINGS.length; mask++) {
+            MASK_C_STRINGS[mask] = CUtils.toCString(Integer.toString(mask)).getBytes(StandardCharsets.UTF_8);
+        }
+    }
 
     private Path dir;
     private Env<ByteBuffer> env;
@@ -48,11 +88,32 @@ public class IpRanger implements Closeable {
     private Dbi<ByteBuffer> ip6RangesToIdentity;    // 1 : 1
     private Dbi<ByteBuffer> identitiesToIp6Ranges;  // 1 : n
     private Dbi<ByteBuffer> ip6Masks;              // 1 : 1
+    private IdentityCodec identityCodec;
+    private IpRangerMetrics metrics;
+    private MapGrowth mapGrowth;
+    private EnvProfile profile;
     private Configuration conf;
+    // used by the single writer only
+    private final CidrParser cidrParser = new CidrParser();
+    private final Cidr cidr = new Cidr();
+    // end of the range inserted by Batch#insertRange
+    private final Cidr rangeEnd = new Cidr();
+    private WriteBuffers writeBuffers;
+    private final ThreadLocal<LookupContext> lookupContext = ThreadLocal.withInitial(LookupContext::new);
+    private volatile Ip4LookupIndex ip4LookupIndex;
+    private volatile Ip6LookupTrie ip6LookupTrie;
+    private volatile ProbeFilter ip4ProbeFilter;
+    private volatile ProbeFilter ip6ProbeFilter;
+    private final LookupCache lookupCache;
 
     public static IpRanger create(final Path dir, final Configuration conf) {
+        return create(dir, conf, conf.getEnvProfile() != null ? conf.getEnvProfile() : EnvProfile.DURABLE);
+    }
+
+    static IpRanger create(final Path dir, final Configuration conf, final EnvProfile profile) {
         final IpRanger ipRanger = new IpRanger(dir, conf);
-        ipRanger.open();
+        ipRanger.profile = profile;
+        ipRanger.open(profile.getFlags());
         return ipRanger;
     }
 
@@ -61,6 +122,87 @@ public class IpRanger implements Closeable {
         Objects.requireNonNull(configuration, "Configuration can't be null");
         this.dir = dir;
         this.conf = configuration;
+        this.metrics = configuration.getMetrics() != null ? configuration.getMetrics() : IpRangerMetrics.NOOP;
+        this.lookupCache = configuration.getLookupCacheSize() > 0
+                ? new LookupCache(configuration.getLookupCacheSize()) : null;
+    }
+
+    Configuration getConfiguration() {
+        return conf;
+    }
+
+    Env<ByteBuffer> getEnv() {
+        return env;
+    }
+
+    Dbi<ByteBuffer> getRangesToIdentity(final boolean ipv6) {
+        return ipv6 ? ip6RangesToIdentity : ip4RangesToIdentity;
+    }
+
+    Dbi<ByteBuffer> getIdentitiesToRanges(final boolean ipv6) {
+        return ipv6 ? identitiesToIp6Ranges : identitiesToIp4Ranges;
+    }
+
+    Dbi<ByteBuffer> getMasks(final boolean ipv6) {
+        return ipv6 ? ip6Masks : ip4Masks;
+    }
+
+    IdentityCodec getIdentityCodec() {
+        return identityCodec;
+    }
+
+    IpRangerMetrics getMetrics() {
+        return metrics;
+    }
+
+    MapGrowth getMapGrowth() {
+        return mapGrowth;
+    }
+
+    /**
+     * Commits the transaction and reports it to the metrics.
+     *
+     * @param ranges number of ranges written by the transaction
+     */
+    void commit(final Txn<ByteBuffer> txn, final int ranges) {
+        final long start = System.nanoTime();
+        txn.commit();
+        if (lookupCache != null) {
+            lookupCache.invalidate();
+        }
+        metrics.committed(System.nanoTime() - start, ranges);
+    }
+
+    /**
+     * Syncs the commits which were not synced because of {@link EnvProfile#isSyncDeferred()}. Called when
+     * a write operation finishes.
+     */
+    void syncDeferred() {
+        if (profile.isSyncDeferred()) {
+            env.sync(true);
+        }
+    }
+
+    /**
+     * Begins a read transaction which must be finished by {@link #release(Txn)} so that it doesn't overlap
+     * with a growth of the map.
+     */
+    Txn<ByteBuffer> txnRead() {
+        mapGrowth.enter();
+        try {
+            return env.txnRead();
+        } catch (RuntimeException e) {
+            mapGrowth.exit();
+            throw e;
+        }
+    }
+
+    void release(final Txn<ByteBuffer> txn) {
+        try {
+            txn.close();
+        } finally {
+            mapGrowth.exit();
+        }
     }
 
     public Path getDir() {
@@ -71,91 +213,822 @@ public class IpRanger implements Closeable {
         return dir.resolve(DATA_FILE);
     }
 
-    private void open() {
+    private void open(final EnvFlags... envFlags) {
         env = Env.create()
                 // LMDB also needs to know how large our DB might be. Over-estimating is OK.
                 .setMapSize(conf.getMaxEnvSize())
                 // LMDB also needs to know how many DBs (Dbi) we want to store in this Env.
-                .setMaxDbs(6)
+                .setMaxDbs(8)
                 // Now let's open the Env. The same path can be concurrently opened andgetDb
                 // used in different processes, but do not open the same path twice in
                 // the same process at the same time.
-                .open(dir.toFile());
+                .open(dir.toFile(), envFlags);
 
         validateKeySize(IPV4_SIZE, "ipv4");
         validateKeySize(IPV6_SIZE, "ipv6");
         validateKeySize(conf.getMaxMaskKeySize(), "mask");
         validateKeySize(conf.getMaxIdentityKeySize(), "identity");
 
+        // MDB_DUPSORT for duplicate keys (or multiple values for one key), with the dictionary the keys are
+        // integer ids and the values are fixed size addresses
+        final DbiFlags[] identitiesToRangesFlags = conf.isIdentityDictionary()
+                ? new DbiFlags[]{MDB_CREATE, MDB_DUPSORT, MDB_INTEGERKEY, MDB_DUPFIXED}
+                : new DbiFlags[]{MDB_CREATE, MDB_DUPSORT};
         // We need a Dbi for each DB. A Dbi roughly equates to a sorted map. The
         // MDB_CREATE flag causes the DB to be created if it doesn't already exist.
         ip4RangesToIdentity = env.openDbi(conf.getIp4RangesToIdentityDbName(), MDB_CREATE);
-        // MDB_DUPSORT for duplicate keys (or multiple values for one key)
-        identitiesToIp4Ranges = env.openDbi(conf.getIdentitiesToIp4RangesDbName(), MDB_CREATE, MDB_DUPSORT);
+        identitiesToIp4Ranges = env.openDbi(conf.getIdentitiesToIp4RangesDbName(), identitiesToRangesFlags);
         ip4Masks = env.openDbi(conf.getIp4MasksDbName(), MDB_CREATE);
         ip6RangesToIdentity = env.openDbi(conf.getIp6RangesToIdentityDbName(), MDB_CREATE);
-        // MDB_DUPSORT for duplicate keys (or multiple values for one key)
-        identitiesToIp6Ranges = env.openDbi(conf.getIdentitiesToIp6RangesDbName(), MDB_CREATE, MDB_DUPSORT);
+        identitiesToIp6Ranges = env.openDbi(conf.getIdentitiesToIp6RangesDbName(), identitiesToRangesFlags);
         ip6Masks = env.openDbi(conf.getIp6MasksDbName(), MDB_CREATE);
+        if (conf.isIdentityDictionary()) {
+            identityCodec = new DictionaryIdentityCodec(
+                    env.openDbi(Optional.ofNullable(conf.getIdentitiesToIdsDbName())
+                            .orElse(DEFAULT_IDENTITIES_TO_IDS_DB_NAME), MDB_CREATE),
+                    env.openDbi(Optional.ofNullable(conf.getIdsToIdentitiesDbName())
+                            .orElse(DEFAULT_IDS_TO_IDENTITIES_DB_NAME), MDB_CREATE, MDB_INTEGERKEY),
+                    conf.getMaxIdentityKeySize());
+        } else {
+            identityCodec = CStringIdentityCodec.INSTANCE;
+        }
+        mapGrowth = new MapGrowth(env, conf, metrics);
+        writeBuffers = new WriteBuffers(conf.getMaxIdentityKeySize(), conf.getMaxMaskKeySize());
+        if (conf.isProbeFilters()) {
+            refreshProbeFilters();
+        }
     }
 
     public void insertIpRange(final String ipRange, final String identity) {
+        try (Batch batch = newBatch()) {
+            batch.insert(ipRange, identity);
+            batch.commit();
+        }
+    }
+
+    /**
+     * Inserts the range of addresses {@code start-end} decomposed to CIDR blocks.
+     *
+     * @return number of inserted blocks
+     * @see Batch#insertRange(String, String)
+     */
+    public int insertRange(final String range, final String identity) {
+        try (Batch batch = newBatch()) {
+            final int inserted = batch.insertRange(range, identity);
+            batch.commit();
+            return inserted;
+        }
+    }
+
+    /**
+     * Deletes the range. Its mask stays stored, it is removed by {@link #sync(Iterable)} when unused.
+     *
+     * @return false if the range is not stored
+     * @throws IllegalArgumentException if the range is invalid
+     */
+    public boolean deleteIpRange(final String ipRange) {
+        try (Batch batch = newBatch()) {
+            final boolean deleted = batch.delete(ipRange);
+            batch.commit();
+            return deleted;
+        }
+    }
+
+    /**
+     * Inserts all the entries using a single {@link Batch}. Entries which cannot be inserted are counted
+     * as failed and the insertion continues with the next entry.
+     *
+     * @param entries ranges to insert
+     * @return counts of inserted, skipped and failed entries
+     */
+    public InsertReport insertIpRanges(final Iterable<RangeEntry> entries) {
+        try (Batch batch = newBatch()) {
+            for (final RangeEntry entry : entries) {
+                try {
+                    batch.insert(entry);
+                } catch (IllegalArgumentException e) {
+                    // already counted as failed by the batch
+                }
+            }
+            return batch.commit();
+        }
+    }
+
+    public InsertReport insertIpRanges(final Stream<RangeEntry> entries) {
+        return insertIpRanges(entries::iterator);
+    }
+
+    /**
+     * Opens a new batch. All the writes of the batch share one write transaction which is committed by
+     * {@link Batch#commit()} or every {@link Configuration#getBatchCommitSize()} inserted ranges if set.
+     * Only one batch (write transaction) can be open at a time.
+     * <p>
+     * With {@link Configuration#getEnvSizeGrowthFactor()} set, the ranges not committed yet are kept in memory
+     * to be written again after the map grows, so large batches should be committed periodically.
+     *
+     * @return new batch which must be closed
+     */
+    public Batch newBatch() {
+        return new Batch(true);
+    }
+
+    /**
+     * Opens a new batch committed only by {@link Batch#commit()}, regardless of
+     * {@link Configuration#getBatchCommitSize()}, so either all its writes are committed or none of them.
+     */
+    Batch newAtomicBatch() {
+        return new Batch(false);
+    }
+
+    /**
+     * Starts a writer accepting inserts and deletes from any number of threads which are committed in groups
+     * by the writer's thread.
+     *
+     * @return new writer which must be closed
+     * @throws IllegalStateException if {@link Configuration#getOverlapPolicy()} is set, the writer reports
+     *                               the result of every change which the normalization doesn't know until
+     *                               the commit
+     * @see IpRangerWriter
+     */
+    public IpRangerWriter newWriter() {
+        return new IpRangerWriter(this);
+    }
+
+    /**
+     * Opens a new bulk loader which replaces all the stored ranges by the ranges added to it.
+     *
+     * @return new bulk loader which must be closed
+     * @see BulkLoader
+     */
+    public BulkLoader newBulkLoader() {
+        return new BulkLoader(this);
+    }
+
+    /**
+     * Ingests the lines with parsing and encoding done in parallel by {@link Configuration#getIngestParallelism()}
+     * threads and all the writes done by a single writer thread. The ranges are written by one {@link Batch},
+     * normalized when {@link Configuration#getOverlapPolicy()} is set.
+     *
+     * @see IngestPipeline
+     */
+    public InsertReport ingest(final Stream<String> lines, final Function<String, RangeEntry> lineParser,
+                               final Consumer<IngestError> errorHandler) {
+        return new IngestPipeline(this, lineParser, errorHandler).run(lines);
+    }
+
+    public InsertReport ingest(final Path file, final Function<String, RangeEntry> lineParser,
+                               final Consumer<IngestError> errorHandler) throws IOException {
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            return ingest(lines, lineParser, errorHandler);
+        }
+    }
+
+    public InsertReport ingest(final InputStream input, final Function<String, RangeEntry> lineParser,
+                               final Consumer<IngestError> errorHandler) {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        return ingest(reader.lines(), lineParser, errorHandler);
+    }
+
+    /**
+     * Makes the stored ranges equal to the source by writing only the differences: new ranges are inserted,
+     * ranges with another identity are updated and ranges missing in the source are deleted. Masks which
+     * are not used by the source anymore are removed. All the changes are applied in one transaction.
+     * <p>
+     * The source must be sorted by the end address (the last address of the range) of each address
+     * family, IPv4 and IPv6 ranges can be interleaved. When the same range is in the source more than once,
+     * the last one wins. Entries which fail (see {@link SyncReport#getFailed()}) never delete stored ranges.
+     *
+     * @param sortedSource the complete new data set
+     * @return counts of the applied changes
+     * @throws IllegalArgumentException if the source is not sorted, nothing is changed then
+     */
+    public SyncReport sync(final Iterable<RangeEntry> sortedSource) {
+        return new RangeSync(this).run(sortedSource);
+    }
+
+    public SyncReport sync(final Stream<RangeEntry> sortedSource) {
+        return sync(sortedSource::iterator);
+    }
+
+    /**
+     * Exports all the databases to a compact archive file, which is much faster to restore by
+     * {@link #importFrom(Path)} than reloading the ranges from their source.
+     *
+     * @return number of exported records of all the databases
+     * @see RangeArchive
+     */
+    public long exportTo(final Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            return RangeArchive.write(this, channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot export to " + file, e);
+        }
+    }
+
+    /**
+     * Replaces all the stored data by the archive written by {@link #exportTo(Path)}.
+     *
+     * @return the restored ranges counted as inserted
+     * @throws IllegalArgumentException if the file is not a compatible archive
+     * @see RangeArchive
+     */
+    public InsertReport importFrom(final Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return RangeArchive.read(this, channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot import from " + file, e);
+        }
+    }
+
+    /**
+     * Copies the environment to the target directory by LMDB's compacting copy which leaves out the free pages
+     * and renumbers the pages sequentially. The target directory is created if it doesn't exist,
+     * it must be empty otherwise.
+     *
+     * @return bytes used by the environment and size of its compacted copy
+     */
+    public CompactReport compact(final Path target) {
+        mapGrowth.enter();
+        try {
+            Files.createDirectories(target);
+            // the data file can be as large as the map (e.g. with MDB_WRITEMAP), only the used pages are counted
+            final long usedBytes = (env.info().lastPageNumber + 1) * env.stat().pageSize;
+            env.copy(target.toFile(), CopyFlags.MDB_CP_COMPACT);
+            return new CompactReport(usedBytes, Files.size(target.resolve(DATA_FILE)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot compact to " + target, e);
+        } finally {
+            mapGrowth.exit();
+        }
+    }
+
+    /**
+     * Parses and encodes the range. Can be called from any thread with its own parser and cidr.
+     *
+     * @param identity identity of the range or null for a range to delete
+     * @throws IllegalArgumentException if the range or identity is invalid
+     */
+    EncodedRange encode(final CidrParser parser, final Cidr target, final String ipRange, final String identity) {
         try {
-            final CIDRUtils cidr = new CIDRUtils(ipRange.trim());
-            final int mask = cidr.getMask();
-            final byte[] maskBytes = CUtils.toCString(Integer.toString(mask)).getBytes(StandardCharsets.UTF_8);
-            if (maskBytes.length > conf.getMaxMaskKeySize()) {
-                throw new IllegalArgumentException("Mask as a string is too long (as a C string with null ending). " +
-                        "Mask (including ending NULL char) cannot be longer than " + conf.getMaxMaskKeySize());
-            }
-            final byte[] identityBytes = CUtils.toCString(identity.trim()).getBytes(StandardCharsets.UTF_8);
-            if (identityBytes.length > conf.getMaxIdentityKeySize()) {
-                throw new IllegalArgumentException("Identity is too long (as a C string with null ending). " +
-                        "Identity (including ending NULL char) cannot be longer than " + conf.getMaxIdentityKeySize());
-            }
-            final byte[] endAddressBytes = cidr.getEndAddress().getAddress();
-            insertIntoIpToIdentities(endAddressBytes, identityBytes);
-            insertIntoIdentityToIps(identityBytes, endAddressBytes);
-            insertIntoMasks(maskBytes, endAddressBytes.length == IPV6_SIZE);
+            parser.parse(ipRange, target);
+            return encode(target, identity == null ? null : toIdentityBytes(identity));
         } catch (Exception e) {
             throw new IllegalArgumentException("Unparsable ip range " + ipRange +
                     " of identity " + identity, e);
         }
     }
 
-    private void insertIntoIpToIdentities(final byte[] ipAddressBytes, final byte[] identityBytes) {
+    /**
+     * @param identityBytes identity as a C string or null for a range to delete
+     * @throws IllegalArgumentException if the mask is too long
+     */
+    private EncodedRange encode(final Cidr range, final byte[] identityBytes) {
+        final byte[] maskBytes = toMaskBytes(range.getPrefixLength());
+        final byte[] endAddressBytes = new byte[range.getAddressSize()];
+        range.writeEndAddress(endAddressBytes, 0);
+        return new EncodedRange(endAddressBytes, range.getPrefixLength(), maskBytes, identityBytes);
+    }
+
+    /**
+     * @return false if the range is already stored with the same identity, true otherwise
+     */
+    private boolean insertIpRange(final Txn<ByteBuffer> txn, final EncodedRange range) {
+        final byte[] endAddressBytes = range.getEndAddress();
+        final byte[] identityBytes = identityCodec.encode(txn, range.getIdentity());
+        final boolean ipv6 = endAddressBytes.length == IPV6_SIZE;
+        final byte[] previousIdentityBytes = insertIntoIpToIdentities(txn, endAddressBytes, identityBytes);
+        // the same end address can come with another mask, the mask must be stored anyway
+        insertIntoMasks(txn, range.getMask(), ipv6);
+        if (Arrays.equals(previousIdentityBytes, identityBytes)) {
+            return false;
+        }
+        if (previousIdentityBytes != null) {
+            // the range now belongs to another identity
+            deleteFromIdentityToIps(txn, previousIdentityBytes, endAddressBytes);
+        }
+        insertIntoIdentityToIps(txn, identityBytes, endAddressBytes);
+        return true;
+    }
+
+    /**
+     * @return false if the range is not stored
+     */
+    private boolean deleteIpRange(final Txn<ByteBuffer> txn, final EncodedRange range) {
+        final byte[] endAddressBytes = range.getEndAddress();
+        final Dbi<ByteBuffer> db = endAddressBytes.length == IPV6_SIZE ? ip6RangesToIdentity : ip4RangesToIdentity;
+        final ByteBuffer key = writeBuffers.address(endAddressBytes);
+        final ByteBuffer previous = db.get(txn, key);
+        if (previous == null) {
+            return false;
+        }
+        final byte[] previousBytes = new byte[previous.remaining()];
+        previous.get(previousBytes);
+        db.delete(txn, key);
+        deleteFromIdentityToIps(txn, previousBytes, endAddressBytes);
+        return true;
+    }
+
+    /**
+     * @return mask as a C string
+     * @throws IllegalArgumentException if the mask is too long
+     */
+    byte[] toMaskBytes(final int mask) {
+        final byte[] maskBytes = MASK_C_STRINGS[mask];
+        if (maskBytes.length > conf.getMaxMaskKeySize()) {
+            throw new IllegalArgumentException("Mask as a string is too long (as a C string with null ending). " +
+                    "Mask (including ending NULL char) cannot be longer than " + conf.getMaxMaskKeySize());
+        }
+        return maskBytes;
+    }
+
+    /**
+     * @return trimmed identity as a C string
+     * @throws IllegalArgumentException if the identity is too long
+     */
+    byte[] toIdentityBytes(final String identity) {
+        final byte[] identityBytes = CUtils.toCString(identity.trim()).getBytes(StandardCharsets.UTF_8);
+        if (identityBytes.length > conf.getMaxIdentityKeySize()) {
+            throw new IllegalArgumentException("Identity is too long (as a C string with null ending). " +
+                    "Identity (including ending NULL char) cannot be longer than " + conf.getMaxIdentityKeySize());
+        }
+        return identityBytes;
+    }
+
+    /**
+     * @return identity previously stored for the ip address or null
+     */
+    private byte[] insertIntoIpToIdentities(final Txn<ByteBuffer> txn, final byte[] ipAddressBytes,
+                                            final byte[] identityBytes) {
         Dbi<ByteBuffer> db = ipAddressBytes.length == IPV6_SIZE ? ip6RangesToIdentity : ip4RangesToIdentity;
-        final ByteBuffer key = ByteBuffer.allocateDirect(ipAddressBytes.length);
-        key.put(ipAddressBytes).flip();
-        final ByteBuffer value = ByteBuffer.allocateDirect(identityBytes.length);
-        value.put(identityBytes).flip();
-        db.put(key, value);
+        final ByteBuffer key = writeBuffers.address(ipAddressBytes);
+        final ByteBuffer previous = db.get(txn, key);
+        byte[] previousBytes = null;
+        if (previous != null) {
+            previousBytes = new byte[previous.remaining()];
+            previous.get(previousBytes);
+            if (Arrays.equals(previousBytes, identityBytes)) {
+                return previousBytes;
+            }
+        } else {
+            rangeStored(key);
+        }
+        db.put(txn, key, writeBuffers.identity(identityBytes));
+        return previousBytes;
+    }
+
+    private void insertIntoIdentityToIps(final Txn<ByteBuffer> txn, final byte[] identityBytes,
+                                         final byte[] ipAddressBytes) {
+        Dbi<ByteBuffer> db = ipAddressBytes.length == IPV6_SIZE ? identitiesToIp6Ranges : identitiesToIp4Ranges;
+        db.put(txn, writeBuffers.identity(identityBytes), writeBuffers.address(ipAddressBytes));
     }
 
-    private void insertIntoIdentityToIps(final byte[] identityBytes, final byte[] ipAddressBytes) {
+    private void deleteFromIdentityToIps(final Txn<ByteBuffer> txn, final byte[] identityBytes,
+                                         final byte[] ipAddressBytes) {
         Dbi<ByteBuffer> db = ipAddressBytes.length == IPV6_SIZE ? identitiesToIp6Ranges : identitiesToIp4Ranges;
-        final ByteBuffer key = ByteBuffer.allocateDirect(identityBytes.length);
-        key.put(identityBytes).flip();
-        final ByteBuffer value = ByteBuffer.allocateDirect(ipAddressBytes.length);
-        value.put(ipAddressBytes).flip();
-        db.put(key, value);
-    }
-
-    private void insertIntoMasks(final byte[] maskBytes, final boolean ipv6) {
-        final ByteBuffer key = ByteBuffer.allocateDirect(maskBytes.length);
-        key.put(maskBytes).flip();
-        final ByteBuffer value = ByteBuffer.allocateDirect(maskBytes.length);
-        value.put(maskBytes).flip();
+        db.delete(txn, writeBuffers.identity(identityBytes), writeBuffers.address(ipAddressBytes));
+    }
+
+    private void insertIntoMasks(final Txn<ByteBuffer> txn, final byte[] maskBytes, final boolean ipv6) {
+        // the mask is both the key and the value
+        final ByteBuffer mask = writeBuffers.mask(maskBytes);
         Dbi<ByteBuffer> db = ipv6 ? ip6Masks : ip4Masks;
-        try (Txn<ByteBuffer> txn = env.txnWrite()) {
-            // don't overwrite the same values
-            db.put(txn, key, value, PutFlags.MDB_NOOVERWRITE);
-            txn.commit();
+        // don't overwrite the same values
+        db.put(txn, mask, mask, PutFlags.MDB_NOOVERWRITE);
+    }
+
+    /**
+     * Finds the identity owning the most specific range containing the address. The masks stored for the
+     * address family are probed from the longest one and the first range whose end address equals the address
+     * with host bits of the mask set wins, the same way as the C resolver does it.
+     * <p>
+     * Lookups can be done from any number of threads but not from a thread which has an open {@link Batch}.
+     *
+     * @param address IPv4 or IPv6 address
+     * @return identity or null if there is no range containing the address
+     */
+    public String lookup(final InetAddress address) {
+        return lookup(address.getAddress());
+    }
+
+    /**
+     * @param address IPv4 (4 bytes) or IPv6 (16 bytes) address in network byte order
+     */
+    public String lookup(final byte[] address) {
+        if (address.length == IPV4_SIZE) {
+            return lookup(toInt(address, 0));
+        } else if (address.length == IPV6_SIZE) {
+            return lookup(toLong(address, 0), toLong(address, 8));
         }
+        throw new IllegalArgumentException("Address must have either " + IPV4_SIZE + " or " + IPV6_SIZE +
+                " bytes but has " + address.length);
+    }
+
+    /**
+     * @param ip4Address IPv4 address as int, e.g. 0x0A000001 for 10.0.0.1
+     */
+    public String lookup(final int ip4Address) {
+        return lookup(false, 0, ip4Address & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param ip6High the first (most significant) 8 bytes of IPv6 address
+     * @param ip6Low  the last 8 bytes of IPv6 address
+     */
+    public String lookup(final long ip6High, final long ip6Low) {
+        return lookup(true, ip6High, ip6Low);
+    }
+
+    private String lookup(final boolean ipv6, final long high, final long low) {
+        final long start = System.nanoTime();
+        final String identity;
+        if (lookupCache == null) {
+            identity = lookupIdentity(ipv6, high, low);
+        } else {
+            final long generation = lookupCache.getGeneration();
+            final LookupCache.Entry cached = lookupCache.get(ipv6, high, low, generation);
+            if (cached != null) {
+                identity = cached.getIdentity();
+            } else {
+                identity = lookupIdentity(ipv6, high, low);
+                lookupCache.put(ipv6, high, low, generation, identity);
+            }
+        }
+        metrics.lookedUp(System.nanoTime() - start, identity != null);
+        return identity;
+    }
+
+    private String lookupIdentity(final boolean ipv6, final long high, final long low) {
+        final LookupContext context = lookupContext.get();
+        final Cidr probe = context.cidr;
+        final ByteBuffer key = context.key;
+        final Txn<ByteBuffer> txn = txnRead();
+        try {
+            final int maxPrefix = readMasks(txn, ipv6 ? ip6Masks : ip4Masks, context.prefixes);
+            final Dbi<ByteBuffer> db = ipv6 ? ip6RangesToIdentity : ip4RangesToIdentity;
+            // read in the transaction so that it has all the ranges the transaction sees
+            final ProbeFilter filter = ipv6 ? ip6ProbeFilter : ip4ProbeFilter;
+            for (int prefix = maxPrefix; prefix >= 0; prefix--) {
+                if (!context.prefixes[prefix]) {
+                    continue;
+                }
+                if (ipv6) {
+                    probe.setIpv6(high, low, prefix);
+                } else {
+                    probe.setIpv4((int) low, prefix);
+                }
+                if (filter != null && !filter.mightContain(probe.getEndHigh(), probe.getEndLow())) {
+                    continue;
+                }
+                key.clear();
+                probe.writeEndAddress(key);
+                key.flip();
+                final ByteBuffer identity = db.get(txn, key);
+                if (identity != null) {
+                    return identityCodec.decode(txn, identity);
+                }
+            }
+        } finally {
+            release(txn);
+        }
+        return null;
+    }
+
+    /**
+     * Looks up many IPv4 addresses in one read transaction walking the ranges in the order of the addresses,
+     * which is much faster than looking them up one by one for large batches. Not reported to the metrics.
+     *
+     * @param ip4Addresses IPv4 addresses as ints, e.g. 0x0A000001 for 10.0.0.1
+     * @param identities   receives the identity of each address at its index, null if there is no range
+     *                     containing it, must be at least as long as the addresses
+     * @see #lookup(int)
+     */
+    public void lookupAll(final int[] ip4Addresses, final String[] identities) {
+        final long[] low = new long[ip4Addresses.length];
+        for (int i = 0; i < low.length; i++) {
+            low[i] = ip4Addresses[i] & 0xFFFFFFFFL;
+        }
+        lookupAll(false, new long[0], low, identities);
+    }
+
+    /**
+     * @param ip6Addresses IPv6 addresses, each as two longs: the first (most significant) 8 bytes and the last 8 bytes
+     * @see #lookupAll(int[], String[])
+     */
+    public void lookupAll(final long[][] ip6Addresses, final String[] identities) {
+        final long[] high = new long[ip6Addresses.length];
+        final long[] low = new long[ip6Addresses.length];
+        for (int i = 0; i < low.length; i++) {
+            high[i] = ip6Addresses[i][0];
+            low[i] = ip6Addresses[i][1];
+        }
+        lookupAll(true, high, low, identities);
+    }
+
+    /**
+     * @param addresses   IPv4 or IPv6 addresses in network byte order packed between the position and the limit,
+     *                    neither of them is changed
+     * @param addressSize 4 for IPv4 and 16 for IPv6 addresses
+     * @see #lookupAll(int[], String[])
+     */
+    public void lookupAll(final ByteBuffer addresses, final int addressSize, final String[] identities) {
+        if (addressSize != IPV4_SIZE && addressSize != IPV6_SIZE) {
+            throw new IllegalArgumentException("Address must have either " + IPV4_SIZE + " or " + IPV6_SIZE +
+                    " bytes but has " + addressSize);
+        }
+        if (addresses.remaining() % addressSize != 0) {
+            throw new IllegalArgumentException("Addresses take " + addresses.remaining() +
+                    " bytes which is not a multiple of " + addressSize);
+        }
+        final int size = addresses.remaining() / addressSize;
+        final boolean ipv6 = addressSize == IPV6_SIZE;
+        final long[] high = new long[ipv6 ? size : 0];
+        final long[] low = new long[size];
+        for (int i = 0; i < size; i++) {
+            final int offset = addresses.position() + i * addressSize;
+            if (ipv6) {
+                high[i] = getLong(addresses, offset);
+                low[i] = getLong(addresses, offset + 8);
+            } else {
+                low[i] = getInt(addresses, offset) & 0xFFFFFFFFL;
+            }
+        }
+        lookupAll(ipv6, high, low, identities);
+    }
+
+    private void lookupAll(final boolean ipv6, final long[] high, final long[] low, final String[] identities) {
+        if (identities.length < low.length) {
+            throw new IllegalArgumentException("Identities array has " + identities.length +
+                    " elements but there are " + low.length + " addresses");
+        }
+        final BatchLookup batchLookup = new BatchLookup(this, ipv6, high, low);
+        final Txn<ByteBuffer> txn = txnRead();
+        try {
+            batchLookup.lookup(txn, identityCodec, identities);
+        } finally {
+            release(txn);
+        }
+    }
+
+    /**
+     * Streams all ranges of the identity, IPv4 ranges first, each ordered by its end address. The ranges are
+     * read lazily in a read transaction which is held until the stream is consumed or closed, so the stream
+     * should be closed (e.g. by try-with-resources) and consumed by the thread which created it. With the map
+     * growth enabled, the thread must not write while the stream is open and the open stream delays the growth
+     * of other threads' writes (see {@link Configuration#getEnvSizeGrowthTimeoutMillis()}).
+     *
+     * @return ranges of the identity, empty if the identity has no range
+     * @throws IllegalArgumentException if the identity is too long
+     */
+    public Stream<StoredRange> rangesOf(final String identity) {
+        final byte[] identityBytes = toIdentityBytes(identity);
+        final Txn<ByteBuffer> txn = txnRead();
+        final byte[] stored;
+        try {
+            stored = identityCodec.find(txn, identityBytes);
+        } catch (RuntimeException e) {
+            release(txn);
+            throw e;
+        }
+        if (stored == null) {
+            release(txn);
+            return Stream.empty();
+        }
+        final ReverseRanges ranges = new ReverseRanges(this, txn, stored);
+        return StreamSupport.stream(ranges, false).onClose(ranges::close);
+    }
+
+    /**
+     * @return current statistics of the environment and its databases
+     */
+    public IpRangerStats stats() {
+        final EnvInfo info = env.info();
+        final Map<String, IpRangerStats.DbStats> dbStats = new LinkedHashMap<>();
+        final Txn<ByteBuffer> txn = txnRead();
+        try {
+            for (final Dbi<ByteBuffer> dbi : databases()) {
+                final Stat stat = dbi.stat(txn);
+                dbStats.put(new String(dbi.getName(), StandardCharsets.UTF_8), new IpRangerStats.DbStats(
+                        stat.depth, stat.branchPages, stat.leafPages, stat.overflowPages, stat.entries));
+            }
+        } finally {
+            release(txn);
+        }
+        return new IpRangerStats(info.mapSize, mapGrowth.getResizes(), env.stat().pageSize, info.lastPageNumber + 1,
+                info.lastTransactionId, info.numReaders, info.maxReaders, dbStats);
+    }
+
+    List<Dbi<ByteBuffer>> databases() {
+        final List<Dbi<ByteBuffer>> databases = new ArrayList<>(Arrays.asList(ip4RangesToIdentity,
+                identitiesToIp4Ranges, ip4Masks, ip6RangesToIdentity, identitiesToIp6Ranges, ip6Masks));
+        if (identityCodec instanceof DictionaryIdentityCodec) {
+            databases.add(((DictionaryIdentityCodec) identityCodec).getIdentitiesToIds());
+            databases.add(((DictionaryIdentityCodec) identityCodec).getIdsToIdentities());
+        }
+        return databases;
+    }
+
+    /**
+     * Builds a new {@link Ip4LookupIndex} from the current IPv4 ranges and publishes it so that following
+     * {@link #getIp4LookupIndex()} calls return it. Readers holding the previous index can keep using it.
+     * The index doesn't follow later writes, it has to be refreshed after the data changes.
+     *
+     * @return the new index
+     */
+    public Ip4LookupIndex refreshIp4LookupIndex() {
+        final Ip4LookupIndex index;
+        final Txn<ByteBuffer> txn = txnRead();
+        try {
+            index = Ip4LookupIndex.build(txn, ip4RangesToIdentity, ip4Masks, identityCodec);
+        } finally {
+            release(txn);
+        }
+        ip4LookupIndex = index;
+        return index;
+    }
+
+    /**
+     * @return the last index built by {@link #refreshIp4LookupIndex()} or null if it has not been built yet
+     */
+    public Ip4LookupIndex getIp4LookupIndex() {
+        return ip4LookupIndex;
+    }
+
+    /**
+     * Builds a new {@link Ip6LookupTrie} from the current IPv6 ranges and publishes it so that following
+     * {@link #getIp6LookupTrie()} calls return it. Readers holding the previous trie can keep using it.
+     * The trie doesn't follow later writes, it has to be refreshed after the data changes.
+     *
+     * @return the new trie
+     */
+    public Ip6LookupTrie refreshIp6LookupTrie() {
+        final Ip6LookupTrie trie;
+        final Txn<ByteBuffer> txn = txnRead();
+        try {
+            trie = Ip6LookupTrie.build(txn, ip6RangesToIdentity, ip6Masks, identityCodec);
+        } finally {
+            release(txn);
+        }
+        ip6LookupTrie = trie;
+        return trie;
+    }
+
+    /**
+     * @return the last trie built by {@link #refreshIp6LookupTrie()} or null if it has not been built yet
+     */
+    public Ip6LookupTrie getIp6LookupTrie() {
+        return ip6LookupTrie;
+    }
+
+    /**
+     * Builds new {@link ProbeFilter}s sized for the current ranges and publishes them for the following lookups.
+     * The filters are built in a write transaction so that no write is missed. The refresh drops the ranges deleted
+     * since the last build from the filters, which lowers their false positive rate, and it's done by the bulk load
+     * and the import. Lookups running during the refresh may miss ranges deleted shortly before it.
+     * Can't be called from a thread which has an open {@link Batch}.
+     *
+     * @throws IllegalStateException if the probe filters are not enabled
+     * @see Configuration#isProbeFilters()
+     */
+    public void refreshProbeFilters() {
+        if (!conf.isProbeFilters()) {
+            throw new IllegalStateException("Probe filters are not enabled");
+        }
+        final double falsePositiveRate = conf.getProbeFilterFalsePositiveRate() > 0
+                ? conf.getProbeFilterFalsePositiveRate() : DEFAULT_PROBE_FILTER_FALSE_POSITIVE_RATE;
+        try (WriteTxn txn = new WriteTxn(this)) {
+            ip4ProbeFilter = ProbeFilter.build(txn.txn(), ip4RangesToIdentity, falsePositiveRate);
+            ip6ProbeFilter = ProbeFilter.build(txn.txn(), ip6RangesToIdentity, falsePositiveRate);
+        }
+    }
+
+    /**
+     * @return cache of the lookup results or null if it's not enabled
+     * @see Configuration#getLookupCacheSize()
+     */
+    public LookupCache getLookupCache() {
+        return lookupCache;
+    }
+
+    /**
+     * @return the filter of the IPv4 or IPv6 ranges or null if the probe filters are not enabled
+     */
+    public ProbeFilter getProbeFilter(final boolean ipv6) {
+        return ipv6 ? ip6ProbeFilter : ip4ProbeFilter;
+    }
+
+    /**
+     * Adds the end address of a range to the probe filter. Must be called by every write of a range
+     * before it's committed.
+     *
+     * @param endAddress IPv4 or IPv6 address between the position and the limit of the buffer
+     */
+    void rangeStored(final ByteBuffer endAddress) {
+        final ProbeFilter filter = endAddress.remaining() == IPV6_SIZE ? ip6ProbeFilter : ip4ProbeFilter;
+        if (filter != null) {
+            filter.add(endAddress);
+        }
+    }
+
+    /**
+     * Refreshes the probe filters if they are enabled and all the ranges have been replaced or more ranges have
+     * been added to a filter than it's sized for. Called when a write finishes.
+     */
+    void rangesWritten(final boolean replaced) {
+        if (conf.isProbeFilters() && (replaced || ip4ProbeFilter.isFull() || ip6ProbeFilter.isFull())) {
+            refreshProbeFilters();
+        }
+    }
+
+    /**
+     * Reads the masks to {@code prefixes} flags.
+     *
+     * @return the longest mask or -1 if there is none
+     */
+    static int readMasks(final Txn<ByteBuffer> txn, final Dbi<ByteBuffer> masks, final boolean[] prefixes) {
+        Arrays.fill(prefixes, false);
+        int maxPrefix = -1;
+        try (Cursor<ByteBuffer> cursor = masks.openCursor(txn)) {
+            boolean found = cursor.first();
+            while (found) {
+                final int prefix = parseMask(cursor.key());
+                if (prefix >= 0 && prefix < prefixes.length) {
+                    prefixes[prefix] = true;
+                    maxPrefix = Math.max(maxPrefix, prefix);
+                }
+                found = cursor.next();
+            }
+        }
+        return maxPrefix;
+    }
+
+    /**
+     * @return mask stored as a C string or -1 if it isn't a number
+     */
+    private static int parseMask(final ByteBuffer maskKey) {
+        int mask = 0;
+        int digits = 0;
+        for (int i = maskKey.position(); i < maskKey.limit(); i++) {
+            final byte b = maskKey.get(i);
+            if (b == 0) {
+                break;
+            }
+            if (b < '0' || b > '9' || ++digits > 3) {
+                return -1;
+            }
+            mask = mask * 10 + (b - '0');
+        }
+        return digits == 0 ? -1 : mask;
+    }
+
+    /**
+     * @return IPv4 address stored in network byte order at the buffer's position
+     */
+    static int getIp4(final ByteBuffer buffer) {
+        return getInt(buffer, buffer.position());
+    }
+
+    /**
+     * @return 4 bytes stored in network byte order at the index of the buffer
+     */
+    static int getInt(final ByteBuffer buffer, final int index) {
+        int value = 0;
+        for (int i = index; i < index + IPV4_SIZE; i++) {
+            value = value << 8 | (buffer.get(i) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return 8 bytes stored in network byte order at the index of the buffer
+     */
+    static long getLong(final ByteBuffer buffer, final int index) {
+        long value = 0;
+        for (int i = index; i < index + 8; i++) {
+            value = value << 8 | (buffer.get(i) & 0xFF);
+        }
+        return value;
+    }
+
+    private static int toInt(final byte[] bytes, final int offset) {
+        int value = 0;
+        for (int i = offset; i < offset + 4; i++) {
+            value = value << 8 | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long toLong(final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = value << 8 | (bytes[i] & 0xFF);
+        }
+        return value;
     }
 
     public void close() {
         if (env != null) {
+            syncDeferred();
             env.close();
         }
     }
@@ -165,4 +1038,300 @@ public class IpRanger implements Closeable {
             throw new IllegalStateException("The size " + keySize + " + of " + keyName + " cannot be bigger than " + env.getMaxKeySize());
         }
     }
+
+    /**
+     * Per thread buffers of the lookup.
+     */
+    private static class LookupContext {
+        private final ByteBuffer key = ByteBuffer.allocateDirect(IPV6_SIZE);
+        private final Cidr cidr = new Cidr();
+        private final boolean[] prefixes = new boolean[IPV6_SIZE * 8 + 1];
+    }
+
+    /**
+     * Direct buffers of keys and values reused by all the writes. LMDB allows only one write transaction
+     * at a time so the buffers are never used by two threads at once.
+     */
+    private static class WriteBuffers {
+        private final ByteBuffer address = ByteBuffer.allocateDirect(IPV6_SIZE);
+        private final ByteBuffer identity;
+        private final ByteBuffer mask;
+
+        WriteBuffers(final int maxIdentitySize, final int maxMaskSize) {
+            identity = ByteBuffer.allocateDirect(Math.max(maxIdentitySize, DictionaryIdentityCodec.ID_SIZE));
+            mask = ByteBuffer.allocateDirect(maxMaskSize);
+        }
+
+        ByteBuffer address(final byte[] bytes) {
+            return fill(address, bytes);
+        }
+
+        ByteBuffer identity(final byte[] bytes) {
+            return fill(identity, bytes);
+        }
+
+        ByteBuffer mask(final byte[] bytes) {
+            return fill(mask, bytes);
+        }
+
+        private static ByteBuffer fill(final ByteBuffer buffer, final byte[] bytes) {
+            buffer.clear();
+            buffer.put(bytes).flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Group of writes sharing one write transaction. The batch is not thread safe.
+     * <p>
+     * With {@link Configuration#getOverlapPolicy()} set, the inserted ranges are kept in memory and normalized
+     * (see {@link NormalizationReport}) when the batch is committed, the deletes are written right away.
+     */
+    public class Batch implements Closeable {
+        private final InsertReport report = new InsertReport();
+        private final RangeNormalizer normalizer = conf.getOverlapPolicy() != null
+                ? new RangeNormalizer(conf.getOverlapPolicy()) : null;
+        private final int commitSize;
+        private WriteTxn txn;
+        private int uncommitted;
+
+        private Batch(final boolean intermediateCommits) {
+            commitSize = intermediateCommits ? conf.getBatchCommitSize() : 0;
+            txn = new WriteTxn(IpRanger.this);
+        }
+
+        public boolean insert(final RangeEntry entry) {
+            if (entry == null) {
+                skip();
+                return false;
+            }
+            return insert(entry.getIpRange(), entry.getIdentity());
+        }
+
+        /**
+         * Inserts the range into the batch.
+         *
+         * @return false if the range was skipped, true if it was inserted
+         * @throws IllegalArgumentException if the range or identity is invalid, the range is counted as failed
+         */
+        public boolean insert(final String ipRange, final String identity) {
+            checkOpen();
+            if (ipRange == null || identity == null || ipRange.trim().isEmpty() || identity.trim().isEmpty()) {
+                skip();
+                return false;
+            }
+            final EncodedRange range;
+            try {
+                range = encode(cidrParser, cidr, ipRange, identity);
+            } catch (IllegalArgumentException e) {
+                fail();
+                throw e;
+            }
+            if (normalizer != null) {
+                normalizer.add(cidr, range.getIdentity());
+                return true;
+            }
+            return write(range);
+        }
+
+        /**
+         * Inserts the range of addresses {@code start-end} (IPv4 or IPv6, e.g. {@code 10.0.0.1-10.0.0.6})
+         * decomposed to the minimal set of CIDR blocks (10.0.0.1/32, 10.0.0.2/31, 10.0.0.4/31 and 10.0.0.6/32).
+         * Each block is inserted and counted as a range.
+         *
+         * @return number of inserted blocks, the ones already stored with the same identity are skipped,
+         * with normalization the number of blocks added to it
+         * @throws IllegalArgumentException if the range or identity is invalid, the range is counted as failed
+         * @see CidrBlocks
+         */
+        public int insertRange(final String range, final String identity) {
+            checkOpen();
+            if (range == null || identity == null || range.trim().isEmpty() || identity.trim().isEmpty()) {
+                skip();
+                return 0;
+            }
+            final long inserted = report.getInserted();
+            final int blocks;
+            try {
+                cidrParser.parseRange(range, cidr, rangeEnd);
+                final byte[] identityBytes = toIdentityBytes(identity);
+                final boolean ipv6 = cidr.isIpv6();
+                blocks = CidrBlocks.decompose(ipv6, cidr.getHigh(), cidr.getLow(), rangeEnd.getHigh(), rangeEnd.getLow(),
+                        (high, low, prefixLength) -> {
+                            if (ipv6) {
+                                cidr.setIpv6(high, low, prefixLength);
+                            } else {
+                                cidr.setIpv4((int) low, prefixLength);
+                            }
+                            if (normalizer != null) {
+                                // validates the mask the same way as the insert does
+                                toMaskBytes(prefixLength);
+                                normalizer.add(cidr, identityBytes);
+                            } else {
+                                write(encode(cidr, identityBytes));
+                            }
+                        });
+            } catch (IllegalArgumentException e) {
+                fail();
+                throw new IllegalArgumentException("Unparsable ip range " + range + " of identity " + identity, e);
+            }
+            return normalizer != null ? blocks : (int) (report.getInserted() - inserted);
+        }
+
+        /**
+         * Inserts already encoded range into the batch, normalized as the other inserts.
+         *
+         * @return false if the range was skipped, true if it was inserted or added to the normalization
+         */
+        boolean insert(final EncodedRange range) {
+            if (normalizer != null) {
+                checkOpen();
+                toCidr(range, cidr);
+                normalizer.add(cidr, range.getIdentity());
+                return true;
+            }
+            return write(range);
+        }
+
+        private boolean write(final EncodedRange range) {
+            checkOpen();
+            final long start = System.nanoTime();
+            if (!txn.write(t -> insertIpRange(t, range))) {
+                skip();
+                return false;
+            }
+            metrics.rangeWritten(System.nanoTime() - start);
+            report.inserted();
+            written();
+            return true;
+        }
+
+        /**
+         * Deletes the range in the batch.
+         *
+         * @return false if the range was skipped because it's not stored, true if it was deleted
+         * @throws IllegalArgumentException if the range is invalid, the range is counted as failed
+         */
+        public boolean delete(final String ipRange) {
+            checkOpen();
+            if (ipRange == null || ipRange.trim().isEmpty()) {
+                skip();
+                return false;
+            }
+            final EncodedRange range;
+            try {
+                range = encode(cidrParser, cidr, ipRange, null);
+            } catch (IllegalArgumentException e) {
+                fail();
+                throw e;
+            }
+            return delete(range);
+        }
+
+        /**
+         * Deletes already encoded range in the batch.
+         *
+         * @return false if the range was skipped, true if it was deleted
+         */
+        boolean delete(final EncodedRange range) {
+            checkOpen();
+            final long start = System.nanoTime();
+            if (!txn.write(t -> deleteIpRange(t, range))) {
+                skip();
+                return false;
+            }
+            metrics.rangeWritten(System.nanoTime() - start);
+            report.deleted();
+            written();
+            return true;
+        }
+
+        /**
+         * Counts the entry as skipped (e.g. an empty line).
+         */
+        void skip() {
+            checkOpen();
+            report.skipped();
+            metrics.rangeSkipped();
+        }
+
+        /**
+         * Counts the entry as failed.
+         */
+        void fail() {
+            checkOpen();
+            report.failed();
+            metrics.rangeRejected();
+        }
+
+        private void written() {
+            uncommitted++;
+            if (commitSize > 0 && uncommitted >= commitSize) {
+                txn.commit(uncommitted);
+                txn = new WriteTxn(IpRanger.this);
+                uncommitted = 0;
+            }
+        }
+
+        /**
+         * Commits the batch. The batch can't be used afterwards.
+         *
+         * @return counts of inserted, deleted, skipped and failed entries
+         */
+        public InsertReport commit() {
+            checkOpen();
+            if (normalizer != null) {
+                normalizer.normalize(false, (block, identity) -> write(encode(block, identity)));
+                normalizer.normalize(true, (block, identity) -> write(encode(block, identity)));
+                for (long i = 0; i < normalizer.getReport().getRejected(); i++) {
+                    fail();
+                }
+            }
+            txn.commit(uncommitted);
+            txn = null;
+            syncDeferred();
+            rangesWritten(false);
+            return report;
+        }
+
+        public InsertReport getReport() {
+            return report;
+        }
+
+        /**
+         * @return changes done by the normalization or null if the ranges are not normalized
+         */
+        public NormalizationReport getNormalizationReport() {
+            return normalizer != null ? normalizer.getReport() : null;
+        }
+
+        /**
+         * Aborts all the writes which were not committed yet.
+         */
+        @Override
+        public void close() {
+            if (txn != null) {
+                txn.close();
+                txn = null;
+            }
+        }
+
+        private void checkOpen() {
+            if (txn == null) {
+                throw new IllegalStateException("Batch has been already committed or closed");
+            }
+        }
+    }
+
+    /**
+     * Sets the target to the block of the encoded range, its host bits are not cleared.
+     */
+    private static void toCidr(final EncodedRange range, final Cidr target) {
+        final ByteBuffer endAddress = ByteBuffer.wrap(range.getEndAddress());
+        if (range.getEndAddress().length == IPV6_SIZE) {
+            target.setIpv6(endAddress.getLong(0), endAddress.getLong(Long.BYTES), range.getPrefixLength());
+        } else {
+            target.setIpv4(endAddress.getInt(0), range.getPrefixLength());
+        }
+    }
 }
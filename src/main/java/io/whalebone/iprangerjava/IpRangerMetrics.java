@@ -0,0 +1,74 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+/**
+ * Receiver of timings and counters of {@link IpRanger} operations, e.g. an adapter to a metrics library.
+ * All the methods do nothing by default. They are called synchronously from the threads doing the operations
+ * (lookups from any number of threads at once), so they must be thread safe and fast.
+ *
+ * @author Tomas Kozel
+ * @see Configuration#getMetrics()
+ * @see IpRanger#stats()
+ */
+public interface IpRangerMetrics {
+    IpRangerMetrics NOOP = new IpRangerMetrics() {
+    };
+
+    /**
+     * A range has been written (inserted, its identity changed or deleted) by a batch.
+     *
+     * @param nanos time of all the database updates of the range
+     */
+    default void rangeWritten(long nanos) {
+    }
+
+    /**
+     * An empty entry or a range already stored with the same identity has been skipped.
+     */
+    default void rangeSkipped() {
+    }
+
+    /**
+     * A range has been rejected because it could not be parsed or is too long.
+     */
+    default void rangeRejected() {
+    }
+
+    /**
+     * A write transaction has been committed.
+     *
+     * @param nanos  time of the commit
+     * @param ranges number of ranges written by the transaction
+     */
+    default void committed(long nanos, int ranges) {
+    }
+
+    /**
+     * The map has been full and it has grown.
+     *
+     * @param mapSize the new size of the map
+     */
+    default void mapResized(long mapSize) {
+    }
+
+    /**
+     * @param nanos time of the lookup
+     * @param found whether an identity has been found
+     */
+    default void lookedUp(long nanos, boolean found) {
+    }
+}
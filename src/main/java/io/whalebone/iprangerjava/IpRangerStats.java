@@ -0,0 +1,70 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * Snapshot of the environment statistics ({@code mdb_env_info}, {@code mdb_env_stat} and {@code mdb_stat}
+ * of every database).
+ *
+ * @author Tomas Kozel
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class IpRangerStats {
+    private final long mapSize;
+    // number of times the map has grown since the environment was opened
+    private final int mapResizes;
+    private final int pageSize;
+    // pages of the map in use, including the free ones which can be reused
+    private final long usedPages;
+    private final long lastTransactionId;
+    private final int readers;
+    private final int maxReaders;
+    // by the database name
+    private final Map<String, DbStats> dbStats;
+
+    public long getUsedBytes() {
+        return usedPages * pageSize;
+    }
+
+    /**
+     * @return used part of the map, alert before it reaches 1
+     */
+    public double getMapUsage() {
+        return (double) getUsedBytes() / mapSize;
+    }
+
+    @Value
+    public static class DbStats {
+        private int depth;
+        private long branchPages;
+        private long leafPages;
+        private long overflowPages;
+        private long entries;
+
+        public long getPages() {
+            return branchPages + leafPages + overflowPages;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.utils.Cidr;
+import io.whalebone.iprangerjava.utils.CidrParser;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread safe front-end of the writes. Inserts and deletes can be submitted from any number of threads, they
+ * are parsed by the submitting thread and queued to the writer's thread. The writer takes the first queued
+ * change, collects the changes queued within {@link Configuration#getGroupCommitLatencyMillis()} (at most
+ * {@link Configuration#getGroupCommitMaxSize()} of them) and writes them in one {@link IpRanger.Batch},
+ * so many small commits (and their disk syncs) become a few large ones.
+ * <p>
+ * The future of a change is completed when the change is committed. The group is committed in one transaction
+ * regardless of {@link Configuration#getBatchCommitSize()}. When the group can't be written, none of its changes
+ * is committed, the futures of all of them are completed exceptionally and the writer continues with the next
+ * group.
+ * <p>
+ * The ranges are not normalized, the writer can't be created with {@link Configuration#getOverlapPolicy()} set.
+ *
+ * @author Tomas Kozel
+ * @see IpRanger#newWriter()
+ */
+public class IpRangerWriter implements Closeable {
+    private static final Change END = new Change(null, false);
+
+    private final IpRanger ipRanger;
+    private final long latencyNanos;
+    private final int maxGroupSize;
+    private final BlockingQueue<Change> queue = new LinkedBlockingQueue<>();
+    private final ThreadLocal<Parser> parser = ThreadLocal.withInitial(Parser::new);
+    private final Thread writerThread;
+    // guards the queue against changes submitted after the end
+    private final Object submitLock = new Object();
+    private boolean closed;
+
+    IpRangerWriter(final IpRanger ipRanger) {
+        this.ipRanger = ipRanger;
+        final Configuration conf = ipRanger.getConfiguration();
+        if (conf.getOverlapPolicy() != null) {
+            throw new IllegalStateException("Writer doesn't support normalization of the ranges, overlap policy "
+                    + conf.getOverlapPolicy() + " is set");
+        }
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(conf.getGroupCommitLatencyMillis());
+        this.maxGroupSize = conf.getGroupCommitMaxSize();
+        this.writerThread = new Thread(this::run, "ipranger-writer");
+        this.writerThread.start();
+    }
+
+    public CompletableFuture<Boolean> insert(final RangeEntry entry) {
+        return insert(entry.getIpRange(), entry.getIdentity());
+    }
+
+    /**
+     * @return future completed by false if the range is already stored with the same identity, true if it
+     * has been inserted, or exceptionally with {@link IllegalArgumentException} if the range or identity is
+     * invalid
+     * @throws IllegalStateException if the writer has been closed
+     */
+    public CompletableFuture<Boolean> insert(final String ipRange, final String identity) {
+        if (ipRange == null || identity == null || ipRange.trim().isEmpty() || identity.trim().isEmpty()) {
+            return invalid("Empty ip range " + ipRange + " or identity " + identity);
+        }
+        return submit(ipRange, identity, false);
+    }
+
+    /**
+     * @return future completed by false if the range is not stored, true if it has been deleted, or
+     * exceptionally with {@link IllegalArgumentException} if the range is invalid
+     * @throws IllegalStateException if the writer has been closed
+     */
+    public CompletableFuture<Boolean> delete(final String ipRange) {
+        if (ipRange == null || ipRange.trim().isEmpty()) {
+            return invalid("Empty ip range " + ipRange);
+        }
+        return submit(ipRange, null, true);
+    }
+
+    /**
+     * Commits all the submitted changes and stops the writer's thread.
+     */
+    @Override
+    public void close() {
+        synchronized (submitLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(END);
+        }
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<Boolean> submit(final String ipRange, final String identity, final boolean delete) {
+        final EncodedRange range;
+        try {
+            final Parser p = parser.get();
+            range = ipRanger.encode(p.cidrParser, p.cidr, ipRange, identity);
+        } catch (IllegalArgumentException e) {
+            ipRanger.getMetrics().rangeRejected();
+            final CompletableFuture<Boolean> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+        final Change change = new Change(range, delete);
+        synchronized (submitLock) {
+            if (closed) {
+                throw new IllegalStateException("Writer has been closed");
+            }
+            queue.add(change);
+        }
+        return change.result;
+    }
+
+    private CompletableFuture<Boolean> invalid(final String message) {
+        ipRanger.getMetrics().rangeRejected();
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        result.completeExceptionally(new IllegalArgumentException(message));
+        return result;
+    }
+
+    private void run() {
+        final List<Change> group = new ArrayList<>();
+        try {
+            boolean end = false;
+            while (!end) {
+                final Change first = queue.take();
+                if (first == END) {
+                    break;
+                }
+                group.add(first);
+                end = collect(group);
+                write(group);
+                group.clear();
+            }
+        } catch (InterruptedException e) {
+            final IllegalStateException failure = new IllegalStateException("Writer has been interrupted", e);
+            group.forEach(change -> change.result.completeExceptionally(failure));
+            queue.forEach(change -> change.result.completeExceptionally(failure));
+        }
+    }
+
+    /**
+     * Adds the changes queued until the latency elapses or the group is full.
+     *
+     * @return true if the end has been reached
+     */
+    private boolean collect(final List<Change> group) throws InterruptedException {
+        final long deadline = System.nanoTime() + latencyNanos;
+        while (maxGroupSize <= 0 || group.size() < maxGroupSize) {
+            final long remaining = deadline - System.nanoTime();
+            final Change change = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (change == null) {
+                return false;
+            }
+            if (change == END) {
+                return true;
+            }
+            group.add(change);
+        }
+        return false;
+    }
+
+    private void write(final List<Change> group) {
+        final boolean[] results = new boolean[group.size()];
+        // the group is committed at once, so its futures can't be failed after a part of it has been committed
+        try (IpRanger.Batch batch = ipRanger.newAtomicBatch()) {
+            for (int i = 0; i < group.size(); i++) {
+                final Change change = group.get(i);
+                results[i] = change.delete ? batch.delete(change.range) : batch.insert(change.range);
+            }
+            batch.commit();
+        } catch (Throwable e) {
+            group.forEach(change -> change.result.completeExceptionally(e));
+            return;
+        }
+        for (int i = 0; i < group.size(); i++) {
+            group.get(i).result.complete(results[i]);
+        }
+    }
+
+    private static final class Change {
+        private final EncodedRange range;
+        private final boolean delete;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private Change(final EncodedRange range, final boolean delete) {
+            this.range = range;
+            this.delete = delete;
+        }
+    }
+
+    private static final class Parser {
+        private final CidrParser cidrParser = new CidrParser();
+        private final Cidr cidr = new Cidr();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of lookup results keyed by the address as primitives. The cache is set associative: an address
+ * can be cached only in one set of 8 entries, the set is chosen by the address's hash, so a lookup checks at most
+ * 8 entries and no lock is taken. When the set is full, an entry is evicted by the CLOCK policy: entries
+ * hit since the hand passed them get another chance. Misses (addresses without a range) are cached too.
+ * <p>
+ * Every commit of {@link IpRanger} starts a new generation and the entries of previous generations are never
+ * returned, so a lookup following a write always sees it. Writes of other processes to the environment are not
+ * seen, the cache should be used only when the ranges are written through this {@link IpRanger}.
+ * The cache can be used by any number of threads.
+ *
+ * @author Tomas Kozel
+ * @see Configuration#getLookupCacheSize()
+ */
+public final class LookupCache {
+    private static final int WAYS = 8;
+
+    private final AtomicReferenceArray<Entry> entries;
+    // positions of the CLOCK hand in the sets, racy updates only make the eviction less precise
+    private final byte[] hands;
+    private final int setMask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final AtomicLong generation = new AtomicLong();
+
+    LookupCache(final int size) {
+        int sets = 1;
+        while (sets * WAYS < size && sets < 1 << 27) {
+            sets <<= 1;
+        }
+        this.entries = new AtomicReferenceArray<>(sets * WAYS);
+        this.hands = new byte[sets];
+        this.setMask = sets - 1;
+    }
+
+    /**
+     * @return the current generation, it has to be read before the looked up result is read from the database
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Makes all the cached results stale. Called after a commit.
+     */
+    void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @return the cached entry of the current generation or null if there is none
+     */
+    Entry get(final boolean ipv6, final long high, final long low, final long generation) {
+        final int set = set(ipv6, high, low);
+        for (int i = set; i < set + WAYS; i++) {
+            final Entry entry = entries.get(i);
+            if (entry != null && entry.matches(ipv6, high, low) && entry.generation == generation) {
+                if (!entry.referenced) {
+                    entry.referenced = true;
+                }
+                hits.increment();
+                return entry;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches the result looked up in the generation.
+     *
+     * @param identity identity or null if there is no range containing the address
+     */
+    void put(final boolean ipv6, final long high, final long low, final long generation, final String identity) {
+        if (generation != this.generation.get()) {
+            // already stale
+            return;
+        }
+        final int set = set(ipv6, high, low);
+        final Entry added = new Entry(ipv6, high, low, generation, identity);
+        // a free entry, a stale one or the same address
+        for (int i = set; i < set + WAYS; i++) {
+            final Entry entry = entries.get(i);
+            if (entry == null || entry.generation != generation || entry.matches(ipv6, high, low)) {
+                entries.set(i, added);
+                return;
+            }
+        }
+        final int setIndex = set / WAYS;
+        int hand = hands[setIndex];
+        while (true) {
+            final Entry entry = entries.get(set + hand);
+            hand = (hand + 1) % WAYS;
+            if (entry == null || !entry.referenced) {
+                break;
+            }
+            entry.referenced = false;
+        }
+        hands[setIndex] = (byte) hand;
+        entries.set(set + (hand + WAYS - 1) % WAYS, added);
+        evictions.increment();
+    }
+
+    /**
+     * @return maximum number of cached results
+     */
+    public int getCapacity() {
+        return entries.length();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of results evicted to make space for other ones, stale results are replaced without eviction
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return share of the lookups answered by the cache or 0 if there has been no lookup
+     */
+    public double getHitRatio() {
+        final long hitCount = hits.sum();
+        final long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return index of the first entry of the address's set
+     */
+    private int set(final boolean ipv6, final long high, final long low) {
+        final long hash = ProbeFilter.hash(ipv6 ? ~high : high, low);
+        return ((int) (hash >>> 32) & setMask) * WAYS;
+    }
+
+    /**
+     * Cached result, immutable except for the reference bit of the CLOCK policy.
+     */
+    static final class Entry {
+        private final boolean ipv6;
+        private final long high;
+        private final long low;
+        private final long generation;
+        private final String identity;
+        private boolean referenced;
+
+        private Entry(final boolean ipv6, final long high, final long low, final long generation,
+                      final String identity) {
+            this.ipv6 = ipv6;
+            this.high = high;
+            this.low = low;
+            this.generation = generation;
+            this.identity = identity;
+        }
+
+        private boolean matches(final boolean ipv6, final long high, final long low) {
+            return this.low == low && this.high == high && this.ipv6 == ipv6;
+        }
+
+        /**
+         * @return identity or null if there is no range containing the address
+         */
+        String getIdentity() {
+            return identity;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.Env;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Growth policy of the map. LMDB can resize the map only while there is no transaction in the process,
+ * so when the growth is enabled every transaction holds the shared lock ({@link #enter()}, {@link #exit()})
+ * and {@link #grow()} takes the exclusive one. Without the growth the locking does nothing.
+ * <p>
+ * New transactions wait while the growth waits for the exclusive lock, so the growth waits at most
+ * {@link Configuration#getEnvSizeGrowthTimeoutMillis()} for long-running readers (e.g. unconsumed
+ * {@link IpRanger#rangesOf(String)} streams) and fails the write rather than stall the lookups. A thread with
+ * a read transaction open can't grow the map at all, the shared lock can't be upgraded.
+ *
+ * @author Tomas Kozel
+ * @see Configuration#getEnvSizeGrowthFactor()
+ */
+class MapGrowth {
+    private final Env<ByteBuffer> env;
+    private final IpRangerMetrics metrics;
+    private final double factor;
+    private final long limit;
+    private final long timeoutMillis;
+    private final boolean enabled;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger resizes = new AtomicInteger();
+
+    MapGrowth(final Env<ByteBuffer> env, final Configuration conf, final IpRangerMetrics metrics) {
+        this.env = env;
+        this.metrics = metrics;
+        this.factor = conf.getEnvSizeGrowthFactor();
+        this.limit = conf.getEnvSizeLimit();
+        this.timeoutMillis = conf.getEnvSizeGrowthTimeoutMillis() > 0 ? conf.getEnvSizeGrowthTimeoutMillis() : 1000;
+        this.enabled = factor > 1;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    int getResizes() {
+        return resizes.get();
+    }
+
+    /**
+     * Called before a transaction is begun.
+     */
+    void enter() {
+        if (enabled) {
+            lock.readLock().lock();
+        }
+    }
+
+    /**
+     * Called after a transaction is finished.
+     */
+    void exit() {
+        if (enabled) {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Grows the map by the factor up to the limit. The calling thread must not be in a transaction,
+     * the other threads' transactions are waited for.
+     *
+     * @return false if the growth is disabled or the map has already reached the limit
+     * @throws IllegalStateException if the calling thread has a read transaction open or the other threads'
+     *                               transactions don't finish in time
+     */
+    boolean grow() {
+        if (!enabled) {
+            return false;
+        }
+        if (lock.getReadHoldCount() > 0) {
+            throw new IllegalStateException("Map can't grow while the writing thread has a read transaction open");
+        }
+        try {
+            if (!lock.writeLock().tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Map growth timed out after " + timeoutMillis
+                        + " ms waiting for open transactions");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for open transactions to grow the map", e);
+        }
+        try {
+            final long current = env.info().mapSize;
+            final long pageSize = env.stat().pageSize;
+            long size = (long) Math.ceil(current * factor);
+            // whole pages
+            size = (size + pageSize - 1) / pageSize * pageSize;
+            if (limit > 0) {
+                size = Math.min(size, limit);
+            }
+            if (size <= current) {
+                return false;
+            }
+            env.setMapSize(size);
+            resizes.incrementAndGet();
+            metrics.mapResized(size);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
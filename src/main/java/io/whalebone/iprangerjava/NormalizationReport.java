@@ -0,0 +1,69 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Counts of changes done by the normalization of the ranges before they are written
+ * (see {@link Configuration#getOverlapPolicy()}).
+ * <ul>
+ *     <li>input - ranges added to the normalization</li>
+ *     <li>duplicates - ranges added more than once with the same identity</li>
+ *     <li>overlaps - ranges overlapping a range of a different identity</li>
+ *     <li>rejected - ranges rejected by {@link OverlapPolicy#REJECT}</li>
+ *     <li>output - CIDR blocks written, adjacent blocks of the same identity are merged to supernets</li>
+ *     <li>masks - distinct prefix lengths of the written blocks</li>
+ * </ul>
+ *
+ * @author Tomas Kozel
+ */
+@Getter
+@ToString
+public class NormalizationReport {
+    private long input;
+    private long duplicates;
+    private long overlaps;
+    private long rejected;
+    private long output;
+    private int masks;
+
+    void input() {
+        input++;
+    }
+
+    void duplicate() {
+        duplicates++;
+    }
+
+    void overlap() {
+        overlaps++;
+    }
+
+    void rejected() {
+        rejected++;
+    }
+
+    void output() {
+        output++;
+    }
+
+    void masks(final int masks) {
+        this.masks = masks;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+/**
+ * How the normalization resolves ranges of different identities overlapping each other.
+ *
+ * @author Tomas Kozel
+ * @see Configuration#getOverlapPolicy()
+ */
+public enum OverlapPolicy {
+    /**
+     * A range overlapping a range of a different identity added before it is rejected (counted as failed).
+     */
+    REJECT,
+    /**
+     * The narrowest range containing an address wins, the same as when the ranges are stored without
+     * normalization. Of the same ranges the last added one wins.
+     */
+    MOST_SPECIFIC_WINS,
+    /**
+     * The range added last wins in the whole block it covers, even over narrower ranges added before it.
+     */
+    LAST_WINS
+}
@@ -0,0 +1,199 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the end addresses stored in the ranges database of one address family. A lookup probes
+ * the database with the address with host bits of each stored mask set, so a probe whose key the filter
+ * rules out is skipped and a miss costs a few hash computations instead of a B-tree descent per mask.
+ * <p>
+ * The filter is blocked: all bits of a key are in one 512 bit block (a cache line). It's built with a capacity
+ * of twice the stored ranges and the written ranges are added to it before they are committed. When more ranges
+ * than the capacity have been added, the filter is rebuilt once the write finishes. Deleted ranges stay
+ * in the filter, which only raises the false positive rate, see {@link IpRanger#refreshProbeFilters()}.
+ * The filter can be read by any number of threads while the writer adds to it.
+ *
+ * @author Tomas Kozel
+ * @see Configuration#isProbeFilters()
+ */
+public final class ProbeFilter {
+    private static final int BLOCK_BITS = 512;
+    private static final int BLOCK_WORDS = BLOCK_BITS / Long.SIZE;
+    private static final int MIN_CAPACITY = 1 << 14;
+    private static final int MAX_HASHES = 16;
+
+    private final AtomicLongArray words;
+    private final int blocks;
+    private final int hashes;
+    private final long capacity;
+    // keys which have set at least one bit
+    private final AtomicLong entries = new AtomicLong();
+
+    private ProbeFilter(final long capacity, final double falsePositiveRate) {
+        final double bits = -capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        this.blocks = (int) Math.min(Integer.MAX_VALUE / BLOCK_WORDS, Math.max(1, (long) Math.ceil(bits / BLOCK_BITS)));
+        this.hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bits / capacity * Math.log(2))));
+        this.capacity = capacity;
+        this.words = new AtomicLongArray(blocks * BLOCK_WORDS);
+    }
+
+    /**
+     * Builds the filter of the end addresses of the ranges.
+     */
+    static ProbeFilter build(final Txn<ByteBuffer> txn, final Dbi<ByteBuffer> rangesToIdentity,
+                             final double falsePositiveRate) {
+        final long ranges = rangesToIdentity.stat(txn).entries;
+        final ProbeFilter filter = new ProbeFilter(Math.max(MIN_CAPACITY, 2 * ranges), falsePositiveRate);
+        try (Cursor<ByteBuffer> cursor = rangesToIdentity.openCursor(txn)) {
+            boolean found = cursor.first();
+            while (found) {
+                filter.add(cursor.key());
+                found = cursor.next();
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * @return false if no range ends with the address, true if some may
+     */
+    public boolean mightContain(final long high, final long low) {
+        final long hash = hash(high, low);
+        final int block = block(hash);
+        // the block is selected by the top bits of the hash, the bits in it by the following hashes
+        long bits = nextBits(hash);
+        for (int i = 0; i < hashes; i++) {
+            final int bit = (int) (bits >>> 55);
+            if ((words.get(block + (bit >>> 6)) & 1L << bit) == 0) {
+                return false;
+            }
+            bits = nextBits(bits);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the end address stored between the position and the limit of the buffer in network byte order.
+     */
+    void add(final ByteBuffer endAddress) {
+        final int position = endAddress.position();
+        if (endAddress.remaining() == Long.BYTES * 2) {
+            add(IpRanger.getLong(endAddress, position), IpRanger.getLong(endAddress, position + Long.BYTES));
+        } else {
+            add(0, IpRanger.getInt(endAddress, position) & 0xFFFFFFFFL);
+        }
+    }
+
+    void add(final long high, final long low) {
+        final long hash = hash(high, low);
+        final int block = block(hash);
+        long bits = nextBits(hash);
+        boolean added = false;
+        for (int i = 0; i < hashes; i++) {
+            final int bit = (int) (bits >>> 55);
+            final int index = block + (bit >>> 6);
+            final long mask = 1L << bit;
+            long word;
+            while (((word = words.get(index)) & mask) == 0) {
+                if (words.compareAndSet(index, word, word | mask)) {
+                    added = true;
+                    break;
+                }
+            }
+            bits = nextBits(bits);
+        }
+        if (added) {
+            entries.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return whether more ranges than the capacity have been added
+     */
+    boolean isFull() {
+        return entries.get() > capacity;
+    }
+
+    /**
+     * @return number of ranges the filter is sized for
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of added ranges, a range whose bits were all set already is not counted
+     */
+    public long getEntries() {
+        return entries.get();
+    }
+
+    public int getHashCount() {
+        return hashes;
+    }
+
+    /**
+     * @return size of the filter's bits in bytes
+     */
+    public long getMemoryUsed() {
+        return (long) words.length() * Long.BYTES;
+    }
+
+    /**
+     * Estimates the false positive rate from the share of set bits, so the ranges added after the filter was built
+     * and the deleted ones are taken into account.
+     */
+    public double getFalsePositiveRate() {
+        long set = 0;
+        for (int i = 0; i < words.length(); i++) {
+            set += Long.bitCount(words.get(i));
+        }
+        return Math.pow((double) set / (words.length() * (long) Long.SIZE), hashes);
+    }
+
+    /**
+     * @return index of the first word of the block of the key
+     */
+    private int block(final long hash) {
+        return (int) (((hash >>> 32) * blocks) >>> 32) * BLOCK_WORDS;
+    }
+
+    /**
+     * @return well mixed 64 bit hash of the address
+     */
+    static long hash(final long high, final long low) {
+        long hash = low + high * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ hash >>> 33) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ hash >>> 33) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ hash >>> 33;
+    }
+
+    /**
+     * @return bits of the next hash, the top 9 bits select the bit in the block
+     */
+    private static long nextBits(final long bits) {
+        return bits * 0x5851F42D4C957F2DL + 0x14057B7EF767814FL;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.PutFlags;
+import org.lmdbjava.Txn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.lmdbjava.PutFlags.MDB_APPEND;
+import static org.lmdbjava.PutFlags.MDB_APPENDDUP;
+
+/**
+ * Compact binary copy of all the databases of an instance. The archive consists of a header (magic, version,
+ * flags and number of databases) followed by the records of each database in key order. A database starts
+ * with its name and ends by its record count:
+ * <pre>
+ *   "IPRA" version:u16 flags:u8 databases:u8
+ *   ( name-length:u16 name ( key-length:i32 key value-length:i32 value )* -1:i32 records:i64 )*
+ * </pre>
+ * The records are written from the memory map through a direct buffer without copying them to the heap
+ * and read back in key order with {@code MDB_APPEND} / {@code MDB_APPENDDUP}, so a restore writes densely
+ * packed pages without searching for the insert positions.
+ * <p>
+ * The stored identity ids of the identity dictionary are in the native byte order, so such archive can be
+ * restored only on a machine of the same byte order.
+ *
+ * @author Tomas Kozel
+ * @see IpRanger#exportTo(java.nio.file.Path)
+ * @see IpRanger#importFrom(java.nio.file.Path)
+ */
+final class RangeArchive {
+    private static final byte[] MAGIC = {'I', 'P', 'R', 'A'};
+    private static final int VERSION = 1;
+    private static final int DICTIONARY = 1;
+    private static final int LITTLE_ENDIAN = 2;
+    private static final int END_OF_DATABASE = -1;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private RangeArchive() {
+    }
+
+    /**
+     * Writes the databases as they are seen by one read transaction.
+     *
+     * @return number of written records
+     */
+    static long write(final IpRanger ipRanger, final WritableByteChannel channel) throws IOException {
+        final List<Dbi<ByteBuffer>> databases = ipRanger.databases();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.put(MAGIC)
+                .putShort((short) VERSION)
+                .put((byte) flags(ipRanger))
+                .put((byte) databases.size());
+        long total = 0;
+        final Txn<ByteBuffer> txn = ipRanger.txnRead();
+        try {
+            for (final Dbi<ByteBuffer> dbi : databases) {
+                // the main database has no name
+                final byte[] name = dbi.getName() == null ? new byte[0] : dbi.getName();
+                buffer.putShort((short) name.length).put(name);
+                long records = 0;
+                try (Cursor<ByteBuffer> cursor = dbi.openCursor(txn)) {
+                    boolean found = cursor.first();
+                    while (found) {
+                        final ByteBuffer key = cursor.key();
+                        final ByteBuffer value = cursor.val();
+                        if (buffer.remaining() < 2 * Integer.BYTES + key.remaining() + value.remaining()) {
+                            flush(buffer, channel);
+                        }
+                        buffer.putInt(key.remaining()).put(key).putInt(value.remaining()).put(value);
+                        records++;
+                        found = cursor.next();
+                    }
+                }
+                if (buffer.remaining() < Integer.BYTES + Long.BYTES) {
+                    flush(buffer, channel);
+                }
+                buffer.putInt(END_OF_DATABASE).putLong(records);
+                total += records;
+            }
+        } finally {
+            ipRanger.release(txn);
+        }
+        flush(buffer, channel);
+        return total;
+    }
+
+    /**
+     * Replaces all the stored data by the archive. The archive must come from an instance of the same identity
+     * storage ({@link Configuration#isIdentityDictionary()}), the names of the databases may differ.
+     * <p>
+     * The restore is done in one transaction unless {@link Configuration#getBatchCommitSize()} is set,
+     * a failed restore with the intermediate commits leaves the databases partially restored.
+     *
+     * @return the restored ranges counted as inserted
+     * @throws IllegalArgumentException if the input is not a compatible archive
+     */
+    static InsertReport read(final IpRanger ipRanger, final ReadableByteChannel channel) throws IOException {
+        final Input in = new Input(channel);
+        final List<Dbi<ByteBuffer>> databases = ipRanger.databases();
+        try {
+            final ByteBuffer buffer = in.next(MAGIC.length + Short.BYTES + 2);
+            final byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IllegalArgumentException("Not an ip ranges archive");
+            }
+            final int version = buffer.getShort() & 0xFFFF;
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported archive version " + version);
+            }
+            final int flags = buffer.get() & 0xFF;
+            if ((flags & DICTIONARY) != (flags(ipRanger) & DICTIONARY)) {
+                throw new IllegalArgumentException("Archive " + ((flags & DICTIONARY) == 0 ? "doesn't use" : "uses")
+                        + " the identity dictionary, the instance doesn't match");
+            }
+            if ((flags & DICTIONARY) != 0 && flags != flags(ipRanger)) {
+                throw new IllegalArgumentException("Archive with the identity dictionary was written on a machine " +
+                        "of different byte order");
+            }
+            final int count = buffer.get() & 0xFF;
+            if (count != databases.size()) {
+                throw new IllegalArgumentException("Archive has " + count + " databases but " + databases.size() +
+                        " are expected");
+            }
+            return read(ipRanger, databases, in);
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Archive is truncated", e);
+        }
+    }
+
+    private static InsertReport read(final IpRanger ipRanger, final List<Dbi<ByteBuffer>> databases,
+                                     final Input in) throws IOException {
+        final InsertReport report = new InsertReport();
+        try (Restore restore = new Restore(ipRanger, in)) {
+            restore.writer.write(txn -> {
+                for (final Dbi<ByteBuffer> dbi : databases) {
+                    dbi.drop(txn);
+                }
+                return true;
+            });
+            for (final Dbi<ByteBuffer> dbi : databases) {
+                // the databases are matched by their order, the names may differ
+                final int nameLength = in.next(Short.BYTES).getShort() & 0xFFFF;
+                in.next(nameLength);
+                final long records = restore.database(dbi);
+                final long expected = in.next(Long.BYTES).getLong();
+                if (records != expected) {
+                    throw new IllegalArgumentException("Archive is corrupted, database " + databases.indexOf(dbi) +
+                            " has " + records + " records instead of " + expected);
+                }
+                if (dbi == ipRanger.getRangesToIdentity(false) || dbi == ipRanger.getRangesToIdentity(true)) {
+                    report.inserted(records);
+                }
+            }
+            restore.writer.commit();
+        }
+        ipRanger.syncDeferred();
+        ipRanger.rangesWritten(true);
+        return report;
+    }
+
+    private static int flags(final IpRanger ipRanger) {
+        return (ipRanger.getIdentityCodec().isDictionary() ? DICTIONARY : 0)
+                | (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? LITTLE_ENDIAN : 0);
+    }
+
+    private static void checkSize(final int length, final int maxSize) {
+        if (length <= 0 || length > maxSize) {
+            throw new IllegalArgumentException("Archive is corrupted, record of " + length + " bytes");
+        }
+    }
+
+    private static void flush(final ByteBuffer buffer, final WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads the archive to a direct buffer the records are written to the databases from.
+     */
+    private static final class Input {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer view = buffer.duplicate();
+        private final ByteBuffer otherView = buffer.duplicate();
+        private boolean other;
+
+        private Input(final ReadableByteChannel channel) {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        /**
+         * Reads the next bytes, the previously read bytes are not valid anymore.
+         *
+         * @return the buffer positioned at the bytes
+         * @throws EOFException if the input ends earlier
+         */
+        private ByteBuffer next(final int length) throws IOException {
+            final ByteBuffer next = peek(length);
+            buffer.position(buffer.position() + length);
+            return next;
+        }
+
+        /**
+         * Same as {@link #next(int)} without moving to the following bytes.
+         */
+        private ByteBuffer peek(final int length) throws IOException {
+            if (buffer.remaining() < length) {
+                buffer.compact();
+                while (buffer.position() < length) {
+                    if (channel.read(buffer) < 0) {
+                        throw new EOFException();
+                    }
+                }
+                buffer.flip();
+            }
+            return buffer.duplicate();
+        }
+
+        /**
+         * @return one of two reused views of the read bytes {@code [from, from + length)}
+         */
+        private ByteBuffer view(final int from, final int length) {
+            final ByteBuffer next = other ? otherView : view;
+            other = !other;
+            next.clear();
+            next.position(from).limit(from + length);
+            return next;
+        }
+    }
+
+    /**
+     * Writes the records of the input to the databases in key order.
+     */
+    private static final class Restore implements AutoCloseable {
+        private final IpRanger ipRanger;
+        private final BulkLoader.Writer writer;
+        private final Input in;
+        private final int maxSize;
+        // the writes are replayed after the map grows so they can't use the input buffer
+        private final boolean replayed;
+        private final ByteBuffer key;
+        private final ByteBuffer value;
+        private final ByteBuffer previousKey;
+
+        private Restore(final IpRanger ipRanger, final Input in) {
+            this.ipRanger = ipRanger;
+            this.writer = new BulkLoader.Writer(ipRanger);
+            this.in = in;
+            this.maxSize = Math.max(ipRanger.getConfiguration().getMaxIdentityKeySize(),
+                    ipRanger.getEnv().getMaxKeySize());
+            this.replayed = ipRanger.getMapGrowth().isEnabled();
+            this.key = ByteBuffer.allocateDirect(maxSize);
+            this.value = ByteBuffer.allocateDirect(maxSize);
+            this.previousKey = ByteBuffer.allocateDirect(maxSize);
+        }
+
+        /**
+         * @return number of records of the database
+         */
+        private long database(final Dbi<ByteBuffer> dbi) throws IOException {
+            previousKey.limit(0);
+            final boolean ranges = dbi == ipRanger.getRangesToIdentity(false) || dbi == ipRanger.getRangesToIdentity(true);
+            long records = 0;
+            int keyLength;
+            while ((keyLength = in.next(Integer.BYTES).getInt()) != END_OF_DATABASE) {
+                record(dbi, ranges, keyLength);
+                records++;
+            }
+            return records;
+        }
+
+        /**
+         * @param ranges whether the database is one of the ranges databases
+         */
+        private void record(final Dbi<ByteBuffer> dbi, final boolean ranges, final int keyLength) throws IOException {
+            checkSize(keyLength, maxSize);
+            final ByteBuffer head = in.peek(keyLength + Integer.BYTES);
+            final int valueLength = head.getInt(head.position() + keyLength);
+            checkSize(valueLength, maxSize);
+            final ByteBuffer record = in.next(keyLength + Integer.BYTES + valueLength);
+            final ByteBuffer recordKey = in.view(record.position(), keyLength);
+            final ByteBuffer recordValue = in.view(record.position() + keyLength + Integer.BYTES, valueLength);
+            final PutFlags putFlags = recordKey.equals(previousKey) ? MDB_APPENDDUP : MDB_APPEND;
+            if (replayed) {
+                final byte[] keyBytes = new byte[keyLength];
+                final byte[] valueBytes = new byte[valueLength];
+                recordKey.duplicate().get(keyBytes);
+                recordValue.duplicate().get(valueBytes);
+                writer.write(txn -> {
+                    key.clear();
+                    key.put(keyBytes).flip();
+                    value.clear();
+                    value.put(valueBytes).flip();
+                    if (ranges) {
+                        ipRanger.rangeStored(key);
+                    }
+                    dbi.put(txn, key, value, putFlags);
+                    return true;
+                });
+            } else {
+                writer.write(txn -> {
+                    if (ranges) {
+                        ipRanger.rangeStored(recordKey);
+                    }
+                    dbi.put(txn, recordKey, recordValue, putFlags);
+                    return true;
+                });
+            }
+            previousKey.clear();
+            previousKey.put(recordKey).flip();
+            writer.written();
+        }
+
+        @Override
+        public void close() {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.utils.Cidr;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.whalebone.iprangerjava.utils.CidrBlocks.compareUnsigned;
+
+/**
+ * Normalizes the ranges of a batch or bulk load before they are written. The ranges are sorted by start address
+ * and flattened to disjoint intervals of one identity each (overlaps are resolved by the {@link OverlapPolicy})
+ * merging the adjacent intervals of the same identity. The intervals are then encoded back to CIDR blocks top
+ * down: a block is written when it's fully covered and its first and last addresses are of the same identity,
+ * the addresses of other identities inside it are written as narrower blocks nested in it. The lookup resolves
+ * them the same way (the most specific block wins) and no two written blocks end with the same address, so
+ * unlike the ranges as they were added none of them overwrites another one.
+ * <p>
+ * All the added ranges are kept in memory. The normalizer is not thread safe.
+ *
+ * @author Tomas Kozel
+ * @see Configuration#getOverlapPolicy()
+ */
+final class RangeNormalizer {
+    private static final int NONE = -1;
+
+    private final OverlapPolicy policy;
+    private final NormalizationReport report = new NormalizationReport();
+    private final Map<ByteBuffer, Integer> identityOrdinals = new HashMap<>();
+    private final List<byte[]> identities = new ArrayList<>();
+    private final Family ip4 = new Family(32);
+    private final Family ip6 = new Family(128);
+    private final Cidr block = new Cidr();
+
+    RangeNormalizer(final OverlapPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Adds the range, the host bits of its address are ignored.
+     *
+     * @param identity identity as it's going to be stored, the array must not be changed afterwards
+     */
+    void add(final Cidr range, final byte[] identity) {
+        Integer ordinal = identityOrdinals.get(ByteBuffer.wrap(identity));
+        if (ordinal == null) {
+            ordinal = identities.size();
+            identityOrdinals.put(ByteBuffer.wrap(identity), ordinal);
+            identities.add(identity);
+        }
+        (range.isIpv6() ? ip6 : ip4).add(range.getStartHigh(), range.getStartLow(), range.getPrefixLength(), ordinal);
+        report.input();
+    }
+
+    /**
+     * Normalizes the added ranges of the family and passes the resulting blocks to the visitor.
+     * No ranges of the family are kept afterwards.
+     */
+    void normalize(final boolean ipv6, final BlockVisitor visitor) {
+        (ipv6 ? ip6 : ip4).normalize(visitor);
+        report.masks(ip4.maskCount() + ip6.maskCount());
+    }
+
+    NormalizationReport getReport() {
+        return report;
+    }
+
+    private static long endHigh(final long high, final int hostBits) {
+        return hostBits > 64 ? high | -1L >>> (128 - hostBits) : high;
+    }
+
+    private static long endLow(final long low, final int hostBits) {
+        return hostBits >= 64 ? -1L : low | (1L << hostBits) - 1;
+    }
+
+    /**
+     * Receiver of the normalized blocks. The block is reused for the next one.
+     */
+    interface BlockVisitor {
+        void visit(Cidr block, byte[] identity);
+    }
+
+    /**
+     * Ranges of one address family, a range is identified by the index it was added with.
+     */
+    private final class Family {
+        private final int bits;
+        private final long maxHigh;
+        private final long maxLow;
+        private final boolean[] usedMasks;
+        private long[] startHighs = new long[16];
+        private long[] startLows = new long[16];
+        private int[] prefixes = new int[16];
+        private int[] ordinals = new int[16];
+        private int size;
+        // disjoint intervals [from, to] sorted by address
+        private long[] fromHighs;
+        private long[] fromLows;
+        private long[] toHighs;
+        private long[] toLows;
+        private int[] intervalOrdinals;
+        private int intervals;
+        // the first address not covered by the intervals yet
+        private long nextHigh;
+        private long nextLow;
+        private boolean exhausted;
+
+        private Family(final int bits) {
+            this.bits = bits;
+            this.maxHigh = bits == 128 ? -1L : 0;
+            this.maxLow = bits == 128 ? -1L : 0xFFFFFFFFL;
+            this.usedMasks = new boolean[bits + 1];
+        }
+
+        private void add(final long startHigh, final long startLow, final int prefixLength, final int ordinal) {
+            if (size == startHighs.length) {
+                startHighs = Arrays.copyOf(startHighs, size * 2);
+                startLows = Arrays.copyOf(startLows, size * 2);
+                prefixes = Arrays.copyOf(prefixes, size * 2);
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            startHighs[size] = startHigh;
+            startLows[size] = startLow;
+            prefixes[size] = prefixLength;
+            ordinals[size] = ordinal;
+            size++;
+        }
+
+        private int maskCount() {
+            int count = 0;
+            for (final boolean used : usedMasks) {
+                if (used) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private void normalize(final BlockVisitor visitor) {
+            if (size == 0) {
+                return;
+            }
+            final int[] order = sortedOrder();
+            final boolean[] rejected = policy == OverlapPolicy.REJECT ? reject(order) : null;
+            flatten(order, rejected);
+            // number of gaps between the intervals up to the interval
+            final int[] gaps = new int[intervals];
+            for (int i = 1; i < intervals; i++) {
+                gaps[i] = gaps[i - 1] + (adjacent(i - 1, fromHighs[i], fromLows[i]) ? 0 : 1);
+            }
+            encode(0, 0, bits, 0, intervals, NONE, gaps, visitor);
+            size = 0;
+            intervals = 0;
+        }
+
+        /**
+         * @return indexes of the ranges sorted by start address, the wider range first, then in the order they
+         * were added
+         */
+        private int[] sortedOrder() {
+            final int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            mergeSort(order, new int[size], 0, size);
+            return order;
+        }
+
+        private void mergeSort(final int[] order, final int[] buffer, final int from, final int to) {
+            if (to - from < 2) {
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            mergeSort(order, buffer, from, mid);
+            mergeSort(order, buffer, mid, to);
+            if (compare(order[mid - 1], order[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy(order, from, buffer, from, to - from);
+            int left = from;
+            int right = mid;
+            for (int i = from; i < to; i++) {
+                if (right >= to || left < mid && compare(buffer[left], buffer[right]) <= 0) {
+                    order[i] = buffer[left++];
+                } else {
+                    order[i] = buffer[right++];
+                }
+            }
+        }
+
+        private int compare(final int a, final int b) {
+            final int byStart = compareUnsigned(startHighs[a], startLows[a], startHighs[b], startLows[b]);
+            return byStart != 0 ? byStart : Integer.compare(prefixes[a], prefixes[b]);
+        }
+
+        /**
+         * @return whether range {@code a} ends before range {@code b} starts
+         */
+        private boolean endsBefore(final int a, final int b) {
+            final int hostBits = bits - prefixes[a];
+            return compareUnsigned(endHigh(startHighs[a], hostBits), endLow(startLows[a], hostBits),
+                    startHighs[b], startLows[b]) < 0;
+        }
+
+        /**
+         * Goes through the ranges in the order they were added and rejects the ones overlapping an accepted range
+         * of a different identity. Two blocks overlap only if one is nested in the other, so the accepted ranges
+         * are looked for among the enclosing ranges and the nested ones which follow the range in sorted order.
+         *
+         * @return rejected flags by the index of the range
+         */
+        private boolean[] reject(final int[] order) {
+            final int[] positions = new int[size];
+            final int[] parents = new int[size];
+            // end (exclusive) of the positions nested in the range at the position
+            final int[] nestedEnds = new int[size];
+            final int[] stack = new int[size];
+            int depth = 0;
+            for (int position = 0; position < size; position++) {
+                final int range = order[position];
+                positions[range] = position;
+                while (depth > 0 && endsBefore(order[stack[depth - 1]], range)) {
+                    nestedEnds[stack[--depth]] = position;
+                }
+                parents[position] = depth > 0 ? stack[depth - 1] : -1;
+                stack[depth++] = position;
+            }
+            while (depth > 0) {
+                nestedEnds[stack[--depth]] = size;
+            }
+
+            final boolean[] accepted = new boolean[size];
+            final boolean[] rejected = new boolean[size];
+            for (int range = 0; range < size; range++) {
+                final int position = positions[range];
+                final int ordinal = ordinals[range];
+                boolean conflict = false;
+                for (int parent = parents[position]; parent >= 0 && !conflict; parent = parents[parent]) {
+                    conflict = accepted[parent] && ordinals[order[parent]] != ordinal;
+                }
+                for (int nested = position + 1; nested < nestedEnds[position] && !conflict; nested++) {
+                    conflict = accepted[nested] && ordinals[order[nested]] != ordinal;
+                }
+                if (conflict) {
+                    rejected[range] = true;
+                    report.rejected();
+                } else {
+                    accepted[position] = true;
+                }
+            }
+            return rejected;
+        }
+
+        /**
+         * Flattens the nested ranges to disjoint intervals, see {@link Ip4LookupIndex} for the IPv4 only variant.
+         *
+         * @param order indexes of the ranges sorted by {@link #sortedOrder()}
+         */
+        private void flatten(final int[] order, final boolean[] rejected) {
+            fromHighs = new long[16];
+            fromLows = new long[16];
+            toHighs = new long[16];
+            toLows = new long[16];
+            intervalOrdinals = new int[16];
+            intervals = 0;
+            nextHigh = 0;
+            nextLow = 0;
+            exhausted = false;
+            // open ranges, the innermost on the top, with the range winning in each of them
+            final long[] stackEndHighs = new long[bits + 1];
+            final long[] stackEndLows = new long[bits + 1];
+            final int[] stackRanges = new int[bits + 1];
+            final int[] stackWinners = new int[bits + 1];
+            int depth = 0;
+            for (final int range : order) {
+                if (rejected != null && rejected[range]) {
+                    continue;
+                }
+                final long startHigh = startHighs[range];
+                final long startLow = startLows[range];
+                while (depth > 0 && endsBefore(stackRanges[depth - 1], range)) {
+                    depth--;
+                    emit(stackEndHighs[depth], stackEndLows[depth], ordinals[stackWinners[depth]]);
+                }
+                if (depth > 0) {
+                    final int top = stackRanges[depth - 1];
+                    if (prefixes[top] == prefixes[range] && startHighs[top] == startHigh && startLows[top] == startLow) {
+                        // the same range added again replaces the previous one
+                        if (ordinals[top] == ordinals[range]) {
+                            report.duplicate();
+                        } else {
+                            report.overlap();
+                        }
+                        stackRanges[depth - 1] = range;
+                        stackWinners[depth - 1] = winner(stackWinners, depth - 1, range);
+                        continue;
+                    }
+                    for (int i = 0; i < depth; i++) {
+                        if (ordinals[stackRanges[i]] != ordinals[range]) {
+                            report.overlap();
+                            break;
+                        }
+                    }
+                    emitBefore(startHigh, startLow, ordinals[stackWinners[depth - 1]]);
+                }
+                if (!exhausted && compareUnsigned(nextHigh, nextLow, startHigh, startLow) < 0) {
+                    nextHigh = startHigh;
+                    nextLow = startLow;
+                }
+                final int hostBits = bits - prefixes[range];
+                stackEndHighs[depth] = endHigh(startHigh, hostBits);
+                stackEndLows[depth] = endLow(startLow, hostBits);
+                stackRanges[depth] = range;
+                stackWinners[depth] = winner(stackWinners, depth, range);
+                depth++;
+            }
+            while (depth > 0) {
+                depth--;
+                emit(stackEndHighs[depth], stackEndLows[depth], ordinals[stackWinners[depth]]);
+            }
+        }
+
+        /**
+         * @return range winning in the range at the depth of the stack
+         */
+        private int winner(final int[] stackWinners, final int depth, final int range) {
+            if (policy != OverlapPolicy.LAST_WINS || depth == 0) {
+                return range;
+            }
+            // ranges are indexed in the order they were added
+            return Math.max(stackWinners[depth - 1], range);
+        }
+
+        /**
+         * Emits interval from the first uncovered address to {@code to}.
+         */
+        private void emit(final long toHigh, final long toLow, final int ordinal) {
+            if (exhausted || compareUnsigned(nextHigh, nextLow, toHigh, toLow) > 0) {
+                return;
+            }
+            addInterval(toHigh, toLow, ordinal);
+            if (toHigh == maxHigh && toLow == maxLow) {
+                exhausted = true;
+            } else {
+                nextLow = toLow + 1;
+                nextHigh = nextLow == 0 ? toHigh + 1 : toHigh;
+            }
+        }
+
+        /**
+         * Emits interval from the first uncovered address to the address before {@code start}.
+         */
+        private void emitBefore(final long startHigh, final long startLow, final int ordinal) {
+            if (exhausted || compareUnsigned(nextHigh, nextLow, startHigh, startLow) >= 0) {
+                return;
+            }
+            addInterval(startLow == 0 ? startHigh - 1 : startHigh, startLow - 1, ordinal);
+            nextHigh = startHigh;
+            nextLow = startLow;
+        }
+
+        /**
+         * Adds interval {@code [next, to]} merging it with the previous one if they are adjacent and of the same identity.
+         */
+        private void addInterval(final long toHigh, final long toLow, final int ordinal) {
+            final int last = intervals - 1;
+            if (last >= 0 && intervalOrdinals[last] == ordinal && adjacent(last, nextHigh, nextLow)) {
+                toHighs[last] = toHigh;
+                toLows[last] = toLow;
+                return;
+            }
+            if (intervals == fromHighs.length) {
+                fromHighs = Arrays.copyOf(fromHighs, intervals * 2);
+                fromLows = Arrays.copyOf(fromLows, intervals * 2);
+                toHighs = Arrays.copyOf(toHighs, intervals * 2);
+                toLows = Arrays.copyOf(toLows, intervals * 2);
+                intervalOrdinals = Arrays.copyOf(intervalOrdinals, intervals * 2);
+            }
+            fromHighs[intervals] = nextHigh;
+            fromLows[intervals] = nextLow;
+            toHighs[intervals] = toHigh;
+            toLows[intervals] = toLow;
+            intervalOrdinals[intervals] = ordinal;
+            intervals++;
+        }
+
+        /**
+         * @return whether the address directly follows the interval
+         */
+        private boolean adjacent(final int interval, final long high, final long low) {
+            final long afterLow = toLows[interval] + 1;
+            final long afterHigh = afterLow == 0 ? toHighs[interval] + 1 : toHighs[interval];
+            return afterHigh == high && afterLow == low;
+        }
+
+        /**
+         * Encodes the intervals {@code [from, to)} overlapping the block to CIDR blocks.
+         *
+         * @param provided identity the lookup finds in the block because of an enclosing block already written
+         * @param gaps     number of gaps between the intervals up to the interval
+         */
+        private void encode(final long high, final long low, final int hostBits, final int from, final int to,
+                            final int provided, final int[] gaps, final BlockVisitor visitor) {
+            if (from == to) {
+                return;
+            }
+            final boolean covered = compareUnsigned(fromHighs[from], fromLows[from], high, low) <= 0
+                    && compareUnsigned(toHighs[to - 1], toLows[to - 1], endHigh(high, hostBits), endLow(low, hostBits)) >= 0
+                    && gaps[to - 1] == gaps[from];
+            int inherited = provided;
+            // the block ending with the same identity it starts with, the other identities are nested in it
+            if (covered && intervalOrdinals[from] == intervalOrdinals[to - 1] && intervalOrdinals[from] != provided) {
+                visit(high, low, hostBits, intervalOrdinals[from], visitor);
+                inherited = intervalOrdinals[from];
+            }
+            if (covered && to - from == 1) {
+                return;
+            }
+            // a single address is always covered by one interval, so there are host bits left
+            final int half = hostBits - 1;
+            final long midHigh = half >= 64 ? high | 1L << (half - 64) : high;
+            final long midLow = half >= 64 ? low : low | 1L << half;
+            // the first interval starting in the upper half
+            int lo = from;
+            int hi = to;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (compareUnsigned(fromHighs[mid], fromLows[mid], midHigh, midLow) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            final int upperFrom = lo > from && compareUnsigned(toHighs[lo - 1], toLows[lo - 1], midHigh, midLow) >= 0
+                    ? lo - 1 : lo;
+            encode(high, low, half, from, lo, inherited, gaps, visitor);
+            encode(midHigh, midLow, half, upperFrom, to, inherited, gaps, visitor);
+        }
+
+        private void visit(final long high, final long low, final int hostBits, final int ordinal,
+                           final BlockVisitor visitor) {
+            final int prefixLength = bits - hostBits;
+            if (bits == 128) {
+                block.setIpv6(high, low, prefixLength);
+            } else {
+                block.setIpv4((int) low, prefixLength);
+            }
+            usedMasks[prefixLength] = true;
+            report.output();
+            visitor.visit(block, identities.get(ordinal));
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.utils.Cidr;
+import io.whalebone.iprangerjava.utils.CidrParser;
+import io.whalebone.iprangerjava.utils.ExternalSorter;
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorted merge-join of the source ranges with the stored ranges. Only the differences are written: missing
+ * ranges are inserted, ranges with another identity are updated and ranges missing in the source are deleted,
+ * together with the identities to ranges index. The masks are replaced by the masks of the source.
+ * <p>
+ * The join only reads and collects the changes, which are written when both families are joined, so they
+ * can be written again after the map grows. All the changes are applied in one write transaction which is
+ * aborted if the source is not sorted.
+ * <p>
+ * A source entry which fails to be encoded doesn't delete the stored range: the stored range with its end address
+ * is kept if the entry is a valid range (e.g. with too long identity). If the range can't be parsed at all,
+ * any of the stored ranges missing in the source can be the one, so none of them is deleted.
+ *
+ * @author Tomas Kozel
+ * @see IpRanger#sync(Iterable)
+ */
+class RangeSync {
+    private final IpRanger ipRanger;
+    private final CidrParser cidrParser = new CidrParser();
+    private final Cidr cidr = new Cidr();
+    private final SyncReport report = new SyncReport();
+    private final List<WriteTxn.Write> changes = new ArrayList<>();
+    private final List<WriteTxn.Write> deletions = new ArrayList<>();
+    // a source entry couldn't be parsed, the stored ranges missing in the source are not deleted
+    private boolean unparsable;
+    private final ByteBuffer key;
+    private final ByteBuffer value;
+
+    RangeSync(final IpRanger ipRanger) {
+        this.ipRanger = ipRanger;
+        final int bufferSize = Math.max(Cidr.IPV6_SIZE, ipRanger.getConfiguration().getMaxIdentityKeySize());
+        this.key = ByteBuffer.allocateDirect(bufferSize);
+        this.value = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    SyncReport run(final Iterable<RangeEntry> sortedSource) {
+        try (WriteTxn txn = new WriteTxn(ipRanger)) {
+            final Family ip4 = new Family(txn.txn(), false);
+            final Family ip6 = new Family(txn.txn(), true);
+            try {
+                for (final RangeEntry entry : sortedSource) {
+                    final EncodedRange range = encode(entry);
+                    if (range != null) {
+                        (range.getEndAddress().length == Cidr.IPV6_SIZE ? ip6 : ip4).add(range);
+                    }
+                }
+                ip4.finish();
+                ip6.finish();
+            } finally {
+                ip4.cursor.close();
+                ip6.cursor.close();
+            }
+            if (unparsable) {
+                report.kept(deletions.size());
+            } else {
+                changes.addAll(deletions);
+                report.deleted(deletions.size());
+            }
+            for (final WriteTxn.Write change : changes) {
+                txn.write(change);
+            }
+            txn.commit((int) (report.getInserted() + report.getUpdated() + report.getDeleted()));
+        }
+        ipRanger.syncDeferred();
+        ipRanger.rangesWritten(false);
+        return report;
+    }
+
+    /**
+     * @return the encoded range, the range with null identity if the entry failed but its range is valid
+     * or null if the entry is skipped or its range is not valid
+     */
+    private EncodedRange encode(final RangeEntry entry) {
+        if (entry == null || entry.getIpRange() == null || entry.getIdentity() == null
+                || entry.getIpRange().trim().isEmpty() || entry.getIdentity().trim().isEmpty()) {
+            report.skipped();
+            return null;
+        }
+        try {
+            return ipRanger.encode(cidrParser, cidr, entry.getIpRange(), entry.getIdentity());
+        } catch (IllegalArgumentException e) {
+            report.failed();
+            ipRanger.getMetrics().rangeRejected();
+        }
+        try {
+            return ipRanger.encode(cidrParser, cidr, entry.getIpRange(), null);
+        } catch (IllegalArgumentException e) {
+            unparsable = true;
+            return null;
+        }
+    }
+
+    /**
+     * Merge-join state of one address family.
+     */
+    private final class Family {
+        private final Txn<ByteBuffer> txn;
+        private final Dbi<ByteBuffer> rangesToIdentity;
+        private final Dbi<ByteBuffer> identitiesToRanges;
+        private final Dbi<ByteBuffer> masks;
+        private final Cursor<ByteBuffer> cursor;
+        private final boolean[] sourceMasks;
+        // the stored range the cursor is at or null if there is none left
+        private byte[] storedKey;
+        private byte[] storedIdentity;
+        // the last source range is applied when the next one differs, so the last of equal ranges wins
+        private EncodedRange pending;
+        // a stored range is kept because its source entry failed
+        private boolean keptRanges;
+
+        private Family(final Txn<ByteBuffer> txn, final boolean ipv6) {
+            this.txn = txn;
+            this.rangesToIdentity = ipRanger.getRangesToIdentity(ipv6);
+            this.identitiesToRanges = ipRanger.getIdentitiesToRanges(ipv6);
+            this.masks = ipRanger.getMasks(ipv6);
+            this.sourceMasks = new boolean[(ipv6 ? Cidr.IPV6_SIZE : Cidr.IPV4_SIZE) * 8 + 1];
+            this.cursor = rangesToIdentity.openCursor(txn);
+            readStored(cursor.first());
+        }
+
+        private void add(final EncodedRange range) {
+            if (pending != null) {
+                final int order = ExternalSorter.compareUnsigned(range.getEndAddress(), pending.getEndAddress());
+                if (order < 0) {
+                    throw new IllegalArgumentException("Source is not sorted by the end address of the ranges");
+                }
+                if (order == 0) {
+                    report.skipped();
+                    pending = range;
+                    return;
+                }
+                apply(pending);
+            }
+            pending = range;
+        }
+
+        private void finish() {
+            if (pending != null) {
+                apply(pending);
+                pending = null;
+            }
+            while (storedKey != null) {
+                deleteStored();
+            }
+            final boolean[] storedMasks = new boolean[sourceMasks.length];
+            IpRanger.readMasks(txn, masks, storedMasks);
+            for (int mask = 0; mask < sourceMasks.length; mask++) {
+                // the masks of the kept ranges are not known, so no mask is removed
+                if (storedMasks[mask] != sourceMasks[mask] && (sourceMasks[mask] || !unparsable && !keptRanges)) {
+                    final byte[] maskBytes = ipRanger.toMaskBytes(mask);
+                    final boolean used = sourceMasks[mask];
+                    changes.add(t -> {
+                        final ByteBuffer maskKey = fill(key, maskBytes);
+                        if (used) {
+                            masks.put(t, maskKey, maskKey);
+                            return true;
+                        }
+                        return masks.delete(t, maskKey);
+                    });
+                }
+            }
+        }
+
+        private void apply(final EncodedRange range) {
+            final byte[] endAddress = range.getEndAddress();
+            int order = -1;
+            while (storedKey != null && (order = ExternalSorter.compareUnsigned(storedKey, endAddress)) < 0) {
+                deleteStored();
+            }
+            if (range.getIdentity() == null) {
+                // the entry failed, the stored range is kept as it is
+                if (storedKey != null && order == 0) {
+                    // its prefix length can differ from the one of the entry
+                    keptRanges = true;
+                    readStored(cursor.next());
+                }
+                return;
+            }
+            sourceMasks[range.getPrefixLength()] = true;
+            if (storedKey != null && order == 0) {
+                if (Arrays.equals(storedIdentity, ipRanger.getIdentityCodec().find(txn, range.getIdentity()))) {
+                    report.unchanged();
+                } else {
+                    final byte[] previous = storedIdentity;
+                    changes.add(t -> {
+                        final byte[] identity = ipRanger.getIdentityCodec().encode(t, range.getIdentity());
+                        rangesToIdentity.put(t, fill(key, endAddress), fill(value, identity));
+                        identitiesToRanges.delete(t, fill(key, previous), fill(value, endAddress));
+                        identitiesToRanges.put(t, fill(key, identity), fill(value, endAddress));
+                        return true;
+                    });
+                    report.updated();
+                }
+                readStored(cursor.next());
+            } else {
+                changes.add(t -> {
+                    final byte[] identity = ipRanger.getIdentityCodec().encode(t, range.getIdentity());
+                    ipRanger.rangeStored(fill(key, endAddress));
+                    rangesToIdentity.put(t, fill(key, endAddress), fill(value, identity));
+                    identitiesToRanges.put(t, fill(key, identity), fill(value, endAddress));
+                    return true;
+                });
+                report.inserted();
+            }
+        }
+
+        private void deleteStored() {
+            final byte[] deletedKey = storedKey;
+            final byte[] deletedIdentity = storedIdentity;
+            deletions.add(t -> {
+                rangesToIdentity.delete(t, fill(key, deletedKey));
+                return identitiesToRanges.delete(t, fill(key, deletedIdentity), fill(value, deletedKey));
+            });
+            readStored(cursor.next());
+        }
+
+        private void readStored(final boolean found) {
+            if (found) {
+                storedKey = toBytes(cursor.key());
+                storedIdentity = toBytes(cursor.val());
+            } else {
+                storedKey = null;
+                storedIdentity = null;
+            }
+        }
+    }
+
+    private static byte[] toBytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer fill(final ByteBuffer buffer, final byte[] bytes) {
+        buffer.clear();
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+}
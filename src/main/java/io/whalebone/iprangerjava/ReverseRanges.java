@@ -0,0 +1,169 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.utils.Cidr;
+import org.lmdbjava.Cursor;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.SeekOp;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Lazy iteration over the identities to ranges databases, IPv4 ranges of the identity first. When the ranges
+ * are stored as fixed size duplicates ({@code MDB_DUPFIXED}, with the identity dictionary) a whole page of
+ * them is read by one {@code MDB_GET_MULTIPLE} / {@code MDB_NEXT_MULTIPLE}, otherwise they are read one by
+ * one by {@code MDB_NEXT_DUP}.
+ * <p>
+ * Only the end address of a range is stored, the prefix length is the widest stored mask which reaches
+ * the end address, i.e. the block lookups find the range for (see {@link Ip4LookupIndex}). A range without
+ * such mask can't be looked up and is reported as a host range.
+ * <p>
+ * The read transaction is released when the iteration ends or by {@link #close()}, it must be iterated
+ * by the thread which created it.
+ *
+ * @author Tomas Kozel
+ * @see IpRanger#rangesOf(String)
+ */
+class ReverseRanges implements Spliterator<StoredRange>, AutoCloseable {
+    private final IpRanger ipRanger;
+    private final boolean multiple;
+    private final ByteBuffer key;
+    private final Cidr cidr = new Cidr();
+    private Txn<ByteBuffer> txn;
+    private Cursor<ByteBuffer> cursor;
+    private boolean ipv6;
+    private boolean[] prefixes;
+    // the current value or page of values
+    private ByteBuffer values;
+    private int offset;
+
+    /**
+     * @param txn      read transaction released by the iteration
+     * @param identity the identity as stored in the databases
+     */
+    ReverseRanges(final IpRanger ipRanger, final Txn<ByteBuffer> txn, final byte[] identity) {
+        this.ipRanger = ipRanger;
+        this.multiple = ipRanger.getIdentityCodec().isDictionary();
+        this.key = ByteBuffer.allocateDirect(identity.length);
+        this.key.put(identity).flip();
+        this.txn = txn;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super StoredRange> action) {
+        while (txn != null) {
+            final int addressSize = ipv6 ? Cidr.IPV6_SIZE : Cidr.IPV4_SIZE;
+            if (values != null && offset + addressSize <= values.limit()) {
+                action.accept(toRange(offset));
+                offset += addressSize;
+                return true;
+            }
+            if (!nextValues()) {
+                close();
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Spliterator<StoredRange> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL;
+    }
+
+    @Override
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+        if (txn != null) {
+            ipRanger.release(txn);
+            txn = null;
+        }
+        values = null;
+    }
+
+    /**
+     * Reads the next value or page of values, moving to IPv6 ranges when IPv4 ones are read.
+     *
+     * @return false if there are no more values
+     */
+    private boolean nextValues() {
+        if (cursor != null) {
+            if (cursor.seek(multiple ? SeekOp.MDB_NEXT_MULTIPLE : SeekOp.MDB_NEXT_DUP)) {
+                setValues(cursor.val());
+                return true;
+            }
+            cursor.close();
+            cursor = null;
+            if (ipv6) {
+                return false;
+            }
+            ipv6 = true;
+        }
+        while (true) {
+            cursor = ipRanger.getIdentitiesToRanges(ipv6).openCursor(txn);
+            if (cursor.get(key, GetOp.MDB_SET) && (!multiple || cursor.seek(SeekOp.MDB_GET_MULTIPLE))) {
+                prefixes = new boolean[(ipv6 ? Cidr.IPV6_SIZE : Cidr.IPV4_SIZE) * 8 + 1];
+                IpRanger.readMasks(txn, ipRanger.getMasks(ipv6), prefixes);
+                setValues(cursor.val());
+                return true;
+            }
+            cursor.close();
+            cursor = null;
+            if (ipv6) {
+                return false;
+            }
+            ipv6 = true;
+        }
+    }
+
+    private void setValues(final ByteBuffer values) {
+        this.values = values;
+        this.offset = values.position();
+    }
+
+    private StoredRange toRange(final int index) {
+        if (ipv6) {
+            final long high = IpRanger.getLong(values, index);
+            final long low = IpRanger.getLong(values, index + 8);
+            final int prefix = Ip6LookupTrie.widestPrefix(high, low, prefixes);
+            cidr.setIpv6(high, low, prefix < 0 ? 128 : prefix);
+            cidr.setIpv6(cidr.getStartHigh(), cidr.getStartLow(), cidr.getPrefixLength());
+        } else {
+            final int end = IpRanger.getInt(values, index);
+            final int prefix = Ip4LookupIndex.widestPrefix(end, prefixes);
+            cidr.setIpv4(end, prefix < 0 ? 32 : prefix);
+            cidr.setIpv4((int) cidr.getStartLow(), cidr.getPrefixLength());
+        }
+        return StoredRange.of(cidr.toString(), cidr.getPrefixLength(), ipv6);
+    }
+}
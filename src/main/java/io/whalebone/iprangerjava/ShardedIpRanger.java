@@ -0,0 +1,376 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.PutFlags;
+import org.lmdbjava.Txn;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Stream;
+
+import static org.lmdbjava.PutFlags.MDB_APPEND;
+import static org.lmdbjava.PutFlags.MDB_APPENDDUP;
+
+/**
+ * IPv4 and IPv6 ranges kept in two environments (shards), e.g. on separate disks. LMDB allows only one write
+ * transaction per environment, so the shards are written in parallel: {@link Loader} rebuilds them in two threads
+ * and {@link Writer} has a writer thread for each of them. Each shard is an {@link IpRanger} whose databases
+ * of the other family stay empty, the lookups, inserts and deletes are routed to the shard of the address family.
+ * <p>
+ * The C resolver reads a single environment, {@link #writeSingleEnv(Path)} merges the shards into one.
+ *
+ * @author Tomas Kozel
+ */
+public class ShardedIpRanger implements Closeable {
+    private final IpRanger ip4Shard;
+    private final IpRanger ip6Shard;
+
+    private ShardedIpRanger(final IpRanger ip4Shard, final IpRanger ip6Shard) {
+        this.ip4Shard = ip4Shard;
+        this.ip6Shard = ip6Shard;
+    }
+
+    /**
+     * Opens the shards, both with the configuration.
+     *
+     * @param ip4Dir directory of the IPv4 shard
+     * @param ip6Dir directory of the IPv6 shard, it must differ from the IPv4 one
+     */
+    public static ShardedIpRanger create(final Path ip4Dir, final Path ip6Dir, final Configuration conf) {
+        if (ip4Dir.toAbsolutePath().normalize().equals(ip6Dir.toAbsolutePath().normalize())) {
+            throw new IllegalArgumentException("Shards must be in different directories: " + ip4Dir);
+        }
+        final IpRanger ip4Shard = IpRanger.create(ip4Dir, conf);
+        try {
+            return new ShardedIpRanger(ip4Shard, IpRanger.create(ip6Dir, conf));
+        } catch (RuntimeException e) {
+            ip4Shard.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the shard of the address family, e.g. for its statistics or the lookups of many addresses
+     */
+    public IpRanger getShard(final boolean ipv6) {
+        return ipv6 ? ip6Shard : ip4Shard;
+    }
+
+    /**
+     * @see IpRanger#insertIpRange(String, String)
+     */
+    public void insertIpRange(final String ipRange, final String identity) {
+        shardOf(ipRange).insertIpRange(ipRange, identity);
+    }
+
+    /**
+     * @see IpRanger#insertRange(String, String)
+     */
+    public int insertRange(final String range, final String identity) {
+        return shardOf(range).insertRange(range, identity);
+    }
+
+    /**
+     * @see IpRanger#deleteIpRange(String)
+     */
+    public boolean deleteIpRange(final String ipRange) {
+        return shardOf(ipRange).deleteIpRange(ipRange);
+    }
+
+    /**
+     * @see IpRanger#lookup(InetAddress)
+     */
+    public String lookup(final InetAddress address) {
+        return lookup(address.getAddress());
+    }
+
+    /**
+     * @param address IPv4 (4 bytes) or IPv6 (16 bytes) address in network byte order
+     */
+    public String lookup(final byte[] address) {
+        return (address.length == 16 ? ip6Shard : ip4Shard).lookup(address);
+    }
+
+    public String lookup(final int ip4Address) {
+        return ip4Shard.lookup(ip4Address);
+    }
+
+    public String lookup(final long ip6High, final long ip6Low) {
+        return ip6Shard.lookup(ip6High, ip6Low);
+    }
+
+    /**
+     * Streams the ranges of the identity from both shards, IPv4 ranges first.
+     *
+     * @see IpRanger#rangesOf(String)
+     */
+    public Stream<StoredRange> rangesOf(final String identity) {
+        return Stream.concat(ip4Shard.rangesOf(identity), ip6Shard.rangesOf(identity));
+    }
+
+    /**
+     * @return new writer which must be closed
+     */
+    public Writer newWriter() {
+        return new Writer();
+    }
+
+    /**
+     * @return new loader which must be closed
+     */
+    public Loader newBulkLoader() {
+        return new Loader();
+    }
+
+    /**
+     * Writes both shards into one environment in the directory, the layout the C resolver reads. The environment
+     * is opened with the configuration of the shards and its ranges are replaced. The records are copied in key
+     * order with {@code MDB_APPEND}, with {@link Configuration#getBatchCommitSize()} commits as the bulk load.
+     *
+     * @throws IllegalStateException if the identities are stored as ids of a dictionary, the shards have
+     *                               a dictionary each
+     */
+    public void writeSingleEnv(final Path dir) {
+        final Configuration conf = ip4Shard.getConfiguration();
+        if (conf.isIdentityDictionary()) {
+            throw new IllegalStateException("Shards with identity dictionaries can't be written to a single environment");
+        }
+        try (IpRanger target = IpRanger.create(dir, conf)) {
+            copy(ip4Shard, target, false);
+            copy(ip6Shard, target, true);
+            target.syncDeferred();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            ip4Shard.close();
+        } finally {
+            ip6Shard.close();
+        }
+    }
+
+    /**
+     * @return shard of the range, the ranges which are not IPv6 are left to the IPv4 shard to be validated
+     */
+    private IpRanger shardOf(final String ipRange) {
+        return isIpv6(ipRange) ? ip6Shard : ip4Shard;
+    }
+
+    private static boolean isIpv6(final String ipRange) {
+        return ipRange != null && ipRange.indexOf(':') >= 0;
+    }
+
+    private static void copy(final IpRanger source, final IpRanger target, final boolean ipv6) {
+        final int bufferSize = Math.max(target.getConfiguration().getMaxIdentityKeySize(), 16);
+        final ByteBuffer key = ByteBuffer.allocateDirect(bufferSize);
+        final ByteBuffer value = ByteBuffer.allocateDirect(bufferSize);
+        final Txn<ByteBuffer> txn = source.txnRead();
+        try (BulkLoader.Writer writer = new BulkLoader.Writer(target)) {
+            writer.write(t -> {
+                target.getRangesToIdentity(ipv6).drop(t);
+                target.getIdentitiesToRanges(ipv6).drop(t);
+                target.getMasks(ipv6).drop(t);
+                return true;
+            });
+            copy(txn, source.getRangesToIdentity(ipv6), writer, target.getRangesToIdentity(ipv6), key, value);
+            copy(txn, source.getIdentitiesToRanges(ipv6), writer, target.getIdentitiesToRanges(ipv6), key, value);
+            copy(txn, source.getMasks(ipv6), writer, target.getMasks(ipv6), key, value);
+            writer.commit();
+        } finally {
+            source.release(txn);
+        }
+    }
+
+    private static void copy(final Txn<ByteBuffer> txn, final Dbi<ByteBuffer> source, final BulkLoader.Writer writer,
+                             final Dbi<ByteBuffer> target, final ByteBuffer key, final ByteBuffer value) {
+        try (Cursor<ByteBuffer> cursor = source.openCursor(txn)) {
+            byte[] previousKey = null;
+            boolean found = cursor.first();
+            while (found) {
+                // the writes are replayed when the map grows, so they can't use the cursor's buffers
+                final byte[] keyBytes = toBytes(cursor.key());
+                final byte[] valueBytes = toBytes(cursor.val());
+                final PutFlags flags = Arrays.equals(previousKey, keyBytes) ? MDB_APPENDDUP : MDB_APPEND;
+                writer.write(t -> {
+                    key.clear();
+                    key.put(keyBytes).flip();
+                    value.clear();
+                    value.put(valueBytes).flip();
+                    target.put(t, key, value, flags);
+                    return true;
+                });
+                writer.written();
+                previousKey = keyBytes;
+                found = cursor.next();
+            }
+        }
+    }
+
+    private static byte[] toBytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Waits for the task, its exception is rethrown.
+     */
+    private static <T> T await(final FutureTask<T> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the shard", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * {@link IpRangerWriter} of each shard, the changes are routed by the address family.
+     */
+    public final class Writer implements Closeable {
+        private final IpRangerWriter ip4Writer;
+        private final IpRangerWriter ip6Writer;
+
+        private Writer() {
+            this.ip4Writer = ip4Shard.newWriter();
+            try {
+                this.ip6Writer = ip6Shard.newWriter();
+            } catch (RuntimeException e) {
+                ip4Writer.close();
+                throw e;
+            }
+        }
+
+        public CompletableFuture<Boolean> insert(final RangeEntry entry) {
+            return insert(entry.getIpRange(), entry.getIdentity());
+        }
+
+        /**
+         * @see IpRangerWriter#insert(String, String)
+         */
+        public CompletableFuture<Boolean> insert(final String ipRange, final String identity) {
+            return (isIpv6(ipRange) ? ip6Writer : ip4Writer).insert(ipRange, identity);
+        }
+
+        /**
+         * @see IpRangerWriter#delete(String)
+         */
+        public CompletableFuture<Boolean> delete(final String ipRange) {
+            return (isIpv6(ipRange) ? ip6Writer : ip4Writer).delete(ipRange);
+        }
+
+        /**
+         * Commits the submitted changes of both shards and stops the writers' threads.
+         */
+        @Override
+        public void close() {
+            try {
+                ip4Writer.close();
+            } finally {
+                ip6Writer.close();
+            }
+        }
+    }
+
+    /**
+     * {@link BulkLoader} of each shard, the ranges are routed by the address family and the shards are loaded
+     * in parallel.
+     */
+    public final class Loader implements Closeable {
+        private final BulkLoader ip4Loader;
+        private final BulkLoader ip6Loader;
+
+        private Loader() {
+            this.ip4Loader = ip4Shard.newBulkLoader();
+            try {
+                this.ip6Loader = ip6Shard.newBulkLoader();
+            } catch (RuntimeException e) {
+                ip4Loader.close();
+                throw e;
+            }
+        }
+
+        public boolean add(final RangeEntry entry) {
+            return entry == null ? ip4Loader.add(null) : add(entry.getIpRange(), entry.getIdentity());
+        }
+
+        /**
+         * @see BulkLoader#add(String, String)
+         */
+        public boolean add(final String ipRange, final String identity) {
+            return (isIpv6(ipRange) ? ip6Loader : ip4Loader).add(ipRange, identity);
+        }
+
+        /**
+         * Replaces the stored ranges of both shards by the added ones, the IPv6 shard is loaded in a new thread.
+         *
+         * @return counts of both shards
+         * @see BulkLoader#load()
+         */
+        public InsertReport load() {
+            final FutureTask<InsertReport> ip6Load = new FutureTask<>(ip6Loader::load);
+            new Thread(ip6Load, "ipranger-ip6-load").start();
+            final InsertReport ip4Report;
+            try {
+                ip4Report = ip4Loader.load();
+            } catch (RuntimeException | Error e) {
+                // the IPv6 shard is loaded even if the IPv4 one fails
+                try {
+                    await(ip6Load);
+                } catch (RuntimeException | Error ip6Failure) {
+                    e.addSuppressed(ip6Failure);
+                }
+                throw e;
+            }
+            final InsertReport report = new InsertReport();
+            report.add(ip4Report);
+            report.add(await(ip6Load));
+            return report;
+        }
+
+        /**
+         * Removes the temporary files of both loaders.
+         */
+        @Override
+        public void close() {
+            try {
+                ip4Loader.close();
+            } finally {
+                ip6Loader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import java.nio.file.Path;
+
+/**
+ * Listener of snapshots published by {@link SnapshotPublisher}.
+ *
+ * @author Tomas Kozel
+ */
+@FunctionalInterface
+public interface SnapshotListener {
+    /**
+     * Called after the snapshot has been published. Readers can open the new snapshot (e.g. by
+     * {@link SnapshotPublisher#openPublished()}) and close the previous one afterwards.
+     *
+     * @param generation generation of the published snapshot
+     * @param dir        directory of the published snapshot
+     */
+    void published(long generation, Path dir);
+}
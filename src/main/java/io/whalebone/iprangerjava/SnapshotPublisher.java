@@ -0,0 +1,223 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.CopyFlags;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Builds snapshots of the ranges aside and publishes them atomically, so readers never see a half-loaded database.
+ * <p>
+ * The published path is a symbolic link to a generation directory {@code <name>.gen-<generation>} next to it.
+ * A new generation is written with the {@link EnvProfile#BULK_LOAD} profile, flushed by one
+ * {@code env.sync(true)} when it's loaded, optionally compacted (see {@link Configuration#isSnapshotCompact()})
+ * and published by renaming a new link over the old one. Readers (the C resolver too) opening the published
+ * path afterwards get the new generation while the ones having the previous generation open can keep using it.
+ * Only {@link Configuration#getSnapshotRetention()} previous generations are kept.
+ *
+ * @author Tomas Kozel
+ */
+public class SnapshotPublisher {
+    private static final String GENERATION_SEPARATOR = ".gen-";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String LINK_SUFFIX = ".link";
+
+    private final Path link;
+    private final Configuration conf;
+    private final List<SnapshotListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param link path the snapshots are published at, it must be a symbolic link or must not exist
+     */
+    public SnapshotPublisher(final Path link, final Configuration conf) {
+        this.link = Objects.requireNonNull(link, "Link can't be null").toAbsolutePath();
+        this.conf = Objects.requireNonNull(conf, "Configuration can't be null");
+    }
+
+    public void addListener(final SnapshotListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final SnapshotListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return generation of the published snapshot or 0 if none has been published
+     */
+    public long getGeneration() {
+        if (!Files.isSymbolicLink(link)) {
+            return 0;
+        }
+        try {
+            return generationOf(Files.readSymbolicLink(link).getFileName().toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read link " + link, e);
+        }
+    }
+
+    /**
+     * @return directory of the published snapshot or null if none has been published
+     */
+    public Path getPublishedDir() {
+        if (!Files.isSymbolicLink(link)) {
+            return null;
+        }
+        try {
+            return link.resolveSibling(Files.readSymbolicLink(link));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read link " + link, e);
+        }
+    }
+
+    /**
+     * Opens the published snapshot. The returned instance keeps reading the same generation after a newer
+     * one is published.
+     *
+     * @return new instance which must be closed
+     * @throws IllegalStateException if there is no published snapshot
+     */
+    public IpRanger openPublished() {
+        final Path dir = getPublishedDir();
+        if (dir == null) {
+            throw new IllegalStateException("No snapshot has been published at " + link);
+        }
+        return IpRanger.create(dir, conf);
+    }
+
+    /**
+     * Builds a new generation by the loader (e.g. by {@link IpRanger#newBulkLoader()}) and publishes it.
+     * Nothing is published if the loader fails.
+     *
+     * @param loader writes the ranges of the new snapshot to the given empty instance
+     * @return generation of the published snapshot
+     */
+    public synchronized long publish(final Consumer<IpRanger> loader) {
+        if (Files.exists(link) && !Files.isSymbolicLink(link)) {
+            throw new IllegalStateException(link + " is not a symbolic link so it cannot be replaced atomically");
+        }
+        final long generation = getGeneration() + 1;
+        final String name = link.getFileName() + GENERATION_SEPARATOR + generation;
+        Path dir = link.resolveSibling(name);
+        try {
+            // leftovers of a failed build
+            deleteRecursively(dir);
+            deleteRecursively(link.resolveSibling(name + COMPACT_SUFFIX));
+            Files.createDirectories(dir);
+            try (IpRanger ipRanger = IpRanger.create(dir, conf, EnvProfile.BULK_LOAD)) {
+                loader.accept(ipRanger);
+                ipRanger.getEnv().sync(true);
+                if (conf.isSnapshotCompact()) {
+                    final Path compacted = link.resolveSibling(name + COMPACT_SUFFIX);
+                    Files.createDirectories(compacted);
+                    ipRanger.getEnv().copy(compacted.toFile(), CopyFlags.MDB_CP_COMPACT);
+                    dir = compacted;
+                }
+            }
+            if (conf.isSnapshotCompact()) {
+                final Path original = link.resolveSibling(name);
+                deleteRecursively(original);
+                Files.move(dir, original, StandardCopyOption.ATOMIC_MOVE);
+                dir = original;
+            }
+            final Path newLink = link.resolveSibling(link.getFileName() + LINK_SUFFIX);
+            Files.deleteIfExists(newLink);
+            // relative target so the whole parent directory can be moved
+            Files.createSymbolicLink(newLink, dir.getFileName());
+            Files.move(newLink, link, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            deleteQuietly(link.resolveSibling(name), link.resolveSibling(name + COMPACT_SUFFIX));
+            throw new UncheckedIOException("Cannot publish snapshot " + dir, e);
+        } catch (RuntimeException e) {
+            deleteQuietly(link.resolveSibling(name), link.resolveSibling(name + COMPACT_SUFFIX));
+            throw e;
+        }
+        for (final SnapshotListener listener : listeners) {
+            listener.published(generation, dir);
+        }
+        deleteOldGenerations(generation);
+        return generation;
+    }
+
+    private void deleteOldGenerations(final long published) {
+        final String prefix = link.getFileName() + GENERATION_SEPARATOR;
+        final List<Path> old = new ArrayList<>();
+        try (DirectoryStream<Path> siblings = Files.newDirectoryStream(link.toAbsolutePath().getParent(), prefix + "*")) {
+            for (final Path sibling : siblings) {
+                final long generation = generationOf(sibling.getFileName().toString());
+                if (generation > 0 && generation < published - conf.getSnapshotRetention()) {
+                    old.add(sibling);
+                }
+            }
+            for (final Path dir : old) {
+                deleteRecursively(dir);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot delete old snapshots of " + link, e);
+        }
+    }
+
+    /**
+     * @return generation parsed from the directory name or -1 if it's not a generation directory
+     */
+    private static long generationOf(final String dirName) {
+        final int separator = dirName.lastIndexOf(GENERATION_SEPARATOR);
+        if (separator < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(dirName.substring(separator + GENERATION_SEPARATOR.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void deleteQuietly(final Path... dirs) {
+        for (final Path dir : dirs) {
+            try {
+                deleteRecursively(dir);
+            } catch (IOException e) {
+                // the leftovers are deleted by the next build of the same generation
+            }
+        }
+    }
+
+    private static void deleteRecursively(final Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            final List<Path> toDelete = new ArrayList<>();
+            paths.sorted(Comparator.reverseOrder()).forEach(toDelete::add);
+            for (final Path path : toDelete) {
+                Files.delete(path);
+            }
+        }
+    }
+}
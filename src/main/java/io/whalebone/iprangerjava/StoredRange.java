@@ -0,0 +1,33 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import lombok.Value;
+
+/**
+ * Range as it's stored for an identity.
+ *
+ * @author Tomas Kozel
+ * @see IpRanger#rangesOf(String)
+ */
+@Value(staticConstructor = "of")
+public class StoredRange {
+    // CIDR with the start address of the range
+    private String ipRange;
+    private int prefixLength;
+    private boolean ipv6;
+}
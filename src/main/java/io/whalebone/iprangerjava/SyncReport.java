@@ -0,0 +1,75 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Counts of changes applied by {@link IpRanger#sync(Iterable)}.
+ * <ul>
+ *     <li>inserted - ranges which were not stored before</li>
+ *     <li>updated - stored ranges whose identity has changed</li>
+ *     <li>deleted - stored ranges missing in the source</li>
+ *     <li>unchanged - ranges stored with the same identity</li>
+ *     <li>skipped - empty entries and ranges overridden by a later entry of the same range</li>
+ *     <li>kept - stored ranges missing in the source which are not deleted because an entry of the source
+ *     could not be parsed</li>
+ *     <li>failed - entries rejected because they could not be parsed or are too long, the stored ranges
+ *     they would change are kept</li>
+ * </ul>
+ *
+ * @author Tomas Kozel
+ */
+@Getter
+@ToString
+public class SyncReport {
+    private long inserted;
+    private long updated;
+    private long deleted;
+    private long unchanged;
+    private long kept;
+    private long skipped;
+    private long failed;
+
+    void inserted() {
+        inserted++;
+    }
+
+    void updated() {
+        updated++;
+    }
+
+    void deleted(final long count) {
+        deleted += count;
+    }
+
+    void unchanged() {
+        unchanged++;
+    }
+
+    void kept(final long count) {
+        kept += count;
+    }
+
+    void skipped() {
+        skipped++;
+    }
+
+    void failed() {
+        failed++;
+    }
+}
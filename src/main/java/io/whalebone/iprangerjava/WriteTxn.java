@@ -0,0 +1,169 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import org.lmdbjava.Env;
+import org.lmdbjava.Txn;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write transaction which survives a full map when the map growth is enabled. The writes are kept until
+ * the commit and when a write or the commit finds the map full, the transaction is aborted, the map grows
+ * and the kept writes are replayed in a new transaction. Without the growth the {@link Env.MapFullException}
+ * is thrown with the transaction aborted, as is the {@link IllegalStateException} of a growth which can't
+ * be done (see {@link MapGrowth#grow()}).
+ * <p>
+ * The writes must read their data again when they are replayed, e.g. fill the key buffers inside
+ * the write and not before it.
+ *
+ * @author Tomas Kozel
+ * @see MapGrowth
+ */
+class WriteTxn implements Closeable {
+    private final IpRanger ipRanger;
+    private final MapGrowth growth;
+    // null when the map doesn't grow
+    private final List<Write> writes;
+    private Txn<ByteBuffer> txn;
+
+    WriteTxn(final IpRanger ipRanger) {
+        this.ipRanger = ipRanger;
+        this.growth = ipRanger.getMapGrowth();
+        this.writes = growth.isEnabled() ? new ArrayList<>() : null;
+        begin();
+    }
+
+    /**
+     * @return the current transaction, use it for reads only as the writes done directly are not replayed
+     */
+    Txn<ByteBuffer> txn() {
+        checkOpen();
+        return txn;
+    }
+
+    /**
+     * @return the result of the write
+     */
+    boolean write(final Write write) {
+        checkOpen();
+        while (true) {
+            try {
+                final boolean result = write.apply(txn);
+                if (writes != null) {
+                    writes.add(write);
+                }
+                return result;
+            } catch (Env.MapFullException e) {
+                recover(e);
+            }
+        }
+    }
+
+    /**
+     * Commits the writes, the transaction can't be used afterwards.
+     *
+     * @param ranges number of ranges written by the transaction
+     */
+    void commit(final int ranges) {
+        checkOpen();
+        while (true) {
+            try {
+                ipRanger.commit(txn, ranges);
+                break;
+            } catch (Env.MapFullException e) {
+                recover(e);
+            }
+        }
+        end();
+    }
+
+    /**
+     * Aborts the writes which were not committed.
+     */
+    @Override
+    public void close() {
+        if (txn != null) {
+            end();
+        }
+    }
+
+    private void recover(final Env.MapFullException e) {
+        Env.MapFullException failure = e;
+        while (true) {
+            end();
+            final boolean grown;
+            try {
+                grown = growth.grow();
+            } catch (IllegalStateException cannotGrow) {
+                cannotGrow.addSuppressed(failure);
+                throw cannotGrow;
+            }
+            if (!grown) {
+                throw failure;
+            }
+            begin();
+            try {
+                for (final Write write : writes) {
+                    write.apply(txn);
+                }
+                return;
+            } catch (Env.MapFullException again) {
+                failure = again;
+            }
+        }
+    }
+
+    private void begin() {
+        growth.enter();
+        try {
+            txn = ipRanger.getEnv().txnWrite();
+        } catch (RuntimeException e) {
+            growth.exit();
+            throw e;
+        }
+    }
+
+    private void end() {
+        try {
+            txn.close();
+        } finally {
+            txn = null;
+            growth.exit();
+        }
+    }
+
+    private void checkOpen() {
+        if (txn == null) {
+            throw new IllegalStateException("Transaction has been already committed or aborted");
+        }
+    }
+
+    /**
+     * Writes of the transaction.
+     */
+    @FunctionalInterface
+    interface Write {
+        /**
+         * @return arbitrary result passed to the caller of {@link WriteTxn#write(Write)}
+         */
+        boolean apply(Txn<ByteBuffer> txn);
+    }
+}
@@ -16,6 +16,9 @@
 
 package io.whalebone.iprangerjava.utils;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /**
  * @author Tomas Kozel
  */
@@ -32,4 +35,20 @@ public class CUtils {
             return string;
         }
     }
+
+    /**
+     * Decodes UTF-8 C string from the remaining bytes of the buffer without changing its position.
+     * The ending NULL char is optional.
+     */
+    public static String fromCString(ByteBuffer buffer) {
+        int length = 0;
+        while (length < buffer.remaining() && buffer.get(buffer.position() + length) != NULL_CHAR) {
+            length++;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(buffer.position() + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 }
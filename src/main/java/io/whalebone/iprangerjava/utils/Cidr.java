@@ -0,0 +1,200 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava.utils;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Mutable holder of a parsed CIDR meant to be reused between parsings (see {@link CidrParser}).
+ * The address is kept as two longs, {@code high} and {@code low}, holding the 128 bits of an IPv6 address
+ * in big endian order. An IPv4 address is kept in the lowest 32 bits of {@code low} and {@code high} is 0.
+ *
+ * @author Tomas Kozel
+ */
+public class Cidr {
+    public static final int IPV4_SIZE = 4;
+    public static final int IPV6_SIZE = 16;
+
+    private boolean ipv6;
+    private long high;
+    private long low;
+    private int prefixLength;
+
+    public void setIpv4(final int address, final int prefixLength) {
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("Invalid IPv4 prefix length " + prefixLength);
+        }
+        this.ipv6 = false;
+        this.high = 0;
+        this.low = address & 0xFFFFFFFFL;
+        this.prefixLength = prefixLength;
+    }
+
+    public void setIpv6(final long high, final long low, final int prefixLength) {
+        if (prefixLength < 0 || prefixLength > 128) {
+            throw new IllegalArgumentException("Invalid IPv6 prefix length " + prefixLength);
+        }
+        this.ipv6 = true;
+        this.high = high;
+        this.low = low;
+        this.prefixLength = prefixLength;
+    }
+
+    public boolean isIpv6() {
+        return ipv6;
+    }
+
+    /**
+     * @return size of the address in bytes
+     */
+    public int getAddressSize() {
+        return ipv6 ? IPV6_SIZE : IPV4_SIZE;
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * @return the address as it was parsed (host bits are not cleared)
+     */
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public long getStartHigh() {
+        return high & ~hostMaskHigh();
+    }
+
+    public long getStartLow() {
+        return low & ~hostMaskLow();
+    }
+
+    public long getEndHigh() {
+        return high | hostMaskHigh();
+    }
+
+    public long getEndLow() {
+        return low | hostMaskLow();
+    }
+
+    /**
+     * Writes the first address of the range to {@code dst} in network byte order.
+     *
+     * @return number of bytes written
+     */
+    public int writeStartAddress(final byte[] dst, final int offset) {
+        return write(getStartHigh(), getStartLow(), dst, offset);
+    }
+
+    /**
+     * Writes the last address of the range to {@code dst} in network byte order.
+     *
+     * @return number of bytes written
+     */
+    public int writeEndAddress(final byte[] dst, final int offset) {
+        return write(getEndHigh(), getEndLow(), dst, offset);
+    }
+
+    /**
+     * Puts the last address of the range at the buffer's position in network byte order
+     * regardless of the buffer's byte order.
+     */
+    public void writeEndAddress(final ByteBuffer dst) {
+        final int position = dst.position();
+        if (dst.remaining() < getAddressSize()) {
+            throw new BufferOverflowException();
+        }
+        if (ipv6) {
+            putLong(dst, position, getEndHigh());
+            putLong(dst, position + 8, getEndLow());
+        } else {
+            putInt(dst, position, (int) getEndLow());
+        }
+        dst.position(position + getAddressSize());
+    }
+
+    private long hostMaskHigh() {
+        if (!ipv6 || prefixLength >= 64) {
+            return 0;
+        }
+        return -1L >>> prefixLength;
+    }
+
+    private long hostMaskLow() {
+        if (!ipv6) {
+            return prefixLength == 0 ? 0xFFFFFFFFL : (1L << (32 - prefixLength)) - 1;
+        }
+        if (prefixLength <= 64) {
+            return -1L;
+        }
+        return prefixLength == 128 ? 0 : -1L >>> (prefixLength - 64);
+    }
+
+    private int write(final long high, final long low, final byte[] dst, final int offset) {
+        if (ipv6) {
+            for (int i = 0; i < 8; i++) {
+                dst[offset + i] = (byte) (high >>> (56 - 8 * i));
+                dst[offset + 8 + i] = (byte) (low >>> (56 - 8 * i));
+            }
+            return IPV6_SIZE;
+        }
+        for (int i = 0; i < 4; i++) {
+            dst[offset + i] = (byte) (low >>> (24 - 8 * i));
+        }
+        return IPV4_SIZE;
+    }
+
+    private static void putLong(final ByteBuffer dst, final int index, final long value) {
+        for (int i = 0; i < 8; i++) {
+            dst.put(index + i, (byte) (value >>> (56 - 8 * i)));
+        }
+    }
+
+    private static void putInt(final ByteBuffer dst, final int index, final int value) {
+        for (int i = 0; i < 4; i++) {
+            dst.put(index + i, (byte) (value >>> (24 - 8 * i)));
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        if (ipv6) {
+            for (int i = 0; i < 8; i++) {
+                final long word = i < 4 ? high : low;
+                if (i > 0) {
+                    sb.append(':');
+                }
+                sb.append(Integer.toHexString((int) (word >>> (48 - 16 * (i % 4))) & 0xFFFF));
+            }
+        } else {
+            for (int i = 0; i < 4; i++) {
+                if (i > 0) {
+                    sb.append('.');
+                }
+                sb.append((low >>> (24 - 8 * i)) & 0xFF);
+            }
+        }
+        return sb.append('/').append(prefixLength).toString();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava.utils;
+
+/**
+ * Decomposition of an arbitrary address range {@code [start, end]} to the minimal set of CIDR blocks.
+ * Addresses are two longs as in {@link Cidr}, an IPv4 address is in the lowest 32 bits of {@code low}.
+ * <p>
+ * The blocks are found greedily from the start: the next block is the largest one which is aligned at the
+ * current address (its trailing zero bits) and doesn't reach past the end. The decomposition doesn't allocate,
+ * the blocks are passed to a visitor, so a single address or the whole address space is one step.
+ *
+ * @author Tomas Kozel
+ */
+public final class CidrBlocks {
+
+    private CidrBlocks() {
+    }
+
+    /**
+     * Visits the blocks in ascending order.
+     *
+     * @return number of blocks
+     * @throws IllegalArgumentException if the start is greater than the end
+     */
+    public static int decompose(final boolean ipv6, final long startHigh, final long startLow,
+                                final long endHigh, final long endLow, final BlockVisitor visitor) {
+        final int bits = ipv6 ? 128 : 32;
+        if (!ipv6 && ((startHigh | endHigh) != 0 || ((startLow | endLow) >>> 32) != 0)) {
+            throw new IllegalArgumentException("IPv4 address must fit to the lowest 32 bits");
+        }
+        if (compareUnsigned(startHigh, startLow, endHigh, endLow) > 0) {
+            throw new IllegalArgumentException("Start of the range is greater than its end");
+        }
+        long high = startHigh;
+        long low = startLow;
+        int blocks = 0;
+        while (true) {
+            // the block must be aligned at the address and must fit to the rest of the range
+            final int aligned = Math.min(bits, trailingZeros(high, low));
+            final int fits = fittingHostBits(endHigh - high - (Long.compareUnsigned(endLow, low) < 0 ? 1 : 0),
+                    endLow - low);
+            final int hostBits = Math.min(aligned, fits);
+            visitor.visit(high, low, bits - hostBits);
+            blocks++;
+            // the last address of the block
+            final long lastHigh = hostBits > 64 ? high | -1L >>> (128 - hostBits) : high;
+            final long lastLow = hostBits >= 64 ? -1L : low | (1L << hostBits) - 1;
+            if (lastHigh == endHigh && lastLow == endLow) {
+                return blocks;
+            }
+            low = lastLow + 1;
+            high = low == 0 ? lastHigh + 1 : lastHigh;
+        }
+    }
+
+    /**
+     * @param distanceHigh the end minus the current address
+     * @return host bits of the widest block not larger than {@code distance + 1} addresses,
+     * i.e. the largest {@code k} such that {@code 2^k <= distance + 1}
+     */
+    private static int fittingHostBits(final long distanceHigh, final long distanceLow) {
+        if (distanceHigh == -1L && distanceLow == -1L) {
+            return 128;
+        }
+        final long sizeLow = distanceLow + 1;
+        final long sizeHigh = sizeLow == 0 ? distanceHigh + 1 : distanceHigh;
+        return sizeHigh != 0 ? 127 - Long.numberOfLeadingZeros(sizeHigh) : 63 - Long.numberOfLeadingZeros(sizeLow);
+    }
+
+    private static int trailingZeros(final long high, final long low) {
+        return low != 0 ? Long.numberOfTrailingZeros(low) : 64 + Long.numberOfTrailingZeros(high);
+    }
+
+    public static int compareUnsigned(final long aHigh, final long aLow, final long bHigh, final long bLow) {
+        final int high = Long.compareUnsigned(aHigh, bHigh);
+        return high != 0 ? high : Long.compareUnsigned(aLow, bLow);
+    }
+
+    @FunctionalInterface
+    public interface BlockVisitor {
+        /**
+         * @param high         the first address of the block, see {@link Cidr}
+         * @param low          the first address of the block, see {@link Cidr}
+         * @param prefixLength prefix length of the block
+         */
+        void visit(long high, long low, int prefixLength);
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parser of CIDR literals ({@code a.b.c.d/n} and IPv6 {@code x:x::x/n}, optionally with IPv4 dotted tail)
+ * and of address ranges ({@code start-end}) which, unlike {@link CIDRUtils}, never resolves host names and
+ * doesn't allocate on successful parsing. The result is stored to a reusable {@link Cidr}.
+ * <p>
+ * Unlike {@link java.net.InetAddress}, IPv4 mapped IPv6 addresses ({@code ::ffff:a.b.c.d}) stay IPv6
+ * and only the dotted quad IPv4 notation is accepted.
+ * <p>
+ * The parser is not thread safe.
+ *
+ * @author Tomas Kozel
+ */
+public class CidrParser {
+    private final AsciiSequence asciiSequence = new AsciiSequence();
+
+    public void parse(final CharSequence text, final Cidr target) {
+        parse(text, 0, text.length(), target);
+    }
+
+    /**
+     * Parses ASCII encoded CIDR from the bytes {@code [from, to)} of the buffer.
+     * Neither the position nor the limit of the buffer is changed.
+     */
+    public void parse(final ByteBuffer buffer, final int from, final int to, final Cidr target) {
+        asciiSequence.wrap(buffer);
+        try {
+            parse(asciiSequence, from, to, target);
+        } finally {
+            asciiSequence.wrap(null);
+        }
+    }
+
+    /**
+     * Parses CIDR from the chars {@code [from, to)} of the text. Leading and trailing whitespaces are ignored.
+     *
+     * @throws IllegalArgumentException if the text is not a valid CIDR
+     */
+    public void parse(final CharSequence text, int from, int to, final Cidr target) {
+        while (from < to && text.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && text.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        final int slash = indexOf(text, '/', from, to);
+        if (slash < 0) {
+            throw invalid("not an valid CIDR format!", text, from, to);
+        }
+        final int prefixLength = parsePrefixLength(text, slash + 1, to);
+        if (prefixLength < 0) {
+            throw invalid("Invalid prefix length", text, from, to);
+        }
+        parseAddress(text, from, slash, prefixLength, target, from, to);
+    }
+
+    /**
+     * Parses range {@code start-end} of two addresses of the same family, e.g. {@code 10.0.0.5-10.0.1.7}.
+     * The addresses are stored as single address CIDRs (with prefix length 32 or 128), see {@link CidrBlocks}
+     * for their decomposition to CIDR blocks. Whitespaces around the addresses are ignored.
+     *
+     * @throws IllegalArgumentException if the text is not a valid range or its start is greater than its end
+     */
+    public void parseRange(final CharSequence text, final Cidr start, final Cidr end) {
+        final int dash = indexOf(text, '-', 0, text.length());
+        if (dash < 0) {
+            throw invalid("not a valid range format!", text, 0, text.length());
+        }
+        parseAddress(text, 0, dash, start);
+        parseAddress(text, dash + 1, text.length(), end);
+        if (start.isIpv6() != end.isIpv6()) {
+            throw invalid("Addresses of different families", text, 0, text.length());
+        }
+        if (CidrBlocks.compareUnsigned(start.getHigh(), start.getLow(), end.getHigh(), end.getLow()) > 0) {
+            throw invalid("Start of the range is greater than its end", text, 0, text.length());
+        }
+    }
+
+    /**
+     * Parses a single address from the chars {@code [from, to)} of the text as a CIDR with prefix length
+     * 32 or 128. Leading and trailing whitespaces are ignored.
+     *
+     * @throws IllegalArgumentException if the text is not a valid address
+     */
+    public void parseAddress(final CharSequence text, int from, int to, final Cidr target) {
+        while (from < to && text.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && text.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        final boolean ipv6 = indexOf(text, ':', from, to) >= 0;
+        parseAddress(text, from, to, ipv6 ? 128 : 32, target, from, to);
+    }
+
+    /**
+     * @param textFrom start of the whole text for the error message
+     * @param textTo   end of the whole text for the error message
+     */
+    private static void parseAddress(final CharSequence text, final int from, final int to, final int prefixLength,
+                                     final Cidr target, final int textFrom, final int textTo) {
+        if (indexOf(text, ':', from, to) >= 0) {
+            if (!parseIpv6(text, from, to, prefixLength, target)) {
+                throw invalid("Invalid IPv6 address", text, textFrom, textTo);
+            }
+        } else {
+            final long address = parseIpv4(text, from, to);
+            if (address < 0) {
+                throw invalid("Invalid IPv4 address", text, textFrom, textTo);
+            }
+            target.setIpv4((int) address, prefixLength);
+        }
+    }
+
+    /**
+     * @return the address as unsigned int or -1 if the text is not a dotted quad IPv4 address
+     */
+    private static long parseIpv4(final CharSequence text, final int from, final int to) {
+        long address = 0;
+        int i = from;
+        for (int octet = 0; octet < 4; octet++) {
+            if (octet > 0) {
+                if (i >= to || text.charAt(i) != '.') {
+                    return -1;
+                }
+                i++;
+            }
+            int value = 0;
+            int digits = 0;
+            while (i < to && digits <= 3) {
+                final char c = text.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0 || digits > 3 || value > 255) {
+                return -1;
+            }
+            address = address << 8 | value;
+        }
+        return i == to ? address : -1;
+    }
+
+    private static boolean parseIpv6(final CharSequence text, final int from, final int to,
+                                     final int prefixLength, final Cidr target) {
+        // groups before "::" are accumulated to head, groups after it to tail
+        long headHigh = 0;
+        long headLow = 0;
+        long tailHigh = 0;
+        long tailLow = 0;
+        int headGroups = 0;
+        int tailGroups = 0;
+        boolean compressed = false;
+        int i = from;
+        if (i + 1 < to && text.charAt(i) == ':' && text.charAt(i + 1) == ':') {
+            compressed = true;
+            i += 2;
+        }
+        while (i < to) {
+            final int groupStart = i;
+            int value = 0;
+            int digits = 0;
+            while (i < to && digits <= 4) {
+                final int digit = hexDigit(text.charAt(i));
+                if (digit < 0) {
+                    break;
+                }
+                value = value << 4 | digit;
+                digits++;
+                i++;
+            }
+            final int groupsLeft = 8 - headGroups - tailGroups;
+            if (i < to && text.charAt(i) == '.') {
+                // IPv4 dotted tail takes the last two groups
+                final long ipv4 = parseIpv4(text, groupStart, to);
+                if (ipv4 < 0 || groupsLeft < 2) {
+                    return false;
+                }
+                if (compressed) {
+                    tailHigh = tailHigh << 32 | tailLow >>> 32;
+                    tailLow = tailLow << 32 | ipv4;
+                    tailGroups += 2;
+                } else {
+                    headHigh = headHigh << 32 | headLow >>> 32;
+                    headLow = headLow << 32 | ipv4;
+                    headGroups += 2;
+                }
+                i = to;
+                break;
+            }
+            if (digits == 0 || digits > 4 || groupsLeft < 1) {
+                return false;
+            }
+            if (compressed) {
+                tailHigh = tailHigh << 16 | tailLow >>> 48;
+                tailLow = tailLow << 16 | value;
+                tailGroups++;
+            } else {
+                headHigh = headHigh << 16 | headLow >>> 48;
+                headLow = headLow << 16 | value;
+                headGroups++;
+            }
+            if (i == to) {
+                break;
+            }
+            if (text.charAt(i) != ':') {
+                return false;
+            }
+            i++;
+            if (i < to && text.charAt(i) == ':') {
+                if (compressed) {
+                    return false;
+                }
+                compressed = true;
+                i++;
+            } else if (i == to) {
+                return false;
+            }
+        }
+        final int groups = headGroups + tailGroups;
+        if (compressed ? groups > 7 : groups != 8) {
+            return false;
+        }
+        // move head groups to the top, the compressed zero groups end up between head and tail
+        for (int group = headGroups; group < 8; group++) {
+            headHigh = headHigh << 16 | headLow >>> 48;
+            headLow = headLow << 16;
+        }
+        target.setIpv6(headHigh | tailHigh, headLow | tailLow, prefixLength);
+        return true;
+    }
+
+    /**
+     * @return prefix length or -1 if it is not a number of at most three digits
+     */
+    private static int parsePrefixLength(final CharSequence text, final int from, final int to) {
+        if (from >= to || to - from > 3) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Unlike {@link Character#digit(char, int)} accepts only ASCII digits, as {@link java.net.InetAddress} does.
+     *
+     * @return value of the hexadecimal digit or -1 if the char is not one
+     */
+    private static int hexDigit(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static int indexOf(final CharSequence text, final char c, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static IllegalArgumentException invalid(final String message, final CharSequence text,
+                                                    final int from, final int to) {
+        return new IllegalArgumentException(message + ": " + text.subSequence(from, to));
+    }
+
+    /**
+     * Reusable view of ASCII bytes of a buffer as chars.
+     */
+    private static class AsciiSequence implements CharSequence {
+        private ByteBuffer buffer;
+
+        void wrap(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int length() {
+            return buffer.limit();
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return (char) (buffer.get(index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            final StringBuilder sb = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                sb.append(charAt(i));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+}
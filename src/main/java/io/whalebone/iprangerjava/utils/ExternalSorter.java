@@ -0,0 +1,266 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts byte array records in unsigned lexicographic order (the order LMDB keeps keys in). The records are
+ * collected in memory and when they exceed the memory budget they are sorted and spilled to a temporary
+ * file as a sorted run. The runs are merged when the sorted records are read.
+ * <p>
+ * The sorter is not thread safe and must be closed to remove the temporary files.
+ *
+ * @author Tomas Kozel
+ */
+public class ExternalSorter implements Closeable {
+    public static final Comparator<byte[]> UNSIGNED_ORDER = ExternalSorter::compareUnsigned;
+    // estimated heap overhead of one record: array header and the reference in the list
+    private static final int RECORD_OVERHEAD = 24;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private final long memoryBudget;
+    private final Path tempDir;
+    private final List<Path> runs = new ArrayList<>();
+    private final List<Closeable> readers = new ArrayList<>();
+    private List<byte[]> records = new ArrayList<>();
+    private long usedMemory;
+    private long size;
+    private boolean sorted;
+
+    /**
+     * @param memoryBudget approximate heap size the records can take before they are spilled to disk
+     * @param tempDir      directory for the sorted runs
+     */
+    public ExternalSorter(final long memoryBudget, final Path tempDir) {
+        this.memoryBudget = memoryBudget;
+        this.tempDir = tempDir;
+    }
+
+    public void add(final byte[] record) {
+        if (sorted) {
+            throw new IllegalStateException("Sorted records have been already read");
+        }
+        records.add(record);
+        size++;
+        usedMemory += record.length + RECORD_OVERHEAD;
+        if (usedMemory >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * @return number of added records
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return number of runs spilled to disk
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Returns all the added records in sorted order. Records equal to each other are returned in the order
+     * they were added only if they are in the same run, so the records which must keep their order should
+     * differ (e.g. by a sequence number). Can be called only once.
+     */
+    public Iterator<byte[]> sorted() {
+        if (sorted) {
+            throw new IllegalStateException("Sorted records have been already read");
+        }
+        sorted = true;
+        final byte[][] inMemory = records.toArray(new byte[0][]);
+        records = null;
+        Arrays.sort(inMemory, UNSIGNED_ORDER);
+        if (runs.isEmpty()) {
+            return Arrays.asList(inMemory).iterator();
+        }
+        final PriorityQueue<RunCursor> queue = new PriorityQueue<>(runs.size() + 1,
+                (a, b) -> compareUnsigned(a.current, b.current));
+        addIfNotEmpty(queue, new RunCursor(Arrays.asList(inMemory).iterator()));
+        for (final Path run : runs) {
+            final RunCursor cursor = new RunCursor(new RunIterator(run));
+            addIfNotEmpty(queue, cursor);
+        }
+        return new Iterator<byte[]>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public byte[] next() {
+                final RunCursor cursor = queue.poll();
+                if (cursor == null) {
+                    throw new NoSuchElementException();
+                }
+                final byte[] next = cursor.current;
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+                return next;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        for (final Closeable reader : readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // nothing to do, the file is going to be deleted
+            }
+        }
+        readers.clear();
+        for (final Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException e) {
+                run.toFile().deleteOnExit();
+            }
+        }
+        runs.clear();
+        records = null;
+    }
+
+    private void spill() {
+        final byte[][] toSpill = records.toArray(new byte[0][]);
+        Arrays.sort(toSpill, UNSIGNED_ORDER);
+        try {
+            final Path run = Files.createTempFile(tempDir, "ipranger_run_", ".tmp");
+            runs.add(run);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(run), IO_BUFFER_SIZE))) {
+                for (final byte[] record : toSpill) {
+                    out.writeInt(record.length);
+                    out.write(record);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot spill sorted run to " + tempDir, e);
+        }
+        records = new ArrayList<>();
+        usedMemory = 0;
+    }
+
+    private static void addIfNotEmpty(final PriorityQueue<RunCursor> queue, final RunCursor cursor) {
+        if (cursor.advance()) {
+            queue.add(cursor);
+        }
+    }
+
+    public static int compareUnsigned(final byte[] a, final byte[] b) {
+        final int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            final int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static final class RunCursor {
+        private final Iterator<byte[]> records;
+        private byte[] current;
+
+        private RunCursor(final Iterator<byte[]> records) {
+            this.records = records;
+        }
+
+        private boolean advance() {
+            if (records.hasNext()) {
+                current = records.next();
+                return true;
+            }
+            current = null;
+            return false;
+        }
+    }
+
+    private final class RunIterator implements Iterator<byte[]>, Closeable {
+        private final DataInputStream in;
+        private byte[] next;
+
+        private RunIterator(final Path run) {
+            try {
+                in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), IO_BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read sorted run " + run, e);
+            }
+            readers.add(this);
+            next = read();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final byte[] current = next;
+            next = read();
+            return current;
+        }
+
+        private byte[] read() {
+            try {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return null;
+                }
+                final byte[] record = new byte[length];
+                in.readFully(record);
+                return record;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read sorted run", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
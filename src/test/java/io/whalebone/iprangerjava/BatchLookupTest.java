@@ -0,0 +1,148 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.utils.Cidr;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Tomas Kozel
+ */
+public class BatchLookupTest {
+    private static final int RANGES = 3_000;
+    private static final int ADDRESSES = 20_000;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"false", "true"})
+    public void ip4EquivalenceTest(boolean identityDictionary) throws Exception {
+        Random random = new Random(17);
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(20_000_000)
+                .identityDictionary(identityDictionary)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_batch_lookup_"), conf)) {
+            List<RangeEntry> entries = new ArrayList<>();
+            List<Integer> starts = new ArrayList<>();
+            Cidr cidr = new Cidr();
+            for (int i = 0; i < RANGES; i++) {
+                // few top level networks to get a lot of nesting
+                int address = random.nextInt(4) << 30 | random.nextInt() >>> 2;
+                int prefix = random.nextInt(8) == 0 ? random.nextInt(33) : 8 + random.nextInt(4) * 8;
+                cidr.setIpv4(address, prefix);
+                entries.add(RangeEntry.of(cidr.toString(), "id" + random.nextInt(50)));
+                starts.add(address & (prefix == 0 ? 0 : -1 << (32 - prefix)));
+            }
+            ipRanger.insertIpRanges(entries);
+
+            int[] addresses = new int[ADDRESSES];
+            for (int i = 0; i < ADDRESSES; i++) {
+                // boundaries of the ranges, random addresses and repeated ones
+                int start = starts.get(random.nextInt(starts.size()));
+                addresses[i] = i % 4 == 0 ? start : i % 4 == 1 ? start - 1 : i % 4 == 2 ? random.nextInt()
+                        : addresses[random.nextInt(i)];
+            }
+            String[] identities = new String[ADDRESSES + 1];
+            ipRanger.lookupAll(addresses, identities);
+            ByteBuffer packed = ByteBuffer.allocate(ADDRESSES * 4);
+            for (int i = 0; i < ADDRESSES; i++) {
+                assertThat(identities[i], is(ipRanger.lookup(addresses[i])));
+                packed.putInt(addresses[i]);
+            }
+            packed.flip();
+            String[] packedIdentities = new String[ADDRESSES];
+            ipRanger.lookupAll(packed, 4, packedIdentities);
+            for (int i = 0; i < ADDRESSES; i++) {
+                assertThat(packedIdentities[i], is(identities[i]));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"false", "true"})
+    public void ip6EquivalenceTest(boolean identityDictionary) throws Exception {
+        Random random = new Random(19);
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(20_000_000)
+                .identityDictionary(identityDictionary)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_batch_lookup_"), conf)) {
+            List<RangeEntry> entries = new ArrayList<>();
+            List<long[]> starts = new ArrayList<>();
+            Cidr cidr = new Cidr();
+            for (int i = 0; i < RANGES; i++) {
+                long high = (long) random.nextInt(4) << 62 | random.nextLong() >>> 2;
+                long low = random.nextLong();
+                int prefix = random.nextInt(8) == 0 ? random.nextInt(129) : 16 + random.nextInt(9) * 8;
+                cidr.setIpv6(high, low, prefix);
+                entries.add(RangeEntry.of(cidr.toString(), "id" + random.nextInt(50)));
+                starts.add(new long[]{cidr.getStartHigh(), cidr.getStartLow()});
+            }
+            ipRanger.insertIpRanges(entries);
+
+            long[][] addresses = new long[ADDRESSES][];
+            for (int i = 0; i < ADDRESSES; i++) {
+                long[] start = starts.get(random.nextInt(starts.size()));
+                addresses[i] = i % 4 == 0 ? start : i % 4 == 1 ? new long[]{start[0], start[1] - 1}
+                        : i % 4 == 2 ? new long[]{random.nextLong(), random.nextLong()}
+                        : addresses[random.nextInt(i)];
+            }
+            String[] identities = new String[ADDRESSES];
+            ipRanger.lookupAll(addresses, identities);
+            ByteBuffer packed = ByteBuffer.allocateDirect(ADDRESSES * 16 + 3);
+            // the packed addresses don't have to start at the beginning of the buffer
+            packed.position(3);
+            for (int i = 0; i < ADDRESSES; i++) {
+                assertThat(identities[i], is(ipRanger.lookup(addresses[i][0], addresses[i][1])));
+                packed.putLong(addresses[i][0]).putLong(addresses[i][1]);
+            }
+            packed.position(3);
+            String[] packedIdentities = new String[ADDRESSES];
+            ipRanger.lookupAll(packed, 16, packedIdentities);
+            for (int i = 0; i < ADDRESSES; i++) {
+                assertThat(packedIdentities[i], is(identities[i]));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1})
+    public void invalidArgumentsTest(int size) throws Exception {
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_batch_lookup_"),
+                TestConfiguration.builder().build())) {
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            String[] identities = new String[size];
+            ipRanger.lookupAll(new int[size], identities);
+            assertThrows(IllegalArgumentException.class, () -> ipRanger.lookupAll(new int[size + 1], identities));
+            assertThrows(IllegalArgumentException.class,
+                    () -> ipRanger.lookupAll(ByteBuffer.allocate(5), 4, identities));
+            assertThrows(IllegalArgumentException.class,
+                    () -> ipRanger.lookupAll(ByteBuffer.allocate(8), 8, identities));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.DbDump;
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.tools.TestDataLoader;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Tomas Kozel
+ */
+public class BulkLoaderTest {
+
+    @Test
+    public void sameDataAsInsertTest() throws Exception {
+        List<RangeEntry> entries = new ArrayList<>(TestDataLoader.entries("ipv4.csv", ","));
+        entries.addAll(TestDataLoader.entries("ipv6.csv", ","));
+        Configuration conf = TestConfiguration.builder().build();
+
+        try (IpRanger inserted = IpRanger.create(Files.createTempDirectory("ipranger_insert_"), conf);
+             IpRanger loaded = IpRanger.create(Files.createTempDirectory("ipranger_bulk_"), conf)) {
+            inserted.insertIpRanges(entries);
+            try (BulkLoader loader = loaded.newBulkLoader()) {
+                entries.forEach(loader::add);
+                InsertReport report = loader.load();
+                assertThat(report.getInserted(), is((long) entries.size()));
+            }
+            for (boolean ipv6 : new boolean[]{false, true}) {
+                assertThat(DbDump.records(loaded.getEnv(), loaded.getRangesToIdentity(ipv6)), is(DbDump.records(inserted.getEnv(), inserted.getRangesToIdentity(ipv6))));
+                assertThat(DbDump.records(loaded.getEnv(), loaded.getIdentitiesToRanges(ipv6)), is(DbDump.records(inserted.getEnv(), inserted.getIdentitiesToRanges(ipv6))));
+                assertThat(DbDump.records(loaded.getEnv(), loaded.getMasks(ipv6)), is(DbDump.records(inserted.getEnv(), inserted.getMasks(ipv6))));
+            }
+        }
+    }
+
+    @Test
+    public void spilledRunsTest() throws Exception {
+        Random random = new Random(42);
+        List<RangeEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            String identity = "id" + random.nextInt(50);
+            if (random.nextBoolean()) {
+                int address = random.nextInt(1 << 12) << 20;
+                entries.add(RangeEntry.of(toIp4String(address) + "/" + (12 + random.nextInt(21)), identity));
+            } else {
+                entries.add(RangeEntry.of(Integer.toHexString(random.nextInt(1 << 12)) + "::/" + (16 + random.nextInt(113)), identity));
+            }
+        }
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(10_000_000)
+                .bulkLoadMemoryBudget(4096)
+                .batchCommitSize(500)
+                .build();
+
+        try (IpRanger inserted = IpRanger.create(Files.createTempDirectory("ipranger_insert_"), conf);
+             IpRanger loaded = IpRanger.create(Files.createTempDirectory("ipranger_bulk_"), conf)) {
+            inserted.insertIpRanges(entries);
+            loaded.insertIpRange("192.168.0.0/16", "removed by the load");
+            InsertReport report;
+            try (BulkLoader loader = loaded.newBulkLoader()) {
+                entries.forEach(loader::add);
+                report = loader.load();
+            }
+            assertThat(report.getInserted() + report.getSkipped(), is((long) entries.size()));
+            assertThat(loaded.lookup(new byte[]{(byte) 192, (byte) 168, 0, 1}), is(nullValue()));
+            for (boolean ipv6 : new boolean[]{false, true}) {
+                assertThat(DbDump.records(loaded.getEnv(), loaded.getRangesToIdentity(ipv6)), is(DbDump.records(inserted.getEnv(), inserted.getRangesToIdentity(ipv6))));
+                assertThat(DbDump.records(loaded.getEnv(), loaded.getIdentitiesToRanges(ipv6)), is(DbDump.records(inserted.getEnv(), inserted.getIdentitiesToRanges(ipv6))));
+                assertThat(DbDump.records(loaded.getEnv(), loaded.getMasks(ipv6)), is(DbDump.records(inserted.getEnv(), inserted.getMasks(ipv6))));
+            }
+        }
+    }
+
+    @Test
+    public void sameEndAddressTest() throws Exception {
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_bulk_"), TestConfiguration.builder().build());
+             BulkLoader loader = ipRanger.newBulkLoader()) {
+            loader.add("10.0.0.0/8", "id");
+            loader.add("10.255.255.0/24", "id");
+            InsertReport report = loader.load();
+            assertThat(report.getInserted(), is(1L));
+            assertThat(report.getSkipped(), is(1L));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 2, 3}), is("id"));
+            assertThat(ipRanger.lookup(new byte[]{10, (byte) 255, (byte) 255, 1}), is("id"));
+        }
+    }
+
+    @Test
+    public void committedRangesResolveTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().batchCommitSize(100).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_bulk_"), conf)) {
+            try (BulkLoader loader = ipRanger.newBulkLoader()) {
+                loader.add("10.0.0.0/8", "ip4");
+                // more IPv6 ranges than the map can take
+                for (int i = 0; i < 50_000; i++) {
+                    loader.add("2001:db8::" + Integer.toHexString(i) + "/128", "ip6");
+                }
+                assertThrows(RuntimeException.class, loader::load);
+            }
+            // the ranges committed before the failure resolve
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 2, 3}), is("ip4"));
+            assertThat(ipRanger.lookup(0x20010DB8_00000000L, 0), is("ip6"));
+        }
+    }
+
+    @Test
+    public void invalidRangeTest() throws Exception {
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_bulk_"), TestConfiguration.builder().build());
+             BulkLoader loader = ipRanger.newBulkLoader()) {
+            assertThrows(IllegalArgumentException.class, () -> loader.add("10.0.0.0/33", "id"));
+            assertThat(loader.add("", "id"), is(false));
+            assertThat(loader.add("10.0.0.0/8", "id"), is(true));
+            InsertReport report = loader.load();
+            assertThat(report.getInserted(), is(1L));
+            assertThat(report.getSkipped(), is(1L));
+            assertThat(report.getFailed(), is(1L));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 2, 3}), is("id"));
+            assertThrows(IllegalStateException.class, () -> loader.add("10.0.0.0/8", "id"));
+        }
+    }
+
+    private static String toIp4String(int address) {
+        return (address >>> 24) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Tomas Kozel
+ */
+public class EnvProfileTest {
+
+    @Test
+    public void bulkLoadProfileTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_profile_");
+        Configuration bulkLoad = TestConfiguration.builder()
+                .envProfile(EnvProfile.BULK_LOAD)
+                .envSizeGrowthFactor(2)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(dir, bulkLoad)) {
+            try (BulkLoader loader = ipRanger.newBulkLoader()) {
+                loader.add("10.0.0.0/8", "a");
+                loader.add("2001:db8::/32", "b");
+                loader.load();
+            }
+            ipRanger.insertIpRanges(Arrays.asList(RangeEntry.of("10.1.0.0/16", "c")));
+            ipRanger.sync(Arrays.asList(RangeEntry.of("10.1.0.0/16", "d"), RangeEntry.of("10.0.0.0/8", "a")));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 0, 1}), is("d"));
+        }
+
+        // the same data opened with the durable profile
+        try (IpRanger ipRanger = IpRanger.create(dir, TestConfiguration.builder().build())) {
+            assertThat(ipRanger.lookup(new byte[]{10, 0, 0, 1}), is("a"));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 0, 1}), is("d"));
+            ipRanger.insertIpRange("10.2.0.0/16", "e");
+            assertThat(ipRanger.lookup(new byte[]{10, 2, 0, 1}), is("e"));
+        }
+    }
+}
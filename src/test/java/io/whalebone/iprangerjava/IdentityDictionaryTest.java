@@ -0,0 +1,197 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.tools.TestDataLoader;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Tomas Kozel
+ */
+public class IdentityDictionaryTest {
+    private static final Configuration DICTIONARY = TestConfiguration.builder()
+            .maxEnvSize(100_000_000)
+            .identityDictionary(true)
+            .build();
+    private static final Configuration C_STRINGS = TestConfiguration.builder()
+            .maxEnvSize(100_000_000)
+            .build();
+
+    @Test
+    public void sameLookupsTest() throws Exception {
+        List<RangeEntry> entries = new ArrayList<>(TestDataLoader.entries("ipv4.csv", ","));
+        entries.addAll(TestDataLoader.entries("ipv6.csv", ","));
+        try (IpRanger inserted = IpRanger.create(Files.createTempDirectory("ipranger_dictionary_"), DICTIONARY);
+             IpRanger loaded = IpRanger.create(Files.createTempDirectory("ipranger_dictionary_"), DICTIONARY);
+             IpRanger expected = IpRanger.create(Files.createTempDirectory("ipranger_dictionary_"), C_STRINGS)) {
+            inserted.insertIpRanges(entries);
+            expected.insertIpRanges(entries);
+            try (BulkLoader loader = loaded.newBulkLoader()) {
+                entries.forEach(loader::add);
+                loader.load();
+            }
+            for (RangeEntry entry : entries) {
+                InetAddress address = InetAddress.getByName(entry.getIpRange().substring(0, entry.getIpRange().indexOf('/')));
+                assertThat(inserted.lookup(address), is(expected.lookup(address)));
+                assertThat(loaded.lookup(address), is(expected.lookup(address)));
+            }
+            assertThat(inserted.refreshIp4LookupIndex().lookup(0x0A010203), is(expected.lookup(0x0A010203)));
+            assertThat(loaded.refreshIp6LookupTrie().size(), is(expected.refreshIp6LookupTrie().size()));
+        }
+    }
+
+    @Test
+    public void changedIdentityTest() throws Exception {
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_dictionary_"), DICTIONARY)) {
+            ipRanger.insertIpRange("10.0.0.0/8", "old");
+            ipRanger.insertIpRange("10.1.0.0/16", "old");
+            ipRanger.insertIpRange("10.0.0.0/8", "new");
+            assertThat(ipRanger.lookup(new byte[]{10, 2, 0, 1}), is("new"));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 0, 1}), is("old"));
+
+            SyncReport report = ipRanger.sync(Arrays.asList(
+                    RangeEntry.of("10.1.0.0/16", "newer"),
+                    RangeEntry.of("10.0.0.0/8", "new")));
+            assertThat(report.getUpdated(), is(1L));
+            assertThat(report.getUnchanged(), is(1L));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 0, 1}), is("newer"));
+            assertThat(ipRanger.lookup(new byte[]{11, 1, 0, 1}), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void failedBulkLoadTest() throws Exception {
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_dictionary_"),
+                TestConfiguration.builder().identityDictionary(true).build())) {
+            for (int i = 0; i < 20; i++) {
+                ipRanger.insertIpRange("10." + i + ".0.0/16", "ip4-" + i);
+                ipRanger.insertIpRange("2001:db8:" + Integer.toHexString(i) + "::/48", "ip6-" + i);
+            }
+            try (BulkLoader loader = ipRanger.newBulkLoader()) {
+                // new identities first, then the stored ones in another order
+                for (int i = 0; i < 20; i++) {
+                    loader.add("10." + i + ".0.0/16", "new-" + i);
+                }
+                for (int i = 19; i >= 0; i--) {
+                    loader.add("192.168." + i + ".0/24", "ip6-" + i);
+                }
+                // more IPv6 ranges than the map can take
+                for (int i = 0; i < 50_000; i++) {
+                    loader.add("2001:db8:ffff::" + Integer.toHexString(i) + "/128", "ip4-" + i % 20);
+                }
+                assertThrows(RuntimeException.class, loader::load);
+            }
+            // IPv4 ranges are replaced, the IPv6 ones are not, both resolve to their identities
+            for (int i = 0; i < 20; i++) {
+                assertThat(ipRanger.lookup(new byte[]{10, (byte) i, 0, 1}), is("new-" + i));
+                assertThat(ipRanger.lookup(new byte[]{(byte) 192, (byte) 168, (byte) i, 1}), is("ip6-" + i));
+                assertThat(ipRanger.lookup(0x20010DB8_00000000L | (long) i << 16, 1), is("ip6-" + i));
+            }
+        }
+    }
+
+    @Test
+    public void concurrentRangesOfTest() throws Exception {
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_dictionary_"), DICTIONARY)) {
+            for (int i = 0; i < 50; i++) {
+                ipRanger.insertIpRange("10." + i + ".0.0/16", "identity-" + i);
+            }
+            AtomicBoolean stopped = new AtomicBoolean();
+            List<Future<Long>> readers = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                for (int thread = 0; thread < 4; thread++) {
+                    int seed = thread;
+                    readers.add(executor.submit(() -> {
+                        Random random = new Random(seed);
+                        long wrong = 0;
+                        while (!stopped.get()) {
+                            int i = random.nextInt(50);
+                            try (Stream<StoredRange> ranges = ipRanger.rangesOf("identity-" + i)) {
+                                wrong += ranges.filter(range -> !range.getIpRange().startsWith("10." + i + ".")).count();
+                            }
+                        }
+                        return wrong;
+                    }));
+                }
+                // the writer registers new identities meanwhile
+                for (int i = 0; i < 2000; i++) {
+                    ipRanger.insertIpRange("11." + (i >> 8) + "." + (i & 0xFF) + ".1/32", "new-identity-" + i);
+                }
+                stopped.set(true);
+                for (Future<Long> reader : readers) {
+                    assertThat(reader.get(), is(0L));
+                }
+            } finally {
+                stopped.set(true);
+                executor.shutdown();
+            }
+            for (int i = 0; i < 2000; i++) {
+                String identity = "new-identity-" + i;
+                assertThat(ipRanger.lookup(new byte[]{11, (byte) (i >> 8), (byte) i, 1}), is(identity));
+                try (Stream<StoredRange> ranges = ipRanger.rangesOf(identity)) {
+                    assertThat(ranges.map(StoredRange::getIpRange).collect(Collectors.toList()),
+                            is(Collections.singletonList("11." + (i >> 8) + "." + (i & 0xFF) + ".1/32")));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void smallerDatabaseTest() throws Exception {
+        List<RangeEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            entries.add(RangeEntry.of("10." + (i >> 8 & 0xFF) + "." + (i & 0xFF) + ".0/24",
+                    "identity-of-a-customer-" + i % 100));
+        }
+        entries.sort(Comparator.comparing(RangeEntry::getIpRange));
+        try (IpRanger dictionary = IpRanger.create(Files.createTempDirectory("ipranger_dictionary_"), DICTIONARY);
+             IpRanger cStrings = IpRanger.create(Files.createTempDirectory("ipranger_dictionary_"), C_STRINGS)) {
+            for (IpRanger ipRanger : new IpRanger[]{dictionary, cStrings}) {
+                try (BulkLoader loader = ipRanger.newBulkLoader()) {
+                    entries.forEach(loader::add);
+                    loader.load();
+                }
+            }
+            long dictionaryPages = dictionary.getEnv().info().lastPageNumber;
+            long cStringPages = cStrings.getEnv().info().lastPageNumber;
+            assertThat(dictionaryPages * 2, is(lessThan(cStringPages)));
+            assertThat(dictionary.lookup(new byte[]{10, 78, 31, 1}), is(cStrings.lookup(new byte[]{10, 78, 31, 1})));
+        }
+    }
+}
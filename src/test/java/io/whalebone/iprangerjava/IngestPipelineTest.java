@@ -0,0 +1,115 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.tools.TestDataLoader;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Tomas Kozel
+ */
+public class IngestPipelineTest {
+    // expecting iprange in third column and identity in second column
+    private static final Function<String, RangeEntry> CSV = IngestPipeline.delimitedLineParser(",", 2, 1);
+
+    @Test
+    public void ingestFileTest() throws Exception {
+        Path file = Paths.get(IpRangerTest.class.getClassLoader().getResource("ipv6.csv").toURI());
+        List<RangeEntry> entries = TestDataLoader.entries("ipv6.csv", ",");
+        List<IngestError> errors = new ArrayList<>();
+        Configuration conf = TestConfiguration.builder().ingestParallelism(3).ingestChunkSize(2).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_ingest_"), conf)) {
+            InsertReport report = ipRanger.ingest(file, CSV, errors::add);
+            assertThat(report.getInserted(), is((long) entries.size()));
+            // the header
+            assertThat(report.getFailed(), is(1L));
+            assertThat(errors.size(), is(1));
+            assertThat(errors.get(0).getLineNumber(), is(1L));
+            for (RangeEntry entry : entries) {
+                String address = entry.getIpRange().substring(0, entry.getIpRange().indexOf('/'));
+                assertThat(ipRanger.lookup(InetAddress.getByName(address)), is(entry.getIdentity()));
+            }
+        }
+    }
+
+    @Test
+    public void perLineErrorsTest() throws Exception {
+        List<String> lines = IntStream.range(0, 5000)
+                .mapToObj(i -> i % 1000 == 7
+                        ? "x, broken, 10.0.0.0/99"
+                        : "x, id" + i % 10 + ", 10." + (i >> 8) + "." + (i & 0xFF) + ".0/24")
+                .collect(Collectors.toList());
+        lines.add(100, "");
+        lines.add(200, "# comment");
+        List<IngestError> errors = Collections.synchronizedList(new ArrayList<>());
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(10_000_000)
+                .batchCommitSize(1000)
+                .ingestParallelism(4)
+                .ingestChunkSize(64)
+                .ingestQueueCapacity(1)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_ingest_"), conf)) {
+            byte[] input = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+            InsertReport report = ipRanger.ingest(new ByteArrayInputStream(input), CSV, errors::add);
+            assertThat(report.getInserted(), is(4995L));
+            assertThat(report.getSkipped(), is(2L));
+            assertThat(report.getFailed(), is(5L));
+            List<Long> lineNumbers = errors.stream().map(IngestError::getLineNumber).collect(Collectors.toList());
+            // numbers shifted by the inserted empty line and comment
+            assertThat(lineNumbers, is(Arrays.asList(8L, 1010L, 2010L, 3010L, 4010L)));
+            assertThat(ipRanger.lookup(new byte[]{10, 19, (byte) 135, 1}), is("id9"));
+            assertThat(ipRanger.lookup(new byte[]{10, 0, 7, 1}), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void failedReadTest() throws Exception {
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_ingest_"),
+                TestConfiguration.builder().ingestChunkSize(1).build())) {
+            Stream<String> lines = Stream.of("x, id, 10.0.0.0/8", "fail").map(line -> {
+                if (line.equals("fail")) {
+                    throw new IllegalStateException("read failure");
+                }
+                return line;
+            });
+            assertThrows(IllegalStateException.class, () -> ipRanger.ingest(lines, CSV, error -> { }));
+            // nothing has been committed
+            assertThat(ipRanger.lookup(new byte[]{10, 0, 0, 1}), is(nullValue()));
+        }
+    }
+}
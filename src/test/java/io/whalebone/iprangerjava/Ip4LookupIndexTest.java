@@ -0,0 +1,94 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.tools.TestDataLoader;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Tomas Kozel
+ */
+public class Ip4LookupIndexTest {
+
+    @Test
+    public void testDataTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_index_");
+        try (IpRanger ipRanger = IpRanger.create(dir, TestConfiguration.builder().build())) {
+            TestDataLoader.load("ipv4.csv", ",", ipRanger);
+            Ip4LookupIndex index = ipRanger.refreshIp4LookupIndex();
+            assertThat(index.lookup(0x0A141E28), is("id"));
+            assertThat(index.lookup(0x01010101), is("id2"));
+            assertThat(index.lookup(0xC0A80201), is("id1"));
+            assertThat(index.lookup(0xC0A80202), is(nullValue()));
+            assertThat(index.lookup(0xFFFFFFFF), is(nullValue()));
+            assertThat(ipRanger.getIp4LookupIndex(), is(sameInstance(index)));
+
+            ipRanger.insertIpRange("192.168.2.0/24", "id3");
+            assertThat(index.lookup(0xC0A80202), is(nullValue()));
+            Ip4LookupIndex refreshed = ipRanger.refreshIp4LookupIndex();
+            assertThat(refreshed, is(not(sameInstance(index))));
+            assertThat(refreshed.lookup(0xC0A80202), is("id3"));
+            assertThat(refreshed.lookup(0xC0A80201), is("id1"));
+        }
+    }
+
+    @Test
+    public void randomEquivalenceTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_index_");
+        Random random = new Random(7);
+        try (IpRanger ipRanger = IpRanger.create(dir, TestConfiguration.builder().maxEnvSize(20_000_000).build())) {
+            List<RangeEntry> entries = new ArrayList<>();
+            List<Integer> starts = new ArrayList<>();
+            for (int i = 0; i < 3_000; i++) {
+                // few top level networks to get a lot of nesting
+                int address = (random.nextInt(4) << 30) | (random.nextInt() >>> 2);
+                int prefix = random.nextInt(33);
+                entries.add(RangeEntry.of(toIpString(address) + "/" + prefix, "id" + random.nextInt(50)));
+                starts.add(prefix == 0 ? 0 : address & (-1 << (32 - prefix)));
+            }
+            ipRanger.insertIpRanges(entries);
+            Ip4LookupIndex index = ipRanger.refreshIp4LookupIndex();
+
+            for (int start : starts) {
+                for (int address : new int[]{start - 1, start, start + 1}) {
+                    assertThat(toIpString(address), index.lookup(address), is(ipRanger.lookup(address)));
+                }
+            }
+            for (int i = 0; i < 20_000; i++) {
+                int address = random.nextInt();
+                assertThat(toIpString(address), index.lookup(address), is(ipRanger.lookup(address)));
+            }
+        }
+    }
+
+    private static String toIpString(int address) {
+        return (address >>> 24) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+}
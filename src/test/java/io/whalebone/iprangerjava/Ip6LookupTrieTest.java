@@ -0,0 +1,91 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.tools.TestDataLoader;
+import io.whalebone.iprangerjava.utils.Cidr;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * @author Tomas Kozel
+ */
+public class Ip6LookupTrieTest {
+
+    @Test
+    public void testDataTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_trie_");
+        try (IpRanger ipRanger = IpRanger.create(dir, TestConfiguration.builder().build())) {
+            TestDataLoader.load("ipv6.csv", ",", ipRanger);
+            Ip6LookupTrie trie = ipRanger.refreshIp6LookupTrie();
+            assertThat(trie.size(), is(18));
+            assertThat(trie.lookup(0x3eedec3e33dd74ffL, 1), is("XXX-0"));
+            assertThat(trie.lookup(0x3eedec3e33dd745cL, 0x0001000200030004L), is("XXX-1"));
+            assertThat(trie.lookup(0x80785a6c9a0243cbL, 0x5c51b5cb415113a5L), is("XXX-3"));
+            assertThat(trie.lookup(0x80785a6c9a0243cbL, 0x5c51b5cb415113a6L), is("XXX-2"));
+            assertThat(trie.lookup(0x3eedec3e33dd7500L, 0), is(nullValue()));
+            assertThat(trie.lookup(0, 0), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void randomEquivalenceTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_trie_");
+        Random random = new Random(11);
+        try (IpRanger ipRanger = IpRanger.create(dir, TestConfiguration.builder().maxEnvSize(20_000_000).build())) {
+            List<RangeEntry> entries = new ArrayList<>();
+            List<long[]> starts = new ArrayList<>();
+            Cidr cidr = new Cidr();
+            for (int i = 0; i < 3_000; i++) {
+                // few top level networks to get a lot of nesting
+                long high = (long) random.nextInt(4) << 62 | random.nextLong() >>> 2;
+                long low = random.nextLong();
+                int prefix = random.nextInt(8) == 0 ? random.nextInt(129) : 16 + random.nextInt(9) * 8;
+                cidr.setIpv6(high, low, prefix);
+                entries.add(RangeEntry.of(cidr.toString(), "id" + random.nextInt(50)));
+                starts.add(new long[]{cidr.getStartHigh(), cidr.getStartLow()});
+            }
+            ipRanger.insertIpRanges(entries);
+            Ip6LookupTrie trie = ipRanger.refreshIp6LookupTrie();
+            assertThat((long) trie.getNodeCount(), lessThanOrEqualTo(2L * trie.size()));
+
+            for (long[] start : starts) {
+                long high = start[0];
+                long low = start[1];
+                assertThat(trie.lookup(high, low), is(ipRanger.lookup(high, low)));
+                assertThat(trie.lookup(high, low - 1), is(ipRanger.lookup(high, low - 1)));
+                assertThat(trie.lookup(high, low + 1), is(ipRanger.lookup(high, low + 1)));
+            }
+            for (int i = 0; i < 20_000; i++) {
+                long high = random.nextLong();
+                long low = random.nextLong();
+                assertThat(trie.lookup(high, low), is(ipRanger.lookup(high, low)));
+            }
+        }
+    }
+}
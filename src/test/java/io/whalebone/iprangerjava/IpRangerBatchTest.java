@@ -0,0 +1,235 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.ByteBufferUtils;
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.tools.TestDataLoader;
+import org.junit.jupiter.api.Test;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Env;
+import org.lmdbjava.Txn;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.lmdbjava.DbiFlags.MDB_CREATE;
+import static org.lmdbjava.DbiFlags.MDB_DUPSORT;
+
+/**
+ * @author Tomas Kozel
+ */
+public class IpRangerBatchTest {
+
+    @Test
+    public void insertIpRangesReportTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_batch_");
+        Configuration conf = TestConfiguration.builder().batchCommitSize(3).build();
+        List<RangeEntry> entries = new ArrayList<>(TestDataLoader.entries("ipv4.csv", ","));
+        entries.addAll(TestDataLoader.entries("ipv6.csv", ","));
+        int valid = entries.size();
+        // the same range with the same identity once more
+        entries.add(entries.get(0));
+        entries.add(RangeEntry.of("not a range", "id"));
+        entries.add(RangeEntry.of("10.0.0.0/8", "identity which is too long to be stored"));
+        entries.add(null);
+
+        try (IpRanger ipRanger = IpRanger.create(dir, conf)) {
+            InsertReport report = ipRanger.insertIpRanges(entries.stream());
+            assertThat(report.getInserted(), is((long) valid));
+            assertThat(report.getSkipped(), is(2L));
+            assertThat(report.getFailed(), is(2L));
+        }
+
+        try (Env<ByteBuffer> env = openEnv(dir)) {
+            Dbi<ByteBuffer> ip4RangesToIdentity = env.openDbi(conf.getIp4RangesToIdentityDbName(), MDB_CREATE);
+            Dbi<ByteBuffer> ip6RangesToIdentity = env.openDbi(conf.getIp6RangesToIdentityDbName(), MDB_CREATE);
+            Txn<ByteBuffer> txn = env.txnRead();
+            assertThat(ip4RangesToIdentity.stat(txn).entries, is(4L));
+            assertThat(ip6RangesToIdentity.stat(txn).entries, is(18L));
+            txn.close();
+        }
+    }
+
+    @Test
+    public void changedIdentityTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_batch_");
+        Configuration conf = TestConfiguration.builder().build();
+        try (IpRanger ipRanger = IpRanger.create(dir, conf)) {
+            ipRanger.insertIpRange("192.168.1.0/24", "old");
+            InsertReport report = ipRanger.insertIpRanges(Arrays.asList(
+                    RangeEntry.of("192.168.1.0/24", "new"),
+                    RangeEntry.of("192.168.1.0/24", "new")));
+            assertThat(report.getInserted(), is(1L));
+            assertThat(report.getSkipped(), is(1L));
+        }
+
+        try (Env<ByteBuffer> env = openEnv(dir)) {
+            Dbi<ByteBuffer> ip4RangesToIdentity = env.openDbi(conf.getIp4RangesToIdentityDbName(), MDB_CREATE);
+            Dbi<ByteBuffer> identitiesToIp4Ranges = env.openDbi(conf.getIdentitiesToIp4RangesDbName(), MDB_CREATE, MDB_DUPSORT);
+            Txn<ByteBuffer> txn = env.txnRead();
+            ByteBuffer key = ByteBuffer.allocateDirect(4);
+            key.put(new byte[]{(byte) 192, (byte) 168, 1, (byte) 255}).flip();
+            assertThat(ByteBufferUtils.toStringFromCString(ip4RangesToIdentity.get(txn, key)), is("new"));
+            assertThat(identitiesToIp4Ranges.get(txn, cString("old")), is(nullValue()));
+            assertThat(ByteBufferUtils.toIpString(identitiesToIp4Ranges.get(txn, cString("new"))), is("192.168.1.255"));
+            txn.close();
+        }
+    }
+
+    @Test
+    public void sameEndAddressTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_batch_");
+        Configuration conf = TestConfiguration.builder().build();
+        try (IpRanger ipRanger = IpRanger.create(dir, conf)) {
+            ipRanger.insertIpRange("10.255.255.0/24", "a");
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            InsertReport report = ipRanger.insertIpRanges(Arrays.asList(
+                    RangeEntry.of("2001:db8:0:ffff::/64", "b"),
+                    RangeEntry.of("2001:db8::/48", "b")));
+            assertThat(report.getInserted(), is(1L));
+            assertThat(report.getSkipped(), is(1L));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 2, 3}), is("a"));
+            assertThat(ipRanger.lookup(new byte[]{10, (byte) 255, (byte) 255, 1}), is("a"));
+            assertThat(ipRanger.lookup(InetAddress.getByName("2001:db8::1")), is("b"));
+        }
+    }
+
+    @Test
+    public void deleteTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_batch_");
+        Configuration conf = TestConfiguration.builder().build();
+        try (IpRanger ipRanger = IpRanger.create(dir, conf)) {
+            ipRanger.insertIpRange("192.168.1.0/24", "a");
+            ipRanger.insertIpRange("192.168.2.0/24", "a");
+            try (IpRanger.Batch batch = ipRanger.newBatch()) {
+                assertThat(batch.delete("192.168.1.0/24"), is(true));
+                assertThat(batch.delete("192.168.3.0/24"), is(false));
+                assertThrows(IllegalArgumentException.class, () -> batch.delete("192.168.3.0/99"));
+                InsertReport report = batch.commit();
+                assertThat(report.getDeleted(), is(1L));
+                assertThat(report.getSkipped(), is(1L));
+                assertThat(report.getFailed(), is(1L));
+            }
+            assertThat(ipRanger.deleteIpRange("192.168.1.0/24"), is(false));
+            assertThat(ipRanger.lookup(new byte[]{(byte) 192, (byte) 168, 1, 1}), is(nullValue()));
+            assertThat(ipRanger.lookup(new byte[]{(byte) 192, (byte) 168, 2, 1}), is("a"));
+        }
+
+        try (Env<ByteBuffer> env = openEnv(dir)) {
+            Dbi<ByteBuffer> identitiesToIp4Ranges = env.openDbi(conf.getIdentitiesToIp4RangesDbName(), MDB_CREATE, MDB_DUPSORT);
+            Txn<ByteBuffer> txn = env.txnRead();
+            assertThat(identitiesToIp4Ranges.stat(txn).entries, is(1L));
+            assertThat(ByteBufferUtils.toIpString(identitiesToIp4Ranges.get(txn, cString("a"))), is("192.168.2.255"));
+            txn.close();
+        }
+    }
+
+    @Test
+    public void insertRangeTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_batch_");
+        Configuration conf = TestConfiguration.builder().build();
+        try (IpRanger ipRanger = IpRanger.create(dir, conf)) {
+            try (IpRanger.Batch batch = ipRanger.newBatch()) {
+                assertThat(batch.insertRange("10.0.0.1-10.0.0.6", "a"), is(4));
+                assertThat(batch.insertRange("2001:db8::-2001:db8::1:0", "b"), is(2));
+                assertThrows(IllegalArgumentException.class, () -> batch.insertRange("10.0.0.9-10.0.0.8", "c"));
+                InsertReport report = batch.commit();
+                assertThat(report.getInserted(), is(6L));
+                assertThat(report.getFailed(), is(1L));
+            }
+            // one block nesting the ones stored before, the ones already stored are skipped
+            assertThat(ipRanger.insertRange("10.0.0.0-10.0.0.7", "a"), is(1));
+            assertThat(ipRanger.insertRange("10.0.0.2-10.0.0.3", "a"), is(0));
+            assertThat(ipRanger.lookup(new byte[]{10, 0, 0, 0}), is("a"));
+            assertThat(ipRanger.lookup(new byte[]{10, 0, 0, 5}), is("a"));
+            assertThat(ipRanger.lookup(new byte[]{10, 0, 0, 8}), is(nullValue()));
+            assertThat(ipRanger.lookup(0x20010DB8_00000000L, 0x1_0000L), is("b"));
+            assertThat(ipRanger.lookup(0x20010DB8_00000000L, 0x1_0001L), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void closedBatchTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_batch_");
+        try (IpRanger ipRanger = IpRanger.create(dir, TestConfiguration.builder().build())) {
+            IpRanger.Batch batch = ipRanger.newBatch();
+            batch.insert("10.0.0.0/8", "id");
+            batch.commit();
+            assertThrows(IllegalStateException.class, () -> batch.insert("10.0.0.0/8", "id"));
+            batch.close();
+        }
+    }
+
+    @Test
+    public void noDirectMemoryGrowthTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_batch_");
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(1L << 30)
+                .batchCommitSize(100_000)
+                .build();
+        BufferPoolMXBean directPool = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct"))
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+        try (IpRanger ipRanger = IpRanger.create(dir, conf);
+             IpRanger.Batch batch = ipRanger.newBatch()) {
+            // warm up lmdbjava and the reused buffers
+            batch.insert("10.0.0.0/8", "warm up");
+            long directMemory = directPool.getMemoryUsed();
+            long directBuffers = directPool.getCount();
+            for (int i = 0; i < 1_000_000; i++) {
+                batch.insert(toIp4String(0x0B000000 + i) + "/32", "id" + i % 100);
+            }
+            // buffers allocated before might have been released meanwhile
+            assertThat(directPool.getMemoryUsed(), is(lessThanOrEqualTo(directMemory)));
+            assertThat(directPool.getCount(), is(lessThanOrEqualTo(directBuffers)));
+            assertThat(batch.commit().getInserted(), is(1_000_001L));
+        }
+    }
+
+    private static String toIp4String(int address) {
+        return (address >>> 24) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+
+    private static Env<ByteBuffer> openEnv(Path dir) {
+        return Env.create()
+                .setMapSize(1_000_000)
+                .setMaxDbs(6)
+                .open(dir.toFile());
+    }
+
+    private static ByteBuffer cString(String string) {
+        byte[] bytes = (string + '\0').getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.tools.TestDataLoader;
+import io.whalebone.iprangerjava.utils.CIDRUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvFileSource;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Tomas Kozel
+ */
+public class IpRangerLookupTest {
+    private static IpRanger ipRanger;
+
+    @BeforeAll
+    public static void setUp() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_lookup_");
+        ipRanger = IpRanger.create(dir, TestConfiguration.builder().build());
+        TestDataLoader.load("ipv4.csv", ",", ipRanger);
+        TestDataLoader.load("ipv6.csv", ",", ipRanger);
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        ipRanger.close();
+    }
+
+    @ParameterizedTest
+    @CsvFileSource(resources = {"/ipv4.csv", "/ipv6.csv"}, numLinesToSkip = 1)
+    public void lookupTest(String irrelevant, String identity, String range) throws Exception {
+        CIDRUtils cidr = new CIDRUtils(range.trim());
+        assertThat(ipRanger.lookup(cidr.getStartAddress()), is(identity.trim()));
+        assertThat(ipRanger.lookup(cidr.getEndAddress().getAddress()), is(identity.trim()));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "10.20.30.40, id",
+            "1.1.1.1, id2",
+            "127.255.255.255, id2",
+            "192.168.1.77, id",
+            "192.168.2.1, id1",
+            "192.168.2.2, ",
+            "128.0.0.0, ",
+            "3eed:ec3e:33dd:74ff::1, XXX-0",
+            "3eed:ec3e:33dd:745c:1:2:3:4, XXX-1",
+            "8078:5a6c:9a02:43cb:5c51:b5cb:4151:13a5, XXX-3",
+            "8078:5a6c:9a02:43cb:5c51:b5cb:4151:13a6, XXX-2",
+            "3eed:ec3e:33dd:7500::, ",
+            "::, "
+    })
+    public void lookupAddressTest(String address, String expectedIdentity) throws Exception {
+        assertThat(ipRanger.lookup(InetAddress.getByName(address)), is(expectedIdentity));
+    }
+
+    @Test
+    public void lookupIntTest() {
+        assertThat(ipRanger.lookup(0x0A141E28), is("id"));
+        assertThat(ipRanger.lookup(0xC0A80201), is("id1"));
+        assertThat(ipRanger.lookup(0xC0A80202), is(nullValue()));
+    }
+
+    @Test
+    public void lookupSharedEndAddressTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_lookup_");
+        try (IpRanger ranger = IpRanger.create(dir, TestConfiguration.builder().build())) {
+            ranger.insertIpRange("10.0.0.0/8", "a");
+            ranger.insertIpRange("10.255.255.0/24", "b");
+            // both ranges end with 10.255.255.255 so the latter wins for the whole /8 as it does in the C resolver
+            assertThat(ranger.lookup(InetAddress.getByName("10.1.1.1")), is("b"));
+            assertThat(ranger.lookup(InetAddress.getByName("10.255.255.1")), is("b"));
+        }
+    }
+}
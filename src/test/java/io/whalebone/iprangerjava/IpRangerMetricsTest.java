@@ -0,0 +1,123 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * @author Tomas Kozel
+ */
+public class IpRangerMetricsTest {
+
+    @Test
+    public void metricsTest() throws Exception {
+        RecordingMetrics metrics = new RecordingMetrics();
+        Configuration conf = TestConfiguration.builder().batchCommitSize(2).metrics(metrics).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_metrics_"), conf)) {
+            ipRanger.insertIpRanges(Arrays.asList(
+                    RangeEntry.of("10.0.0.0/8", "a"),
+                    RangeEntry.of("10.0.0.0/8", "a"),
+                    RangeEntry.of("10.1.0.0/16", "b"),
+                    RangeEntry.of("10.2.0.0/16", "c"),
+                    RangeEntry.of("10.3.0.0/99", "d"),
+                    null));
+            assertThat(metrics.written.get(), is(3L));
+            assertThat(metrics.skipped.get(), is(2L));
+            assertThat(metrics.rejected.get(), is(1L));
+            // after two ranges and at the end
+            assertThat(metrics.commits.get(), is(2L));
+            assertThat(metrics.committedRanges.get(), is(3L));
+            assertThat(metrics.writeNanos.get(), is(greaterThan(0L)));
+
+            ipRanger.lookup(new byte[]{10, 1, 0, 1});
+            ipRanger.lookup(new byte[]{11, 1, 0, 1});
+            assertThat(metrics.lookups.get(), is(2L));
+            assertThat(metrics.found.get(), is(1L));
+        }
+    }
+
+    @Test
+    public void statsTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_metrics_"), conf)) {
+            long lastTransactionId = ipRanger.stats().getLastTransactionId();
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            ipRanger.insertIpRange("10.1.0.0/16", "a");
+            ipRanger.insertIpRange("2001:db8::/32", "b");
+            IpRangerStats stats = ipRanger.stats();
+            assertThat(stats.getMapSize(), is(conf.getMaxEnvSize()));
+            assertThat(stats.getLastTransactionId(), is(lastTransactionId + 3));
+            assertThat(stats.getUsedBytes(), is(stats.getUsedPages() * stats.getPageSize()));
+            assertThat(stats.getMapUsage(), is(lessThan(1.0)));
+            assertThat(stats.getDbStats().get(conf.getIp4RangesToIdentityDbName()).getEntries(), is(2L));
+            assertThat(stats.getDbStats().get(conf.getIp4RangesToIdentityDbName()).getDepth(), is(1));
+            assertThat(stats.getDbStats().get(conf.getIdentitiesToIp4RangesDbName()).getEntries(), is(2L));
+            assertThat(stats.getDbStats().get(conf.getIp6MasksDbName()).getEntries(), is(1L));
+            assertThat(stats.getDbStats().size(), is(6));
+        }
+    }
+
+    private static class RecordingMetrics implements IpRangerMetrics {
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong writeNanos = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong commits = new AtomicLong();
+        private final AtomicLong committedRanges = new AtomicLong();
+        private final AtomicLong lookups = new AtomicLong();
+        private final AtomicLong found = new AtomicLong();
+
+        @Override
+        public void rangeWritten(long nanos) {
+            written.incrementAndGet();
+            writeNanos.addAndGet(nanos);
+        }
+
+        @Override
+        public void rangeSkipped() {
+            skipped.incrementAndGet();
+        }
+
+        @Override
+        public void rangeRejected() {
+            rejected.incrementAndGet();
+        }
+
+        @Override
+        public void committed(long nanos, int ranges) {
+            commits.incrementAndGet();
+            committedRanges.addAndGet(ranges);
+        }
+
+        @Override
+        public void lookedUp(long nanos, boolean found) {
+            lookups.incrementAndGet();
+            if (found) {
+                this.found.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.DbDump;
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.utils.Cidr;
+import io.whalebone.iprangerjava.utils.CidrParser;
+import io.whalebone.iprangerjava.utils.ExternalSorter;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Tomas Kozel
+ */
+public class IpRangerSyncTest {
+    private static final Configuration CONF = TestConfiguration.builder().maxEnvSize(10_000_000).build();
+
+    @Test
+    public void syncTest() throws Exception {
+        Random random = new Random(7);
+        List<RangeEntry> current = randomEntries(random, 2000);
+        List<RangeEntry> next = new ArrayList<>();
+        int deleted = 0;
+        int updated = 0;
+        for (RangeEntry entry : current) {
+            int change = random.nextInt(100);
+            if (change < 3) {
+                deleted++;
+            } else if (change < 6) {
+                updated++;
+                next.add(RangeEntry.of(entry.getIpRange(), entry.getIdentity() + "-changed"));
+            } else {
+                next.add(entry);
+            }
+        }
+        List<RangeEntry> added = randomEntries(new Random(8), 50);
+        added.removeIf(entry -> current.stream().anyMatch(c -> sameEnd(c, entry)));
+        next.addAll(added);
+
+        try (IpRanger synced = IpRanger.create(Files.createTempDirectory("ipranger_sync_"), CONF);
+             IpRanger expected = IpRanger.create(Files.createTempDirectory("ipranger_sync_"), CONF)) {
+            synced.insertIpRanges(current);
+            expected.insertIpRanges(next);
+            SyncReport report = synced.sync(sorted(next));
+            assertThat(report.getInserted(), is((long) added.size()));
+            assertThat(report.getUpdated(), is((long) updated));
+            assertThat(report.getDeleted(), is((long) deleted));
+            assertThat(report.getUnchanged(), is((long) (current.size() - deleted - updated)));
+            for (boolean ipv6 : new boolean[]{false, true}) {
+                assertThat(DbDump.records(synced.getEnv(), synced.getRangesToIdentity(ipv6)), is(DbDump.records(expected.getEnv(), expected.getRangesToIdentity(ipv6))));
+                assertThat(DbDump.records(synced.getEnv(), synced.getIdentitiesToRanges(ipv6)), is(DbDump.records(expected.getEnv(), expected.getIdentitiesToRanges(ipv6))));
+                assertThat(DbDump.records(synced.getEnv(), synced.getMasks(ipv6)), is(DbDump.records(expected.getEnv(), expected.getMasks(ipv6))));
+            }
+
+            // nothing to change the second time
+            report = synced.sync(sorted(next));
+            assertThat(report.getUnchanged(), is((long) next.size()));
+            assertThat(report.getInserted() + report.getUpdated() + report.getDeleted(), is(0L));
+        }
+    }
+
+    @Test
+    public void removedMasksTest() throws Exception {
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_sync_"), CONF)) {
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            ipRanger.insertIpRange("10.1.0.0/16", "b");
+            ipRanger.insertIpRange("2001:db8::/32", "c");
+            SyncReport report = ipRanger.sync(Arrays.asList(
+                    RangeEntry.of("10.1.0.0/16", "b"),
+                    RangeEntry.of("10.1.0.0/16", "b2"),
+                    null));
+            assertThat(report.getUpdated(), is(1L));
+            assertThat(report.getDeleted(), is(2L));
+            assertThat(report.getSkipped(), is(2L));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 0, 1}), is("b2"));
+            // /8 would be probed with 10.255.255.255 otherwise
+            assertThat(ipRanger.lookup(new byte[]{10, 2, 0, 1}), is(nullValue()));
+            assertThat(DbDump.records(ipRanger.getEnv(), ipRanger.getMasks(false)).size(), is(1));
+            assertThat(DbDump.records(ipRanger.getEnv(), ipRanger.getMasks(true)).size(), is(0));
+            assertThat(DbDump.records(ipRanger.getEnv(), ipRanger.getIdentitiesToRanges(true)).size(), is(0));
+        }
+    }
+
+    @Test
+    public void failedEntryTest() throws Exception {
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_sync_"), CONF)) {
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            ipRanger.insertIpRange("10.1.0.0/16", "b");
+            ipRanger.insertIpRange("192.168.0.0/16", "c");
+            // the range of the entry is valid, only its identity is too long
+            SyncReport report = ipRanger.sync(Arrays.asList(
+                    RangeEntry.of("10.1.0.0/16", "b2"),
+                    RangeEntry.of("10.255.0.0/16", "identity which is too long to be stored")));
+            assertThat(report.getUpdated(), is(1L));
+            assertThat(report.getFailed(), is(1L));
+            assertThat(report.getDeleted(), is(1L));
+            assertThat(ipRanger.lookup(new byte[]{10, 2, 0, 1}), is("a"));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 0, 1}), is("b2"));
+            assertThat(ipRanger.lookup(new byte[]{(byte) 192, (byte) 168, 0, 1}), is(nullValue()));
+
+            // any stored range can be the one of an unparsable entry
+            ipRanger.insertIpRange("192.168.0.0/16", "c");
+            report = ipRanger.sync(Arrays.asList(
+                    RangeEntry.of("10.0.0.0/33", "a"),
+                    RangeEntry.of("10.1.0.0/16", "b3")));
+            assertThat(report.getUpdated(), is(1L));
+            assertThat(report.getFailed(), is(1L));
+            assertThat(report.getDeleted(), is(0L));
+            assertThat(report.getKept(), is(2L));
+            assertThat(ipRanger.lookup(new byte[]{10, 2, 0, 1}), is("a"));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 0, 1}), is("b3"));
+            assertThat(ipRanger.lookup(new byte[]{(byte) 192, (byte) 168, 0, 1}), is("c"));
+        }
+    }
+
+    @Test
+    public void unsortedSourceTest() throws Exception {
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_sync_"), CONF)) {
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            assertThrows(IllegalArgumentException.class, () -> ipRanger.sync(Arrays.asList(
+                    RangeEntry.of("192.168.0.0/16", "b"),
+                    RangeEntry.of("2001:db8::/32", "c"),
+                    RangeEntry.of("172.16.0.0/12", "d"))));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 0, 1}), is("a"));
+            assertThat(ipRanger.lookup(new byte[]{(byte) 192, (byte) 168, 0, 1}), is(nullValue()));
+        }
+    }
+
+    private static List<RangeEntry> randomEntries(Random random, int count) {
+        Map<String, RangeEntry> entries = new LinkedHashMap<>();
+        while (entries.size() < count) {
+            String identity = "id" + random.nextInt(30);
+            RangeEntry entry = random.nextBoolean()
+                    ? RangeEntry.of(random.nextInt(224) + "." + random.nextInt(256) + "." + random.nextInt(256) + ".0/"
+                    + (8 + random.nextInt(25)), identity)
+                    : RangeEntry.of(Integer.toHexString(random.nextInt(0x10000)) + ":" + Integer.toHexString(random.nextInt(0x10000))
+                    + "::/" + (16 + random.nextInt(113)), identity);
+            entries.putIfAbsent(endKey(entry), entry);
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    private static boolean sameEnd(RangeEntry a, RangeEntry b) {
+        return endKey(a).equals(endKey(b));
+    }
+
+    private static String endKey(RangeEntry entry) {
+        Cidr cidr = new Cidr();
+        new CidrParser().parse(entry.getIpRange(), cidr);
+        return cidr.isIpv6() + "/" + cidr.getEndHigh() + "/" + cidr.getEndLow();
+    }
+
+    private static List<RangeEntry> sorted(List<RangeEntry> entries) {
+        List<RangeEntry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(IpRangerSyncTest::endAddress, ExternalSorter.UNSIGNED_ORDER));
+        return sorted;
+    }
+
+    private static byte[] endAddress(RangeEntry entry) {
+        Cidr cidr = new Cidr();
+        new CidrParser().parse(entry.getIpRange(), cidr);
+        byte[] address = new byte[cidr.getAddressSize()];
+        cidr.writeEndAddress(address, 0);
+        return address;
+    }
+}
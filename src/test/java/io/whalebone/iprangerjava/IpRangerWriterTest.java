@@ -0,0 +1,159 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Tomas Kozel
+ */
+public class IpRangerWriterTest {
+    private static final int THREADS = 8;
+    private static final int RANGES_PER_THREAD = 200;
+
+    @Test
+    public void concurrentInsertsAreGroupedTest() throws Exception {
+        AtomicInteger commits = new AtomicInteger();
+        IpRangerMetrics metrics = new IpRangerMetrics() {
+            @Override
+            public void committed(long nanos, int ranges) {
+                commits.incrementAndGet();
+            }
+        };
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(10_000_000)
+                .groupCommitLatencyMillis(5)
+                .metrics(metrics)
+                .build();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_writer_"), conf)) {
+            try (IpRangerWriter writer = ipRanger.newWriter()) {
+                List<Future<List<CompletableFuture<Boolean>>>> submitted = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    final int thread = t;
+                    submitted.add(executor.submit(() -> {
+                        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+                        for (int i = 0; i < RANGES_PER_THREAD; i++) {
+                            results.add(writer.insert("10." + thread + "." + i + ".0/24", "thread-" + thread));
+                        }
+                        return results;
+                    }));
+                }
+                for (Future<List<CompletableFuture<Boolean>>> results : submitted) {
+                    for (CompletableFuture<Boolean> result : results.get()) {
+                        assertThat(result.get(10, TimeUnit.SECONDS), is(true));
+                    }
+                }
+            }
+            assertThat(commits.get(), is(lessThan(THREADS * RANGES_PER_THREAD)));
+            for (int t = 0; t < THREADS; t++) {
+                assertThat(ipRanger.lookup(new byte[]{10, (byte) t, 100, 1}), is("thread-" + t));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void insertAndDeleteTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().groupCommitMaxSize(2).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_writer_"), conf);
+             IpRangerWriter writer = ipRanger.newWriter()) {
+            assertThat(writer.insert("10.0.0.0/8", "a").get(), is(true));
+            assertThat(writer.insert(RangeEntry.of("10.0.0.0/8", "a")).get(), is(false));
+            assertThat(writer.insert("2001:db8::/32", "b").get(), is(true));
+            // the future completes after the commit, so the change is visible to lookups
+            assertThat(ipRanger.lookup(new byte[]{10, 0, 0, 1}), is("a"));
+
+            assertThat(writer.delete("10.0.0.0/8").get(), is(true));
+            assertThat(writer.delete("10.0.0.0/8").get(), is(false));
+            assertThat(ipRanger.lookup(new byte[]{10, 0, 0, 1}), is(nullValue()));
+            assertThat(ipRanger.lookup(new byte[]{0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1}),
+                    is("b"));
+        }
+    }
+
+    @Test
+    public void invalidRangeTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_writer_"), conf);
+             IpRangerWriter writer = ipRanger.newWriter()) {
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> writer.insert("10.0.0.0/99", "a").get());
+            assertThat(e.getCause(), is(instanceOf(IllegalArgumentException.class)));
+            e = assertThrows(ExecutionException.class, () -> writer.delete(" ").get());
+            assertThat(e.getCause(), is(instanceOf(IllegalArgumentException.class)));
+            assertThat(writer.insert("10.0.0.0/8", "a").get(), is(true));
+        }
+    }
+
+    @Test
+    public void failedGroupTest() throws Exception {
+        Configuration conf = TestConfiguration.builder()
+                .batchCommitSize(100)
+                .groupCommitLatencyMillis(10_000)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_writer_"), conf)) {
+            List<CompletableFuture<Boolean>> results = new ArrayList<>();
+            try (IpRangerWriter writer = ipRanger.newWriter()) {
+                // more ranges than the map can take in one group
+                for (int i = 0; i < 50_000; i++) {
+                    results.add(writer.insert("2001:db8::" + Integer.toHexString(i) + "/128", "a"));
+                }
+            }
+            // none of the changes of the failed group is committed
+            for (CompletableFuture<Boolean> result : results) {
+                assertThat(result.isCompletedExceptionally(), is(true));
+            }
+            assertThat(ipRanger.lookup(0x20010DB8_00000000L, 0), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void closeTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().groupCommitLatencyMillis(1000).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_writer_"), conf)) {
+            IpRangerWriter writer = ipRanger.newWriter();
+            CompletableFuture<Boolean> result = writer.insert("10.0.0.0/8", "a");
+            // close commits the queued changes without waiting for the latency
+            writer.close();
+            assertThat(result.isDone(), is(true));
+            assertThat(result.get(), is(true));
+            assertThrows(IllegalStateException.class, () -> writer.insert("11.0.0.0/8", "b"));
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+/**
+ * @author Tomas Kozel
+ */
+public class LookupCacheTest {
+    private static final byte[] ADDRESS = {10, 1, 2, 3};
+
+    @Test
+    public void cachedLookupTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().lookupCacheSize(1000).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_cache_"), conf)) {
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            ipRanger.insertIpRange("2001:db8::/32", "b");
+            LookupCache cache = ipRanger.getLookupCache();
+            assertThat(cache.getCapacity(), is(1024));
+            for (int i = 0; i < 3; i++) {
+                assertThat(ipRanger.lookup(ADDRESS), is("a"));
+                assertThat(ipRanger.lookup(0x20010DB8_00000000L, 1), is("b"));
+                // IPv4 mapped to IPv6 is not the IPv4 address
+                assertThat(ipRanger.lookup(0, 0x0A010203L), is(nullValue()));
+                assertThat(ipRanger.lookup(0x0B000000), is(nullValue()));
+            }
+            assertThat(cache.getMisses(), is(4L));
+            assertThat(cache.getHits(), is(8L));
+            assertThat(cache.getHitRatio(), is(8 / 12.0));
+        }
+    }
+
+    @Test
+    public void invalidationTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().lookupCacheSize(100).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_cache_"), conf)) {
+            assertThat(ipRanger.lookup(ADDRESS), is(nullValue()));
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            assertThat(ipRanger.lookup(ADDRESS), is("a"));
+            try (IpRangerWriter writer = ipRanger.newWriter()) {
+                writer.insert("10.1.0.0/16", "b").get();
+                assertThat(ipRanger.lookup(ADDRESS), is("b"));
+            }
+            ipRanger.deleteIpRange("10.1.0.0/16");
+            assertThat(ipRanger.lookup(ADDRESS), is("a"));
+            ipRanger.sync(Arrays.asList(RangeEntry.of("10.1.2.0/24", "c")));
+            assertThat(ipRanger.lookup(ADDRESS), is("c"));
+
+            Path archive = Files.createTempFile("ipranger_cache_", ".ipra");
+            ipRanger.exportTo(archive);
+            try (BulkLoader loader = ipRanger.newBulkLoader()) {
+                loader.add("10.1.2.3/32", "d");
+                loader.load();
+            }
+            assertThat(ipRanger.lookup(ADDRESS), is("d"));
+            ipRanger.importFrom(archive);
+            assertThat(ipRanger.lookup(ADDRESS), is("c"));
+            assertThat(ipRanger.getLookupCache().getHits(), is(0L));
+        }
+    }
+
+    @Test
+    public void evictionTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().lookupCacheSize(16).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_cache_"), conf)) {
+            ipRanger.insertIpRange("10.0.0.0/24", "a");
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 512; i++) {
+                    assertThat(ipRanger.lookup(0x0A000000 + i), is(i < 256 ? "a" : null));
+                }
+            }
+            LookupCache cache = ipRanger.getLookupCache();
+            assertThat(cache.getCapacity(), is(16));
+            assertThat(cache.getEvictions(), is(greaterThan(1000L)));
+        }
+    }
+
+    @Test
+    public void concurrentWritesTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().lookupCacheSize(64).build();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_cache_"), conf)) {
+            ipRanger.insertIpRange("10.0.0.0/8", "id0");
+            AtomicBoolean writing = new AtomicBoolean(true);
+            List<Future<?>> readers = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                readers.add(executor.submit(() -> {
+                    while (writing.get()) {
+                        ipRanger.lookup(ADDRESS);
+                    }
+                }));
+            }
+            for (int i = 1; i <= 200; i++) {
+                ipRanger.insertIpRange("10.0.0.0/8", "id" + i);
+                // the lookup following the write sees it even though the readers cache the previous results
+                assertThat(ipRanger.lookup(ADDRESS), is("id" + i));
+            }
+            writing.set(false);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+            assertThat(ipRanger.getLookupCache().getHits(), is(greaterThan(0L)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
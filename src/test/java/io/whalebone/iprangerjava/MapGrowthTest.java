@@ -0,0 +1,211 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import org.junit.jupiter.api.Test;
+import org.lmdbjava.Env;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Tomas Kozel
+ */
+public class MapGrowthTest {
+    private static final long INITIAL_SIZE = 64 * 1024;
+    private static final int RANGES = 5000;
+
+    @Test
+    public void batchGrowsMapTest() throws Exception {
+        AtomicLong resized = new AtomicLong();
+        IpRangerMetrics metrics = new IpRangerMetrics() {
+            @Override
+            public void mapResized(long mapSize) {
+                resized.set(mapSize);
+            }
+        };
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(INITIAL_SIZE)
+                .envSizeGrowthFactor(2)
+                .metrics(metrics)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_growth_"), conf)) {
+            InsertReport report = ipRanger.insertIpRanges(ranges());
+            assertThat(report.getInserted(), is((long) RANGES));
+            assertLookups(ipRanger);
+            IpRangerStats stats = ipRanger.stats();
+            assertThat(stats.getMapResizes(), is(greaterThan(0)));
+            assertThat(stats.getMapSize(), is(greaterThan(INITIAL_SIZE)));
+            assertThat(resized.get(), is(stats.getMapSize()));
+        }
+    }
+
+    @Test
+    public void batchWithCommitSizeGrowsMapTest() throws Exception {
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(INITIAL_SIZE)
+                .envSizeGrowthFactor(1.5)
+                .batchCommitSize(100)
+                .identityDictionary(true)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_growth_"), conf)) {
+            assertThat(ipRanger.insertIpRanges(ranges()).getInserted(), is((long) RANGES));
+            assertLookups(ipRanger);
+            assertThat(ipRanger.stats().getMapResizes(), is(greaterThan(0)));
+        }
+    }
+
+    @Test
+    public void bulkLoadGrowsMapTest() throws Exception {
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(INITIAL_SIZE)
+                .envSizeGrowthFactor(2)
+                .identityDictionary(true)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_growth_"), conf);
+             BulkLoader loader = ipRanger.newBulkLoader()) {
+            ranges().forEach(loader::add);
+            assertThat(loader.load().getInserted(), is((long) RANGES));
+            assertLookups(ipRanger);
+            assertThat(ipRanger.stats().getMapResizes(), is(greaterThan(0)));
+        }
+    }
+
+    @Test
+    public void syncGrowsMapTest() throws Exception {
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(INITIAL_SIZE)
+                .envSizeGrowthFactor(2)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_growth_"), conf)) {
+            ipRanger.insertIpRange("192.168.0.0/16", "gone");
+            SyncReport report = ipRanger.sync(ranges());
+            assertThat(report.getInserted(), is((long) RANGES));
+            assertThat(report.getDeleted(), is(1L));
+            assertLookups(ipRanger);
+            assertThat(ipRanger.lookup(new byte[]{(byte) 192, (byte) 168, 0, 1}), is(nullValue()));
+            assertThat(ipRanger.stats().getMapResizes(), is(greaterThan(0)));
+        }
+    }
+
+    @Test
+    public void limitTest() throws Exception {
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(INITIAL_SIZE)
+                .envSizeGrowthFactor(2)
+                .envSizeLimit(2 * INITIAL_SIZE)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_growth_"), conf)) {
+            ipRanger.insertIpRange("10.0.0.0/8", "kept");
+            assertThrows(Env.MapFullException.class, () -> ipRanger.insertIpRanges(ranges()));
+            assertThat(ipRanger.lookup(new byte[]{10, 0, 0, 1}), is("kept"));
+            assertThat(ipRanger.stats().getMapSize(), is(2 * INITIAL_SIZE));
+            assertThat(ipRanger.stats().getMapResizes(), is(1));
+        }
+    }
+
+    @Test
+    public void noGrowthTest() throws Exception {
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(INITIAL_SIZE)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_growth_"), conf)) {
+            assertThrows(Env.MapFullException.class, () -> ipRanger.insertIpRanges(ranges()));
+            assertThat(ipRanger.stats().getMapResizes(), is(0));
+            // the aborted batch doesn't block following writes
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            assertThat(ipRanger.lookup(new byte[]{10, 0, 0, 1}), is("a"));
+        }
+    }
+
+    @Test
+    public void openReaderTest() throws Exception {
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(INITIAL_SIZE)
+                .envSizeGrowthFactor(2)
+                .envSizeGrowthTimeoutMillis(200)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_growth_"), conf)) {
+            ipRanger.insertIpRange("10.0.0.0/8", "kept");
+            // the writing thread's own reader, the growth would wait for it forever
+            try (Stream<StoredRange> ranges = ipRanger.rangesOf("kept")) {
+                assertThrows(IllegalStateException.class, () -> ipRanger.insertIpRanges(ranges()));
+            }
+
+            // other thread's reader delays the growth at most by the timeout
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                CountDownLatch opened = new CountDownLatch(1);
+                CountDownLatch done = new CountDownLatch(1);
+                Future<?> reader = executor.submit(() -> {
+                    try (Stream<StoredRange> ranges = ipRanger.rangesOf("kept")) {
+                        opened.countDown();
+                        done.await();
+                    }
+                    return null;
+                });
+                opened.await();
+                long start = System.nanoTime();
+                assertThrows(IllegalStateException.class, () -> ipRanger.insertIpRanges(ranges()));
+                assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(lessThan(5000L)));
+                assertThat(ipRanger.lookup(new byte[]{10, 0, 0, 1}), is("kept"));
+                done.countDown();
+                reader.get();
+            } finally {
+                executor.shutdown();
+            }
+
+            // the map grows when the readers are gone
+            assertThat(ipRanger.insertIpRanges(ranges()).getInserted(), is((long) RANGES));
+            assertLookups(ipRanger);
+            assertThat(ipRanger.stats().getMapResizes(), is(greaterThan(0)));
+        }
+    }
+
+    /**
+     * @return sorted host ranges 10.0.0.0/32 ... with identities repeating every 100 ranges
+     */
+    private static List<RangeEntry> ranges() {
+        return IntStream.range(0, RANGES)
+                .mapToObj(i -> RangeEntry.of("10.0." + (i >> 8) + "." + (i & 0xFF) + "/32", "identity-" + i % 100))
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    private static void assertLookups(final IpRanger ipRanger) {
+        for (int i = 0; i < RANGES; i += 97) {
+            assertThat(ipRanger.lookup(new byte[]{10, 0, (byte) (i >> 8), (byte) i}), is("identity-" + i % 100));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Tomas Kozel
+ */
+public class ProbeFilterTest {
+
+    @Test
+    public void sameLookupsTest() throws Exception {
+        Random random = new Random(7);
+        List<RangeEntry> entries = randomEntries(random, 3000);
+        Configuration conf = TestConfiguration.builder().maxEnvSize(1L << 26).build();
+        Configuration filtered = TestConfiguration.builder().maxEnvSize(1L << 26).probeFilters(true).build();
+        try (IpRanger plain = IpRanger.create(Files.createTempDirectory("ipranger_filter_"), conf);
+             IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_filter_"), filtered)) {
+            plain.insertIpRanges(entries);
+            ipRanger.insertIpRanges(entries);
+            assertSameLookups(random, plain, ipRanger);
+
+            // ranges written after the filters were built
+            List<RangeEntry> more = randomEntries(random, 500);
+            plain.insertIpRanges(more);
+            try (IpRangerWriter writer = ipRanger.newWriter()) {
+                more.forEach(writer::insert);
+            }
+            for (int i = 0; i < 100; i++) {
+                plain.deleteIpRange(entries.get(i).getIpRange());
+                ipRanger.deleteIpRange(entries.get(i).getIpRange());
+            }
+            assertSameLookups(random, plain, ipRanger);
+
+            Path archive = Files.createTempFile("ipranger_filter_", ".ipra");
+            plain.exportTo(archive);
+            ipRanger.importFrom(archive);
+            assertSameLookups(random, plain, ipRanger);
+
+            List<RangeEntry> reloaded = randomEntries(random, 2000);
+            for (IpRanger target : new IpRanger[]{plain, ipRanger}) {
+                try (BulkLoader loader = target.newBulkLoader()) {
+                    reloaded.forEach(loader::add);
+                    loader.load();
+                }
+            }
+            assertSameLookups(random, plain, ipRanger);
+        }
+    }
+
+    @Test
+    public void falsePositiveRateTest() throws Exception {
+        Random random = new Random(11);
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(1L << 26)
+                .probeFilters(true)
+                .probeFilterFalsePositiveRate(0.02)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_filter_"), conf)) {
+            List<RangeEntry> entries = new ArrayList<>();
+            for (int i = 0; i < 20_000; i++) {
+                entries.add(RangeEntry.of(toIp4String(random.nextInt()) + "/32", "id"));
+            }
+            ipRanger.insertIpRanges(entries);
+            ipRanger.refreshProbeFilters();
+            ProbeFilter filter = ipRanger.getProbeFilter(false);
+            assertThat(filter.getCapacity(), is(40_000L));
+            // about 8 bits per range of the capacity, in whole 64 byte blocks
+            assertThat(filter.getMemoryUsed() % 64, is(0L));
+            assertThat(filter.getMemoryUsed(), is(lessThan(41_000L)));
+
+            int falsePositives = 0;
+            for (int i = 0; i < 100_000; i++) {
+                if (filter.mightContain(0, random.nextInt() & 0xFFFFFFFFL)) {
+                    falsePositives++;
+                }
+            }
+            // filled to half of the capacity
+            assertThat(falsePositives / 100_000.0, is(lessThan(0.02)));
+            assertThat(filter.getFalsePositiveRate(), is(lessThan(0.02)));
+            for (RangeEntry entry : entries) {
+                assertThat(ipRanger.lookup(toAddress(entry.getIpRange())), is("id"));
+            }
+        }
+    }
+
+    @Test
+    public void disabledTest() throws Exception {
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_filter_"),
+                TestConfiguration.builder().build())) {
+            assertThat(ipRanger.getProbeFilter(false), is(nullValue()));
+            assertThat(ipRanger.getProbeFilter(true), is(nullValue()));
+            assertThrows(IllegalStateException.class, ipRanger::refreshProbeFilters);
+        }
+    }
+
+    private static void assertSameLookups(Random random, IpRanger expected, IpRanger actual) {
+        for (int i = 0; i < 20_000; i++) {
+            int ip4 = i % 2 == 0 ? random.nextInt() : 0x0A000000 | random.nextInt(1 << 24);
+            assertThat(actual.lookup(ip4), is(expected.lookup(ip4)));
+            long high = 0x20010DB8_00000000L | random.nextInt(1 << 16);
+            long low = random.nextLong();
+            assertThat(actual.lookup(high, low), is(expected.lookup(high, low)));
+        }
+    }
+
+    /**
+     * @return ranges nested in 10.0.0.0/8 and 2001:db8::/48
+     */
+    private static List<RangeEntry> randomEntries(Random random, int count) {
+        List<RangeEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String identity = "id" + random.nextInt(50);
+            if (random.nextBoolean()) {
+                entries.add(RangeEntry.of(toIp4String(0x0A000000 | random.nextInt(1 << 24)) + "/" + (8 + random.nextInt(25)), identity));
+            } else {
+                entries.add(RangeEntry.of(String.format("2001:db8:0:%x:%x::/%d", random.nextInt(1 << 16),
+                        random.nextInt(1 << 16), 48 + random.nextInt(81)), identity));
+            }
+        }
+        return entries;
+    }
+
+    private static byte[] toAddress(String range) {
+        String[] octets = range.substring(0, range.indexOf('/')).split("\\.");
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            address[i] = (byte) Integer.parseInt(octets[i]);
+        }
+        return address;
+    }
+
+    private static String toIp4String(int address) {
+        return (address >>> 24) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.tools.TestDataLoader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Tomas Kozel
+ */
+public class RangeArchiveTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"false", "true"})
+    public void exportImportTest(boolean identityDictionary) throws Exception {
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(20_000_000)
+                .identityDictionary(identityDictionary)
+                .batchCommitSize(1_000)
+                .build();
+        List<RangeEntry> entries = new ArrayList<>(TestDataLoader.entries("ipv4.csv", ","));
+        entries.addAll(TestDataLoader.entries("ipv6.csv", ","));
+        for (int i = 0; i < 10_000; i++) {
+            entries.add(RangeEntry.of("11." + (i >> 8) + "." + (i & 0xFF) + ".0/24", "id" + i % 7));
+        }
+        Path archive = Files.createTempDirectory("ipranger_archive_").resolve("ranges.bin");
+        Map<String, IpRangerStats.DbStats> exported;
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_archive_"), conf)) {
+            ipRanger.insertIpRanges(entries);
+            exported = ipRanger.stats().getDbStats();
+            long records = exported.values().stream().mapToLong(IpRangerStats.DbStats::getEntries).sum();
+            assertThat(ipRanger.exportTo(archive), is(records));
+        }
+
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_archive_"), conf)) {
+            // replaced by the import
+            ipRanger.insertIpRange("224.0.0.0/8", "gone");
+            InsertReport report = ipRanger.importFrom(archive);
+            assertThat(report.getInserted(), is(exported.get(conf.getIp4RangesToIdentityDbName()).getEntries()
+                    + exported.get(conf.getIp6RangesToIdentityDbName()).getEntries()));
+            assertThat(ipRanger.stats().getDbStats().values().stream()
+                            .map(IpRangerStats.DbStats::getEntries).collect(Collectors.toList()),
+                    is(exported.values().stream().map(IpRangerStats.DbStats::getEntries).collect(Collectors.toList())));
+            assertThat(ipRanger.lookup(new byte[]{(byte) 224, 0, 0, 1}), is(nullValue()));
+            assertThat(ipRanger.lookup(new byte[]{11, 0, 5, 1}), is("id5"));
+            assertThat(ipRanger.lookup(new byte[]{11, 39, 15, 1}), is("id" + (39 * 256 + 15) % 7));
+            // the dictionary is restored too, so new identities get fresh ids
+            ipRanger.insertIpRange("224.0.0.0/8", "new");
+            assertThat(ipRanger.lookup(new byte[]{(byte) 224, 0, 0, 1}), is("new"));
+            assertThat(ipRanger.lookup(new byte[]{11, 0, 6, 1}), is("id6"));
+        }
+    }
+
+    @Test
+    public void importWithMapGrowthTest() throws Exception {
+        Path archive = Files.createTempDirectory("ipranger_archive_").resolve("ranges.bin");
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_archive_"),
+                TestConfiguration.builder().maxEnvSize(20_000_000).build())) {
+            try (IpRanger.Batch batch = ipRanger.newBatch()) {
+                for (int i = 0; i < 60_000; i++) {
+                    batch.insert("11." + (i >> 8) + "." + (i & 0xFF) + ".0/24", "id" + i % 7);
+                }
+                batch.commit();
+            }
+            ipRanger.exportTo(archive);
+        }
+        Configuration conf = TestConfiguration.builder()
+                .envSizeGrowthFactor(2)
+                .envSizeLimit(100_000_000)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_archive_"), conf)) {
+            assertThat(ipRanger.importFrom(archive).getInserted(), is(60_000L));
+            assertThat(ipRanger.stats().getMapResizes(), is(greaterThan(0)));
+            assertThat(ipRanger.lookup(new byte[]{11, 78, 31, 1}), is("id" + (78 * 256 + 31) % 7));
+        }
+    }
+
+    @Test
+    public void incompatibleArchiveTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_archive_");
+        Path archive = dir.resolve("ranges.bin");
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_archive_"),
+                TestConfiguration.builder().build())) {
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            ipRanger.exportTo(archive);
+        }
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_archive_"),
+                TestConfiguration.builder().identityDictionary(true).build())) {
+            assertThrows(IllegalArgumentException.class, () -> ipRanger.importFrom(archive));
+
+            Path truncated = dir.resolve("truncated.bin");
+            byte[] bytes = Files.readAllBytes(archive);
+            Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 4));
+            assertThrows(IllegalArgumentException.class, () -> ipRanger.importFrom(truncated));
+
+            Path garbage = dir.resolve("garbage.bin");
+            Files.write(garbage, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            assertThrows(IllegalArgumentException.class, () -> ipRanger.importFrom(garbage));
+        }
+    }
+
+    @Test
+    public void compactTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().maxEnvSize(50_000_000).build();
+        Path target = Files.createTempDirectory("ipranger_archive_").resolve("compacted");
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_archive_"), conf)) {
+            try (IpRanger.Batch batch = ipRanger.newBatch()) {
+                for (int i = 0; i < 20_000; i++) {
+                    batch.insert("11." + (i >> 8) + "." + (i & 0xFF) + ".0/24", "id" + i);
+                }
+                batch.commit();
+            }
+            try (IpRanger.Batch batch = ipRanger.newBatch()) {
+                for (int i = 100; i < 20_000; i++) {
+                    batch.delete("11." + (i >> 8) + "." + (i & 0xFF) + ".0/24");
+                }
+                batch.commit();
+            }
+            CompactReport report = ipRanger.compact(target);
+            assertThat(report.getReclaimed(), is(greaterThan(0L)));
+            assertThat(report.getCompactedSize(), is(Files.size(target.resolve("data.mdb"))));
+        }
+        try (IpRanger compacted = IpRanger.create(target, conf)) {
+            assertThat(compacted.lookup(new byte[]{11, 0, 99, 1}), is("id99"));
+            assertThat(compacted.lookup(new byte[]{11, 0, 100, 1}), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void compactWriteMapTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().maxEnvSize(50_000_000).build();
+        Path target = Files.createTempDirectory("ipranger_archive_").resolve("compacted");
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_archive_"), conf,
+                EnvProfile.BULK_LOAD)) {
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            // the data file is as large as the map, its unused part is not reclaimed by the compaction
+            CompactReport report = ipRanger.compact(target);
+            assertThat(report.getSourceSize(), is(ipRanger.stats().getUsedBytes()));
+            assertThat(report.getReclaimed(), is(lessThan(1_000_000L)));
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.DbDump;
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.tools.TestDataLoader;
+import io.whalebone.iprangerjava.utils.Cidr;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Tomas Kozel
+ */
+public class RangeNormalizerTest {
+    private static final String[] IDENTITIES = {"a", "b", "c"};
+    // the random blocks are in 10.0.0.0/24 and 2001:db8:0:ff00::/56 (units of /64)
+    private static final int IP4_BASE = 0x0A000000;
+    private static final long IP6_BASE = 0x20010DB8_0000FF00L;
+
+    @Test
+    public void sameEndAddressTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_normalize_"), conf)) {
+            ipRanger.insertIpRange("10.0.0.0/8", "a");
+            ipRanger.insertIpRange("10.255.255.0/24", "b");
+            // both end with 10.255.255.255, the second one overwrites the first one
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 0, 0}), is("b"));
+        }
+
+        conf = TestConfiguration.builder().overlapPolicy(OverlapPolicy.MOST_SPECIFIC_WINS).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_normalize_"), conf);
+             IpRanger.Batch batch = ipRanger.newBatch()) {
+            batch.insert("10.0.0.0/8", "a");
+            batch.insert("10.255.255.0/24", "b");
+            InsertReport report = batch.commit();
+            // 10.0.0.0/9, 10.128.0.0/10 ... 10.255.254.0/24 of a and 10.255.255.0/24 of b
+            assertThat(report.getInserted(), is(17L));
+            NormalizationReport normalization = batch.getNormalizationReport();
+            assertThat(normalization.getInput(), is(2L));
+            assertThat(normalization.getOverlaps(), is(1L));
+            assertThat(normalization.getOutput(), is(17L));
+            assertThat(normalization.getMasks(), is(16));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 0, 0}), is("a"));
+            assertThat(ipRanger.lookup(new byte[]{10, (byte) 255, (byte) 254, 1}), is("a"));
+            assertThat(ipRanger.lookup(new byte[]{10, (byte) 255, (byte) 255, 1}), is("b"));
+        }
+    }
+
+    @Test
+    public void coalesceTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().overlapPolicy(OverlapPolicy.MOST_SPECIFIC_WINS).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_normalize_"), conf);
+             IpRanger.Batch batch = ipRanger.newBatch()) {
+            batch.insert("10.0.0.0/25", "a");
+            batch.insert("10.0.0.128/25", "a");
+            batch.insert("10.0.0.0/25", "a");
+            batch.insert("10.0.0.64/26", "a");
+            batch.insertRange("2001:db8::-2001:db8::ffff", "b");
+            InsertReport report = batch.commit();
+            assertThat(report.getInserted(), is(2L));
+            NormalizationReport normalization = batch.getNormalizationReport();
+            assertThat(normalization.getInput(), is(5L));
+            assertThat(normalization.getDuplicates(), is(1L));
+            assertThat(normalization.getOverlaps(), is(0L));
+            assertThat(normalization.getOutput(), is(2L));
+            assertThat(ipRanger.rangesOf("a").map(StoredRange::getIpRange).toArray(), is(new String[]{"10.0.0.0/24"}));
+        }
+    }
+
+    @Test
+    public void rejectTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().overlapPolicy(OverlapPolicy.REJECT).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_normalize_"), conf)) {
+            InsertReport report = ipRanger.insertIpRanges(Arrays.asList(
+                    RangeEntry.of("10.1.0.0/16", "a"),
+                    RangeEntry.of("10.0.0.0/8", "b"),
+                    RangeEntry.of("10.1.2.0/24", "b"),
+                    RangeEntry.of("10.1.3.0/24", "a"),
+                    RangeEntry.of("10.0.0.0/8", "a")));
+            assertThat(report.getInserted(), is(1L));
+            assertThat(report.getFailed(), is(2L));
+            assertThat(ipRanger.lookup(new byte[]{10, 1, 2, 1}), is("a"));
+            assertThat(ipRanger.lookup(new byte[]{10, 2, 0, 1}), is("a"));
+        }
+    }
+
+    @Test
+    public void bulkLoadTest() throws Exception {
+        List<RangeEntry> entries = new ArrayList<>(TestDataLoader.entries("ipv4.csv", ","));
+        entries.addAll(TestDataLoader.entries("ipv6.csv", ","));
+        entries.add(RangeEntry.of("10.0.0.0/8", "a"));
+        entries.add(RangeEntry.of("10.255.255.0/24", "b"));
+        entries.add(RangeEntry.of("10.255.255.0/25", "a"));
+        Configuration conf = TestConfiguration.builder().overlapPolicy(OverlapPolicy.LAST_WINS).build();
+
+        try (IpRanger inserted = IpRanger.create(Files.createTempDirectory("ipranger_insert_"), conf);
+             IpRanger loaded = IpRanger.create(Files.createTempDirectory("ipranger_bulk_"), conf)) {
+            InsertReport insertReport = inserted.insertIpRanges(entries);
+            try (BulkLoader loader = loaded.newBulkLoader()) {
+                entries.forEach(loader::add);
+                InsertReport report = loader.load();
+                assertThat(report.getInserted(), is(insertReport.getInserted()));
+                assertThat(report.getSkipped(), is(0L));
+                assertThat(loader.getNormalizationReport().getOutput(), is(insertReport.getInserted()));
+            }
+            for (boolean ipv6 : new boolean[]{false, true}) {
+                assertThat(DbDump.records(loaded.getEnv(), loaded.getRangesToIdentity(ipv6)), is(DbDump.records(inserted.getEnv(), inserted.getRangesToIdentity(ipv6))));
+                assertThat(DbDump.records(loaded.getEnv(), loaded.getMasks(ipv6)), is(DbDump.records(inserted.getEnv(), inserted.getMasks(ipv6))));
+            }
+            assertThat(loaded.lookup(new byte[]{10, (byte) 255, (byte) 255, 1}), is("a"));
+            assertThat(loaded.lookup(new byte[]{10, (byte) 255, (byte) 255, (byte) 129}), is("b"));
+            assertThat(loaded.lookup(new byte[]{10, 1, 0, 0}), is("a"));
+        }
+    }
+
+    @Test
+    public void ingestTest() throws Exception {
+        List<RangeEntry> entries = new ArrayList<>(TestDataLoader.entries("ipv4.csv", ","));
+        entries.addAll(TestDataLoader.entries("ipv6.csv", ","));
+        entries.add(RangeEntry.of("10.0.0.0/8", "a"));
+        entries.add(RangeEntry.of("10.255.255.0/24", "b"));
+        entries.add(RangeEntry.of("10.255.255.0/25", "a"));
+        List<String> lines = new ArrayList<>();
+        entries.forEach(entry -> lines.add(entry.getIpRange() + "," + entry.getIdentity()));
+        Configuration conf = TestConfiguration.builder().overlapPolicy(OverlapPolicy.MOST_SPECIFIC_WINS).build();
+
+        try (IpRanger inserted = IpRanger.create(Files.createTempDirectory("ipranger_insert_"), conf);
+             IpRanger ingested = IpRanger.create(Files.createTempDirectory("ipranger_ingest_"), conf)) {
+            InsertReport insertReport = inserted.insertIpRanges(entries);
+            InsertReport report = ingested.ingest(lines.stream(), IngestPipeline.delimitedLineParser(",", 0, 1), error -> { });
+            assertThat(report.getInserted(), is(insertReport.getInserted()));
+            for (boolean ipv6 : new boolean[]{false, true}) {
+                assertThat(DbDump.records(ingested.getEnv(), ingested.getRangesToIdentity(ipv6)), is(DbDump.records(inserted.getEnv(), inserted.getRangesToIdentity(ipv6))));
+                assertThat(DbDump.records(ingested.getEnv(), ingested.getMasks(ipv6)), is(DbDump.records(inserted.getEnv(), inserted.getMasks(ipv6))));
+            }
+            assertThat(ingested.lookup(new byte[]{10, (byte) 255, (byte) 255, 1}), is("a"));
+            assertThat(ingested.lookup(new byte[]{10, (byte) 255, (byte) 255, (byte) 129}), is("b"));
+            // the writer can't tell the result of a change before the normalization
+            assertThrows(IllegalStateException.class, ingested::newWriter);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"false", "true"})
+    public void randomRangesTest(final boolean ipv6) {
+        Random random = new Random(42);
+        Cidr cidr = new Cidr();
+        for (OverlapPolicy policy : OverlapPolicy.values()) {
+            for (int round = 0; round < 300; round++) {
+                int count = 1 + random.nextInt(30);
+                int[] firsts = new int[count];
+                int[] sizes = new int[count];
+                int[] identities = new int[count];
+                RangeNormalizer normalizer = new RangeNormalizer(policy);
+                for (int i = 0; i < count; i++) {
+                    int hostBits = random.nextInt(9);
+                    sizes[i] = 1 << hostBits;
+                    firsts[i] = random.nextInt(256) & -sizes[i];
+                    identities[i] = random.nextInt(IDENTITIES.length);
+                    // host bits of the address are ignored
+                    if (ipv6) {
+                        cidr.setIpv6(IP6_BASE | firsts[i] | random.nextInt(sizes[i]), random.nextLong(), 64 - hostBits);
+                    } else {
+                        cidr.setIpv4(IP4_BASE | firsts[i] | random.nextInt(sizes[i]), 32 - hostBits);
+                    }
+                    normalizer.add(cidr, IDENTITIES[identities[i]].getBytes(StandardCharsets.UTF_8));
+                }
+
+                // identity of the innermost output block of each unit
+                String[] actual = new String[256];
+                int[] actualPrefixes = new int[256];
+                Arrays.fill(actualPrefixes, -1);
+                Set<Long> ends = new HashSet<>();
+                normalizer.normalize(ipv6, (block, identity) -> {
+                    assertThat(block.isIpv6(), is(ipv6));
+                    assertThat("two blocks end with the same address", ends.add(ipv6 ? block.getEndHigh() : block.getEndLow()), is(true));
+                    int prefix = block.getPrefixLength() - (ipv6 ? 56 : 24);
+                    int first = (int) ((ipv6 ? block.getStartHigh() : block.getStartLow()) & 0xFF);
+                    for (int unit = first; unit < first + (1 << (8 - prefix)); unit++) {
+                        if (prefix > actualPrefixes[unit]) {
+                            actualPrefixes[unit] = prefix;
+                            actual[unit] = new String(identity, StandardCharsets.UTF_8);
+                        }
+                    }
+                });
+                boolean[] accepted = accepted(policy, firsts, sizes, identities);
+                String[] expected = expected(policy, firsts, sizes, identities, accepted);
+                assertThat(policy + " " + round, actual, is(expected));
+
+                NormalizationReport report = normalizer.getReport();
+                assertThat(report.getInput(), is((long) count));
+                assertThat(report.getRejected(), is(count - countTrue(accepted)));
+                assertThat(report.getOutput(), is((long) ends.size()));
+            }
+        }
+    }
+
+    /**
+     * Accepts the blocks in the order they were added unless they overlap an accepted block of a different identity.
+     */
+    private static boolean[] accepted(final OverlapPolicy policy, final int[] firsts, final int[] sizes,
+                                      final int[] identities) {
+        boolean[] accepted = new boolean[firsts.length];
+        for (int i = 0; i < firsts.length; i++) {
+            accepted[i] = true;
+            for (int j = 0; j < i && policy == OverlapPolicy.REJECT; j++) {
+                boolean overlap = firsts[i] < firsts[j] + sizes[j] && firsts[j] < firsts[i] + sizes[i];
+                if (accepted[j] && overlap && identities[i] != identities[j]) {
+                    accepted[i] = false;
+                }
+            }
+        }
+        return accepted;
+    }
+
+    private static String[] expected(final OverlapPolicy policy, final int[] firsts, final int[] sizes,
+                                     final int[] identities, final boolean[] accepted) {
+        String[] expected = new String[256];
+        for (int unit = 0; unit < 256; unit++) {
+            int winner = -1;
+            for (int i = 0; i < firsts.length; i++) {
+                if (!accepted[i] || unit < firsts[i] || unit >= firsts[i] + sizes[i]) {
+                    continue;
+                }
+                if (winner < 0 || policy == OverlapPolicy.LAST_WINS || sizes[i] <= sizes[winner]) {
+                    winner = i;
+                }
+            }
+            expected[unit] = winner < 0 ? null : IDENTITIES[identities[winner]];
+        }
+        return expected;
+    }
+
+    private static long countTrue(final boolean[] values) {
+        long count = 0;
+        for (boolean value : values) {
+            if (value) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.utils.Cidr;
+import io.whalebone.iprangerjava.utils.CidrParser;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author Tomas Kozel
+ */
+public class ReverseRangesTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"false", "true"})
+    public void rangesOfTest(boolean identityDictionary) throws Exception {
+        Configuration conf = TestConfiguration.builder().identityDictionary(identityDictionary).build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_reverse_"), conf)) {
+            ipRanger.insertIpRanges(Arrays.asList(
+                    RangeEntry.of("192.168.1.0/24", "a"),
+                    RangeEntry.of("10.0.0.0/8", "a"),
+                    RangeEntry.of("10.1.0.0/16", "b"),
+                    RangeEntry.of("2001:db8::/32", "a")));
+
+            try (Stream<StoredRange> ranges = ipRanger.rangesOf("a")) {
+                assertThat(ranges.collect(Collectors.toList()), is(Arrays.asList(
+                        StoredRange.of("10.0.0.0/8", 8, false),
+                        StoredRange.of("192.168.1.0/24", 24, false),
+                        StoredRange.of(ip6("2001:db8::/32"), 32, true))));
+            }
+            try (Stream<StoredRange> ranges = ipRanger.rangesOf("b")) {
+                assertThat(ranges.collect(Collectors.toList()),
+                        is(Collections.singletonList(StoredRange.of("10.1.0.0/16", 16, false))));
+            }
+            try (Stream<StoredRange> ranges = ipRanger.rangesOf("unknown")) {
+                assertThat(ranges.count(), is(0L));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"false", "true"})
+    public void manyRangesTest(boolean identityDictionary) throws Exception {
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(20_000_000)
+                .identityDictionary(identityDictionary)
+                .build();
+        try (IpRanger ipRanger = IpRanger.create(Files.createTempDirectory("ipranger_reverse_"), conf)) {
+            // more ranges than fit to one page of duplicates
+            List<RangeEntry> entries = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            Cidr cidr = new Cidr();
+            for (int i = 0; i < 5_000; i++) {
+                cidr.setIpv4(0x0B000000 + i * 4, 30);
+                entries.add(RangeEntry.of(cidr.toString(), "many"));
+                entries.add(RangeEntry.of(cidr.toString().replace("11.", "12."), "other"));
+                expected.add(cidr.toString());
+            }
+            for (int i = 0; i < 1_000; i++) {
+                cidr.setIpv6(0x20010DB800000000L + i, 0, 64);
+                entries.add(RangeEntry.of(cidr.toString(), "many"));
+                expected.add(cidr.toString());
+            }
+            ipRanger.insertIpRanges(entries);
+
+            // consumed partially and closed
+            try (Stream<StoredRange> ranges = ipRanger.rangesOf("many")) {
+                assertThat(ranges.limit(10).count(), is(10L));
+            }
+            try (Stream<StoredRange> ranges = ipRanger.rangesOf("many")) {
+                assertThat(ranges.map(StoredRange::getIpRange).collect(Collectors.toList()), is(expected));
+            }
+        }
+    }
+
+    private static String ip6(String range) {
+        Cidr cidr = new Cidr();
+        new CidrParser().parse(range, cidr);
+        return cidr.toString();
+    }
+}
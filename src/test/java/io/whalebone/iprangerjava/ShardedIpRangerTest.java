@@ -0,0 +1,195 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.DbDump;
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import io.whalebone.iprangerjava.tools.TestDataLoader;
+import org.junit.jupiter.api.Test;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Env;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.lmdbjava.DbiFlags.MDB_CREATE;
+import static org.lmdbjava.DbiFlags.MDB_DUPSORT;
+
+/**
+ * @author Tomas Kozel
+ */
+public class ShardedIpRangerTest {
+
+    @Test
+    public void sameLookupsTest() throws Exception {
+        List<RangeEntry> entries = entries();
+        Configuration conf = TestConfiguration.builder().maxEnvSize(10_000_000).build();
+        Random random = new Random(42);
+
+        try (IpRanger single = IpRanger.create(Files.createTempDirectory("ipranger_single_"), conf);
+             ShardedIpRanger sharded = ShardedIpRanger.create(Files.createTempDirectory("ipranger_ip4_"),
+                     Files.createTempDirectory("ipranger_ip6_"), conf)) {
+            single.insertIpRanges(entries);
+            try (ShardedIpRanger.Loader loader = sharded.newBulkLoader()) {
+                entries.forEach(loader::add);
+                InsertReport report = loader.load();
+                assertThat(report.getInserted() + report.getSkipped(), is((long) entries.size()));
+            }
+            for (int i = 0; i < 10_000; i++) {
+                int ip4 = random.nextInt(1 << 12) << 20 | random.nextInt(1 << 20);
+                assertThat(sharded.lookup(ip4), is(single.lookup(ip4)));
+                long high = (long) random.nextInt(1 << 12) << 48 | random.nextInt(1 << 16);
+                long low = random.nextLong();
+                assertThat(sharded.lookup(high, low), is(single.lookup(high, low)));
+            }
+            assertThat(DbDump.records(sharded.getShard(false).getEnv(), sharded.getShard(false).getRangesToIdentity(true)).isEmpty(), is(true));
+            assertThat(DbDump.records(sharded.getShard(true).getEnv(), sharded.getShard(true).getRangesToIdentity(false)).isEmpty(), is(true));
+            for (String identity : new String[]{"id1", "id7"}) {
+                try (Stream<StoredRange> expected = single.rangesOf(identity);
+                     Stream<StoredRange> actual = sharded.rangesOf(identity)) {
+                    assertThat(actual.collect(Collectors.toList()), is(expected.collect(Collectors.toList())));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void writerTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().build();
+        try (ShardedIpRanger sharded = ShardedIpRanger.create(Files.createTempDirectory("ipranger_ip4_"),
+                Files.createTempDirectory("ipranger_ip6_"), conf)) {
+            try (ShardedIpRanger.Writer writer = sharded.newWriter()) {
+                writer.insert("10.0.0.0/8", "a");
+                writer.insert("2001:db8::/32", "b");
+                writer.insert(RangeEntry.of("10.1.0.0/16", "c"));
+            }
+            assertThat(sharded.lookup(new byte[]{10, 1, 2, 3}), is("c"));
+            assertThat(sharded.lookup(new byte[]{10, 2, 2, 3}), is("a"));
+            assertThat(sharded.lookup(0x20010DB8_00000001L, 1), is("b"));
+            assertThat(sharded.getShard(false).lookup(0x20010DB8_00000001L, 1), is(nullValue()));
+
+            try (ShardedIpRanger.Writer writer = sharded.newWriter()) {
+                assertThat(writer.delete("2001:db8::/32").get(), is(true));
+            }
+            assertThat(sharded.lookup(0x20010DB8_00000001L, 1), is(nullValue()));
+            sharded.insertRange("2001:db8::-2001:db8::1:0", "d");
+            assertThat(sharded.lookup(0x20010DB8_00000000L, 0x1_0000L), is("d"));
+            assertThat(sharded.deleteIpRange("10.1.0.0/16"), is(true));
+            assertThat(sharded.lookup(new byte[]{10, 1, 2, 3}), is("a"));
+        }
+    }
+
+    @Test
+    public void failedLoadTest() throws Exception {
+        Configuration conf = TestConfiguration.builder().build();
+        try (ShardedIpRanger sharded = ShardedIpRanger.create(Files.createTempDirectory("ipranger_ip4_"),
+                Files.createTempDirectory("ipranger_ip6_"), conf);
+             ShardedIpRanger.Loader loader = sharded.newBulkLoader()) {
+            // more ranges than the maps can take in both shards
+            for (int i = 0; i < 50_000; i++) {
+                loader.add("10." + (i >> 16) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF) + "/32", "a");
+                loader.add("2001:db8::" + Integer.toHexString(i) + "/128", "b");
+            }
+            RuntimeException e = assertThrows(RuntimeException.class, loader::load);
+            // the failure of the IPv6 shard doesn't replace the IPv4 one
+            assertThat(e.getSuppressed().length, is(1));
+        }
+    }
+
+    @Test
+    public void writeSingleEnvTest() throws Exception {
+        List<RangeEntry> entries = entries();
+        Configuration conf = TestConfiguration.builder()
+                .maxEnvSize(1_000_000)
+                .batchCommitSize(500)
+                .build();
+        Path dir = Files.createTempDirectory("ipranger_merged_");
+
+        try (IpRanger single = IpRanger.create(Files.createTempDirectory("ipranger_single_"), conf);
+             ShardedIpRanger sharded = ShardedIpRanger.create(Files.createTempDirectory("ipranger_ip4_"),
+                     Files.createTempDirectory("ipranger_ip6_"), conf)) {
+            try (BulkLoader loader = single.newBulkLoader()) {
+                entries.forEach(loader::add);
+                loader.load();
+            }
+            try (ShardedIpRanger.Loader loader = sharded.newBulkLoader()) {
+                entries.forEach(loader::add);
+                loader.load();
+            }
+            try (IpRanger merged = IpRanger.create(dir, conf)) {
+                merged.insertIpRange("192.168.0.0/16", "replaced");
+            }
+            sharded.writeSingleEnv(dir);
+
+            try (Env<ByteBuffer> env = Env.create().setMapSize(100_000_000).setMaxDbs(6).open(dir.toFile())) {
+                for (boolean ipv6 : new boolean[]{false, true}) {
+                    Dbi<ByteBuffer> rangesToIdentity = env.openDbi(ipv6 ? conf.getIp6RangesToIdentityDbName() : conf.getIp4RangesToIdentityDbName(), MDB_CREATE);
+                    Dbi<ByteBuffer> identitiesToRanges = env.openDbi(ipv6 ? conf.getIdentitiesToIp6RangesDbName() : conf.getIdentitiesToIp4RangesDbName(), MDB_CREATE, MDB_DUPSORT);
+                    Dbi<ByteBuffer> masks = env.openDbi(ipv6 ? conf.getIp6MasksDbName() : conf.getIp4MasksDbName(), MDB_CREATE);
+                    assertThat(DbDump.records(env, rangesToIdentity), is(DbDump.records(single.getEnv(), single.getRangesToIdentity(ipv6))));
+                    assertThat(DbDump.records(env, identitiesToRanges), is(DbDump.records(single.getEnv(), single.getIdentitiesToRanges(ipv6))));
+                    assertThat(DbDump.records(env, masks), is(DbDump.records(single.getEnv(), single.getMasks(ipv6))));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void invalidShardsTest() throws Exception {
+        Path dir = Files.createTempDirectory("ipranger_shard_");
+        assertThrows(IllegalArgumentException.class,
+                () -> ShardedIpRanger.create(dir, dir.resolve("."), TestConfiguration.builder().build()));
+
+        Configuration conf = TestConfiguration.builder().identityDictionary(true).build();
+        try (ShardedIpRanger sharded = ShardedIpRanger.create(Files.createTempDirectory("ipranger_ip4_"),
+                Files.createTempDirectory("ipranger_ip6_"), conf)) {
+            sharded.insertIpRange("10.0.0.0/8", "a");
+            assertThrows(IllegalStateException.class,
+                    () -> sharded.writeSingleEnv(Files.createTempDirectory("ipranger_merged_")));
+        }
+    }
+
+    private static List<RangeEntry> entries() throws Exception {
+        List<RangeEntry> entries = new ArrayList<>(TestDataLoader.entries("ipv4.csv", ","));
+        entries.addAll(TestDataLoader.entries("ipv6.csv", ","));
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            String identity = "id" + random.nextInt(10);
+            if (random.nextBoolean()) {
+                int address = random.nextInt(1 << 12) << 20;
+                entries.add(RangeEntry.of(toIp4String(address) + "/" + (12 + random.nextInt(21)), identity));
+            } else {
+                entries.add(RangeEntry.of(Integer.toHexString(random.nextInt(1 << 12)) + "::/" + (16 + random.nextInt(113)), identity));
+            }
+        }
+        return entries;
+    }
+
+    private static String toIp4String(int address) {
+        return (address >>> 24) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+}
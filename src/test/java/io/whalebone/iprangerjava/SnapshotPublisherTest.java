@@ -0,0 +1,97 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava;
+
+import io.whalebone.iprangerjava.tools.TestConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author Tomas Kozel
+ */
+public class SnapshotPublisherTest {
+    private static final byte[] ADDRESS = {10, 1, 2, 3};
+
+    @Test
+    public void publishTest() throws Exception {
+        Path link = Files.createTempDirectory("ipranger_snapshot_").resolve("ranges");
+        SnapshotPublisher publisher = new SnapshotPublisher(link,
+                TestConfiguration.builder().snapshotRetention(1).build());
+        List<Long> published = new ArrayList<>();
+        publisher.addListener((generation, dir) -> published.add(generation));
+        assertThat(publisher.getGeneration(), is(0L));
+        assertThat(publisher.getPublishedDir(), is(nullValue()));
+
+        assertThat(publisher.publish(ipRanger -> ipRanger.insertIpRange("10.0.0.0/8", "first")), is(1L));
+        try (IpRanger first = publisher.openPublished()) {
+            assertThat(first.lookup(ADDRESS), is("first"));
+            assertThat(publisher.publish(ipRanger -> ipRanger.insertIpRange("10.0.0.0/8", "second")), is(2L));
+            // the opened generation doesn't change
+            assertThat(first.lookup(ADDRESS), is("first"));
+            try (IpRanger second = publisher.openPublished()) {
+                assertThat(second.lookup(ADDRESS), is("second"));
+            }
+            // the link is what the C readers open
+            try (IpRanger second = IpRanger.create(link, TestConfiguration.builder().build())) {
+                assertThat(second.lookup(ADDRESS), is("second"));
+            }
+        }
+        assertThat(publisher.publish(ipRanger -> ipRanger.insertIpRange("10.0.0.0/8", "third")), is(3L));
+        assertThat(published, is(Arrays.asList(1L, 2L, 3L)));
+        assertThat(Files.exists(link.resolveSibling("ranges.gen-1")), is(false));
+        assertThat(Files.exists(link.resolveSibling("ranges.gen-2")), is(true));
+        assertThat(publisher.getPublishedDir(), is(link.resolveSibling("ranges.gen-3")));
+    }
+
+    @Test
+    public void compactTest() throws Exception {
+        Path link = Files.createTempDirectory("ipranger_snapshot_").resolve("ranges");
+        SnapshotPublisher publisher = new SnapshotPublisher(link,
+                TestConfiguration.builder().snapshotCompact(true).build());
+        publisher.publish(ipRanger -> {
+            ipRanger.insertIpRange("10.0.0.0/8", "removed");
+            ipRanger.insertIpRange("10.0.0.0/8", "compacted");
+        });
+        try (IpRanger ipRanger = publisher.openPublished()) {
+            assertThat(ipRanger.lookup(ADDRESS), is("compacted"));
+        }
+        assertThat(Files.exists(link.resolveSibling("ranges.gen-1.compact")), is(false));
+    }
+
+    @Test
+    public void failedLoadTest() throws Exception {
+        Path link = Files.createTempDirectory("ipranger_snapshot_").resolve("ranges");
+        SnapshotPublisher publisher = new SnapshotPublisher(link, TestConfiguration.builder().build());
+        publisher.publish(ipRanger -> ipRanger.insertIpRange("10.0.0.0/8", "first"));
+        assertThrows(IllegalArgumentException.class,
+                () -> publisher.publish(ipRanger -> ipRanger.insertIpRange("invalid", "second")));
+        assertThat(publisher.getGeneration(), is(1L));
+        assertThat(Files.exists(link.resolveSibling("ranges.gen-2")), is(false));
+        try (IpRanger ipRanger = publisher.openPublished()) {
+            assertThat(ipRanger.lookup(ADDRESS), is("first"));
+        }
+    }
+}
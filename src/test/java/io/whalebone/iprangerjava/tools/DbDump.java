@@ -0,0 +1,54 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package io.whalebone.iprangerjava.tools;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Env;
+import org.lmdbjava.Txn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Tomas Kozel
+ */
+public class DbDump {
+    /**
+     * @return all the records of the database as "key=value" hex strings in the key order
+     */
+    public static List<String> records(Env<ByteBuffer> env, Dbi<ByteBuffer> dbi) {
+        List<String> records = new ArrayList<>();
+        try (Txn<ByteBuffer> txn = env.txnRead();
+             Cursor<ByteBuffer> cursor = dbi.openCursor(txn)) {
+            boolean found = cursor.first();
+            while (found) {
+                records.add(toHex(cursor.key()) + "=" + toHex(cursor.val()));
+                found = cursor.next();
+            }
+        }
+        return records;
+    }
+
+    private static String toHex(ByteBuffer buffer) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            sb.append(String.format("%02x", buffer.get(i)));
+        }
+        return sb.toString();
+    }
+}
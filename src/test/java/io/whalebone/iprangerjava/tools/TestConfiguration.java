@@ -0,0 +1,37 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava.tools;
+
+import io.whalebone.iprangerjava.Configuration;
+
+/**
+ * @author Tomas Kozel
+ */
+public class TestConfiguration {
+    public static Configuration.ConfigurationBuilder builder() {
+        return Configuration.builder()
+                .maxEnvSize(1_000_000)
+                .ip4RangesToIdentityDbName("IPv4")
+                .identitiesToIp4RangesDbName("ID2IPv4")
+                .ip4MasksDbName("IPv4_masks")
+                .ip6RangesToIdentityDbName("IPv6")
+                .ip6MasksDbName("IPv6_masks")
+                .identitiesToIp6RangesDbName("ID2IPv6")
+                .maxMaskKeySize(4)
+                .maxIdentityKeySize(32);
+    }
+}
@@ -18,11 +18,13 @@ package io.whalebone.iprangerjava.tools;
 
 import io.whalebone.iprangerjava.IpRanger;
 import io.whalebone.iprangerjava.IpRangerTest;
-import org.lmdbjava.Dbi;
+import io.whalebone.iprangerjava.RangeEntry;
 
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -40,4 +42,16 @@ public class TestDataLoader {
             });
         }
     }
+
+    public static List<RangeEntry> entries(String fileName, String delimiter) throws Exception {
+        URI dataLocation = IpRangerTest.class.getClassLoader().getResource(fileName).toURI();
+        try (Stream<String> lines = Files.lines(Paths.get(dataLocation))) {
+            // skip header
+            return lines.skip(1).map(line -> {
+                String[] args = line.split(delimiter);
+                // expecting iprange in third column and identity in second column
+                return RangeEntry.of(args[2].trim(), args[1].trim());
+            }).collect(Collectors.toList());
+        }
+    }
 }
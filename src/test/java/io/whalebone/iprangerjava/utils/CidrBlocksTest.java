@@ -0,0 +1,152 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks the properties of the decomposition by {@link CidrBlocks} for random ranges: the blocks are aligned,
+ * adjacent, cover exactly the range and there is no smaller set of blocks covering it.
+ *
+ * @author Tomas Kozel
+ */
+public class CidrBlocksTest {
+    private static final BigInteger TWO_TO_64 = BigInteger.ONE.shiftLeft(64);
+
+    @Test
+    public void singleAddressTest() {
+        assertThat(blocks(false, 0, 0x0A000001L, 0, 0x0A000001L), is(Collections.singletonList("10.0.0.1/32")));
+        assertThat(blocks(true, 1, -1, 1, -1), is(Collections.singletonList("0:0:0:1:ffff:ffff:ffff:ffff/128")));
+    }
+
+    @Test
+    public void fullSpaceTest() {
+        assertThat(blocks(false, 0, 0, 0, 0xFFFFFFFFL), is(Collections.singletonList("0.0.0.0/0")));
+        assertThat(blocks(true, 0, 0, -1, -1), is(Collections.singletonList("0:0:0:0:0:0:0:0/0")));
+        // everything but the first and the last address takes a block of every other size
+        assertThat(blocks(false, 0, 1, 0, 0xFFFFFFFEL).size(), is(62));
+        assertThat(blocks(true, 0, 1, -1, -2).size(), is(254));
+    }
+
+    @Test
+    public void exampleTest() {
+        List<String> expected = new ArrayList<>();
+        Collections.addAll(expected, "10.0.0.1/32", "10.0.0.2/31", "10.0.0.4/31", "10.0.0.6/32");
+        assertThat(blocks(false, 0, 0x0A000001L, 0, 0x0A000006L), is(expected));
+    }
+
+    @Test
+    public void invalidTest() {
+        assertThrows(IllegalArgumentException.class, () -> blocks(false, 0, 2, 0, 1));
+        assertThrows(IllegalArgumentException.class, () -> blocks(true, 1, 0, 0, -1));
+        assertThrows(IllegalArgumentException.class, () -> blocks(false, 0, 1, 0, 1L << 32));
+    }
+
+    @Test
+    public void randomIpv4PropertiesTest() {
+        Random random = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            long start = random.nextInt() & 0xFFFFFFFFL;
+            // short, long and boundary ranges
+            long length = i % 3 == 0 ? random.nextInt(1000) : i % 3 == 1 ? random.nextInt() & 0xFFFFFFFFL : 0;
+            long end = Math.min(0xFFFFFFFFL, start + length);
+            if (i % 7 == 0) {
+                start = start & -256L;
+            }
+            assertProperties(false, BigInteger.valueOf(start), BigInteger.valueOf(end));
+        }
+    }
+
+    @Test
+    public void randomIpv6PropertiesTest() {
+        Random random = new Random(11);
+        BigInteger max = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        for (int i = 0; i < 20_000; i++) {
+            BigInteger start = new BigInteger(128, random);
+            // lengths of all magnitudes
+            BigInteger length = new BigInteger(random.nextInt(129), random);
+            if (i % 5 == 0) {
+                start = start.shiftRight(64).shiftLeft(64);
+            }
+            BigInteger end = start.add(length).min(max);
+            assertProperties(true, start, end);
+        }
+    }
+
+    private static void assertProperties(boolean ipv6, BigInteger start, BigInteger end) {
+        int bits = ipv6 ? 128 : 32;
+        List<long[]> blocks = new ArrayList<>();
+        int count = CidrBlocks.decompose(ipv6, high(start), low(start), high(end), low(end),
+                (high, low, prefixLength) -> blocks.add(new long[]{high, low, prefixLength}));
+        String range = start.toString(16) + "-" + end.toString(16);
+        assertThat(range, count, is(blocks.size()));
+        BigInteger next = start;
+        for (int i = 0; i < blocks.size(); i++) {
+            long[] block = blocks.get(i);
+            BigInteger blockStart = toBigInteger(block[0], block[1]);
+            int hostBits = bits - (int) block[2];
+            // adjacent to the previous one and aligned
+            assertThat(range, blockStart, is(next));
+            assertThat(range, blockStart.getLowestSetBit() >= hostBits || blockStart.signum() == 0, is(true));
+            next = blockStart.add(BigInteger.ONE.shiftLeft(hostBits));
+            // two neighbours of the same size forming an aligned block could have been one block
+            if (i > 0 && blocks.get(i - 1)[2] == block[2] && block[2] > 0) {
+                BigInteger previousStart = toBigInteger(blocks.get(i - 1)[0], blocks.get(i - 1)[1]);
+                assertThat(range, previousStart.testBit(hostBits), is(true));
+            }
+        }
+        assertThat(range, next, is(end.add(BigInteger.ONE)));
+        // the greedy decomposition is minimal, its size is bounded by 2 blocks of every size
+        assertThat(range, blocks.size() <= 2 * bits, is(true));
+    }
+
+    private static List<String> blocks(boolean ipv6, long startHigh, long startLow, long endHigh, long endLow) {
+        List<String> blocks = new ArrayList<>();
+        Cidr cidr = new Cidr();
+        CidrBlocks.decompose(ipv6, startHigh, startLow, endHigh, endLow, (high, low, prefixLength) -> {
+            if (ipv6) {
+                cidr.setIpv6(high, low, prefixLength);
+            } else {
+                cidr.setIpv4((int) low, prefixLength);
+            }
+            blocks.add(cidr.toString());
+        });
+        return blocks;
+    }
+
+    private static long high(BigInteger address) {
+        return address.shiftRight(64).longValue();
+    }
+
+    private static long low(BigInteger address) {
+        return address.longValue();
+    }
+
+    private static BigInteger toBigInteger(long high, long low) {
+        return new BigInteger(Long.toUnsignedString(high)).multiply(TWO_TO_64).add(new BigInteger(Long.toUnsignedString(low)));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *   Copyright 2019 contributors to elastic2lmdb
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.whalebone.iprangerjava.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvFileSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that {@link CidrParser} gives the same results as {@link CIDRUtils}.
+ *
+ * @author Tomas Kozel
+ */
+public class CidrParserTest {
+    private final CidrParser parser = new CidrParser();
+    private final Cidr cidr = new Cidr();
+
+    @ParameterizedTest
+    @CsvFileSource(resources = {"/ipv4.csv", "/ipv6.csv"}, numLinesToSkip = 1)
+    public void testDataEquivalenceTest(String irrelevant1, String irrelevant2, String range) throws Exception {
+        assertEquivalent(range);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "0.0.0.0/0", "255.255.255.255/32", "10.1.0.0/8", " 192.168.1.7/24 ", "1.2.3.4/1", "001.002.003.004/30",
+            "::/0", "::/128", "::1/128", "1::/16", "1:2:3:4:5:6:7:8/128", "1:2:3:4:5:6:7::/112", "::2:3:4:5:6:7:8/64",
+            "fe80::1:2/10", "2001:DB8::/32", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff/65", "::1.2.3.4/120",
+            "64:ff9b::192.0.2.33/96", "1:2:3:4:5:6:1.2.3.4/127"
+    })
+    public void literalsEquivalenceTest(String range) throws Exception {
+        assertEquivalent(range);
+    }
+
+    @Test
+    public void randomEquivalenceTest() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            byte[] address = new byte[random.nextBoolean() ? 4 : 16];
+            random.nextBytes(address);
+            if (address.length == 16 && random.nextInt(4) == 0) {
+                // create runs of zero groups to get compressed notation
+                for (int j = random.nextInt(8) * 2; j < 16 && random.nextInt(4) > 0; j++) {
+                    address[j] = 0;
+                }
+            }
+            String text = InetAddress.getByAddress(address).getHostAddress();
+            if (!text.contains(":") && address.length == 16) {
+                // IPv4 mapped address, see CidrParser docs
+                continue;
+            }
+            assertEquivalent(text + "/" + random.nextInt(address.length * 8 + 1));
+        }
+    }
+
+    @Test
+    public void byteBufferTest() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap("id,10.1.0.0/8,x".getBytes(StandardCharsets.US_ASCII));
+        parser.parse(buffer, 3, 13, cidr);
+        assertThat(cidr.toString(), is("10.1.0.0/8"));
+        assertThat(cidr.getEndLow(), is(0x0AFFFFFFL));
+        assertThat(buffer.position(), is(0));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "", "10.0.0.0", "10.0.0.0/", "10.0.0.0/33", "10.0.0/8", "10.0.0.0.0/8", "256.0.0.0/8", "10.0.0.0/-1",
+            "localhost/8", "example.com/24", "1:2:3:4:5:6:7:8:9/64", "1::2::3/64", "1:2/64", ":1::/64", "1:::/64",
+            "12345::/64", "::/129", "fe80::1%eth0/64", "[::1]/128", "::1.2.3/96", "1:2:3:4:5:6:7:1.2.3.4/128",
+            // non-ASCII digits
+            "\uFF11::/64", "1::\uFF41/64", "\u0662::/64", "1::\u0966/64", "\uFF11.0.0.0/8", "10.0.0.0/\uFF18"
+    })
+    public void invalidTest(String range) {
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(range, cidr));
+    }
+
+    @Test
+    public void rangeTest() {
+        Cidr end = new Cidr();
+        parser.parseRange(" 10.0.0.1 - 10.0.1.255 ", cidr, end);
+        assertThat(cidr.toString(), is("10.0.0.1/32"));
+        assertThat(end.toString(), is("10.0.1.255/32"));
+        parser.parseRange("2001:db8::-2001:db8::ff", cidr, end);
+        assertThat(cidr.toString(), is("2001:db8:0:0:0:0:0:0/128"));
+        assertThat(end.toString(), is("2001:db8:0:0:0:0:0:ff/128"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "", "10.0.0.1", "10.0.0.1-", "-10.0.0.1", "10.0.0.2-10.0.0.1", "10.0.0.0/8-10.0.0.1", "10.0.0.1-::1",
+            "::2-::1", "10.0.0.1-10.0.0.2-10.0.0.3"
+    })
+    public void invalidRangeTest(String range) {
+        assertThrows(IllegalArgumentException.class, () -> parser.parseRange(range, cidr, new Cidr()));
+    }
+
+    private void assertEquivalent(String range) throws Exception {
+        CIDRUtils expected = new CIDRUtils(range.trim());
+        parser.parse(range, cidr);
+        byte[] expectedStart = expected.getStartAddress().getAddress();
+        byte[] expectedEnd = expected.getEndAddress().getAddress();
+        byte[] start = new byte[cidr.getAddressSize()];
+        byte[] end = new byte[cidr.getAddressSize()];
+        cidr.writeStartAddress(start, 0);
+        cidr.writeEndAddress(end, 0);
+        assertThat(range, cidr.getPrefixLength(), is(expected.getMask()));
+        assertThat(range, start, is(expectedStart));
+        assertThat(range, end, is(expectedEnd));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16).order(ByteOrder.LITTLE_ENDIAN);
+        cidr.writeEndAddress(buffer);
+        buffer.flip();
+        byte[] bufferEnd = new byte[buffer.remaining()];
+        buffer.get(bufferEnd);
+        assertThat(range, bufferEnd, is(expectedEnd));
+    }
+}